@@ -19,6 +19,7 @@ LOCAL_SRC_FILES	 := \
 	/src/vnc/vnc_client.cpp \
 	/src/jni/jnireference.cpp \
 	/src/remote.cpp \
+	/src/multiplexer.cpp \
 
 LOCAL_STATIC_LIBRARIES := stlport_static
 
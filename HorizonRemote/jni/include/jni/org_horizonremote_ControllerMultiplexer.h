@@ -0,0 +1,57 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class org_horizonremote_ControllerMultiplexer */
+
+#ifndef _Included_org_horizonremote_ControllerMultiplexer
+#define _Included_org_horizonremote_ControllerMultiplexer
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef org_horizonremote_ControllerMultiplexer_NULL_POINTER
+#define org_horizonremote_ControllerMultiplexer_NULL_POINTER 0LL
+#undef org_horizonremote_ControllerMultiplexer_READY_NONE
+#define org_horizonremote_ControllerMultiplexer_READY_NONE 0L
+#undef org_horizonremote_ControllerMultiplexer_READY_RECEIVE
+#define org_horizonremote_ControllerMultiplexer_READY_RECEIVE 1L
+#undef org_horizonremote_ControllerMultiplexer_READY_SEND
+#define org_horizonremote_ControllerMultiplexer_READY_SEND 2L
+#undef org_horizonremote_ControllerMultiplexer_READY_ERROR
+#define org_horizonremote_ControllerMultiplexer_READY_ERROR 4L
+#undef org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS
+#define org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS 256L
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeCreate
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeCreate
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeWait
+ * Signature: (J[J[III)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeWait
+  (JNIEnv *, jclass, jlong, jlongArray, jintArray, jint, jint);
+
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeWakeup
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeWakeup
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeCanWakeup
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeCanWakeup
+  (JNIEnv *, jclass, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -9,14 +9,6 @@ extern "C" {
 #endif
 #undef org_horizonremote_RemoteController_NULL_POINTER
 #define org_horizonremote_RemoteController_NULL_POINTER 0LL
-#undef org_horizonremote_RemoteController_STATE_FAILURE
-#define org_horizonremote_RemoteController_STATE_FAILURE -2L
-#undef org_horizonremote_RemoteController_STATE_DISCONNECTED
-#define org_horizonremote_RemoteController_STATE_DISCONNECTED -1L
-#undef org_horizonremote_RemoteController_STATE_CONNECTING
-#define org_horizonremote_RemoteController_STATE_CONNECTING 0L
-#undef org_horizonremote_RemoteController_STATE_CONNECTED
-#define org_horizonremote_RemoteController_STATE_CONNECTED 1L
 #undef org_horizonremote_RemoteController_KEY_POWER
 #define org_horizonremote_RemoteController_KEY_POWER 57344L
 #undef org_horizonremote_RemoteController_KEY_OK
@@ -35,6 +27,8 @@ extern "C" {
 #define org_horizonremote_RemoteController_KEY_GUIDE 57355L
 #undef org_horizonremote_RemoteController_KEY_INFO
 #define org_horizonremote_RemoteController_KEY_INFO 57358L
+#undef org_horizonremote_RemoteController_KEY_TEXT
+#define org_horizonremote_RemoteController_KEY_TEXT 57359L
 #undef org_horizonremote_RemoteController_KEY_MENU1
 #define org_horizonremote_RemoteController_KEY_MENU1 57361L
 #undef org_horizonremote_RemoteController_KEY_MENU2
@@ -84,9 +78,11 @@ extern "C" {
 #undef org_horizonremote_RemoteController_KEY_UNKNOWN_1
 #define org_horizonremote_RemoteController_KEY_UNKNOWN_1 61205L
 #undef org_horizonremote_RemoteController_KEY_UNKNOWN_2
-#define org_horizonremote_RemoteController_KEY_UNKNOWN_2 61207L
+#define org_horizonremote_RemoteController_KEY_UNKNOWN_2 61206L
 #undef org_horizonremote_RemoteController_KEY_UNKNOWN_3
-#define org_horizonremote_RemoteController_KEY_UNKNOWN_3 61209L
+#define org_horizonremote_RemoteController_KEY_UNKNOWN_3 61207L
+#undef org_horizonremote_RemoteController_KEY_UNKNOWN_4
+#define org_horizonremote_RemoteController_KEY_UNKNOWN_4 61209L
 #undef org_horizonremote_RemoteController_KEY_ONDEMAND
 #define org_horizonremote_RemoteController_KEY_ONDEMAND 61224L
 #undef org_horizonremote_RemoteController_KEY_DVR
@@ -125,6 +121,14 @@ JNIEXPORT void JNICALL Java_org_horizonremote_RemoteController_nativeDisconnect
 JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeState
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeConnectPhase
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeConnectPhase
+  (JNIEnv *, jclass, jlong);
+
 /*
  * Class:     org_horizonremote_RemoteController
  * Method:    nativeSendKey
@@ -141,6 +145,14 @@ JNIEXPORT void JNICALL Java_org_horizonremote_RemoteController_nativeSendKey
 JNIEXPORT void JNICALL Java_org_horizonremote_RemoteController_nativeToggleKey
   (JNIEnv *, jclass, jlong, jint);
 
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeSendKeys
+ * Signature: (J[I[II)J
+ */
+JNIEXPORT jlong JNICALL Java_org_horizonremote_RemoteController_nativeSendKeys
+  (JNIEnv *, jclass, jlong, jintArray, jintArray, jint);
+
 /*
  * Class:     org_horizonremote_RemoteController
  * Method:    nativePoll
@@ -149,6 +161,38 @@ JNIEXPORT void JNICALL Java_org_horizonremote_RemoteController_nativeToggleKey
 JNIEXPORT jboolean JNICALL Java_org_horizonremote_RemoteController_nativePoll
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeProbe
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_horizonremote_RemoteController_nativeProbe
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeProbeAge
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeProbeAge
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeRoundTripTime
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeRoundTripTime
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeIdleTime
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeIdleTime
+  (JNIEnv *, jclass, jlong);
+
 #ifdef __cplusplus
 }
 #endif
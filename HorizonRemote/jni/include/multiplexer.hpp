@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MULTIPLEXER_HPP_
+#define MULTIPLEXER_HPP_
+
+#include <vector>
+#include <poll.h>
+#include "boost/ref_ptr.h"
+#include "remote.hpp"
+
+namespace horizonremote {
+
+/*
+ * Multiplexer waits for activity on the sockets of any number of RemoteControllers
+ * with a single poll() so that one thread can drive all of them. Other threads
+ * can interrupt a wait through wakeup().
+ */
+class Multiplexer :
+	public Referenceable {
+public:
+	enum Ready {
+		READY_NONE		= 0,
+		READY_RECEIVE	= 1,
+		READY_SEND		= 2,
+		READY_ERROR		= 4,
+	};
+
+	Multiplexer();
+
+	int		wait(RemoteController** controllers, int count, int timeout, int* ready);
+	void	wakeup();
+
+	/* false when the wakeup pipe could not be created, a wait is then only
+	 * interrupted by a socket or its timeout */
+	bool	can_wakeup() const { return _wakeup[0] >= 0; }
+
+protected:
+	virtual ~Multiplexer();
+
+private:
+	void	drain_wakeup();
+
+	int _wakeup[2];
+	std::vector<pollfd> _fds;
+	std::vector<int> _slots;
+};
+
+} /* namespace horizon */
+#endif /* MULTIPLEXER_HPP_ */
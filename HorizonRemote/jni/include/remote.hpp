@@ -22,6 +22,10 @@
 #include "keys.hpp"
 
 #define HORIZON_PORT	"5900"
+#define POLL_MAX_STEPS	16
+
+#define CONNECT_TIMEOUT_MILLIS	10000
+#define CONNECT_WAIT_MILLIS		100
 
 namespace horizonremote {
 
@@ -35,16 +39,39 @@ public:
 		STATE_CONNECTED 	= 1,
 	};
 
+	enum ConnectPhase {
+		CONNECT_PHASE_RESOLVE	= 0,
+		CONNECT_PHASE_TCP		= 1,
+		CONNECT_PHASE_HANDSHAKE	= 2,
+		CONNECT_PHASE_DONE		= 3,
+	};
+
+	enum KeyFlags {
+		KEY_FLAG_DOWN		= 1,
+		KEY_FLAG_UP			= 2,
+		KEY_FLAG_TOGGLE		= KEY_FLAG_DOWN | KEY_FLAG_UP,
+	};
+
 	RemoteController(const std::string& addr);
 
 	bool	connect();
 	void 	disconnect();
 
 	State  	state();
+	ConnectPhase connect_phase() const;
 	void 	send_key(unsigned short keycode, bool keydown=true);
 	void 	toggle_key(unsigned short keycode);
+	long long send_keys(const int* keycodes, const int* flags, int count);
 	bool	poll();
 
+	bool	probe();
+	int		probe_age() const;
+	int		round_trip_time() const;
+	int		idle_time() const;
+
+	int		socket() const;
+	bool	wants_write() const;
+
 protected:
 	virtual ~RemoteController();
 
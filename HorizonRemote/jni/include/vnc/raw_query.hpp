@@ -5,6 +5,8 @@
 #include <string>
 #include <vector>
 
+#include "vnc/stream_buffer.hpp"
+
 #define STREAM_NO_ERROR 0
 #define STREAM_TCP_ERROR 1
 #define STREAM_TCP_RANGE 1000
@@ -41,6 +43,10 @@ namespace Network
 
     bool update(float timeout = -1);
 
+    // Blocks until the socket is ready for what update has to do next or timeout
+    // milliseconds passed, returns immediately when there is no connection.
+    void wait(int timeout);
+
     int error_code() const
     {
       return _error;
@@ -53,6 +59,56 @@ namespace Network
 
     void disconnect();
 
+    // Low latency profile ( on by default ), disables Nagle and marks the traffic as
+    // interactive. Takes effect when the next connection is made.
+    void set_low_latency(bool enable)
+    {
+      _low_latency = enable;
+    }
+
+    Socket socket() const
+    {
+      return _socket;
+    }
+
+    bool connect_pending() const
+    {
+      return _state != state_none && _connect_pending;
+    }
+
+    bool wants_write() const
+    {
+      return _state != state_none && (_connect_pending || _request.size() > 0);
+    }
+
+    size_t pending_input() const
+    {
+      return _response.size();
+    }
+
+    bool no_more_data() const
+    {
+      return _no_more_data;
+    }
+
+    // Time ( monotonic_millis ) at which data was last received, or the connection
+    // was started when nothing has been received yet.
+    long long last_receive() const
+    {
+      return _last_receive;
+    }
+
+    // Time ( monotonic_nanos ) at which send() returned for the last pending byte, or 0
+    // when nothing has been sent yet.
+    long long last_send() const
+    {
+      return _last_send;
+    }
+
+    // Bytes written which the peer did not acknowledge yet, including those still pending
+    // in the request buffer. -1 when the platform can not tell.
+    int unacknowledged() const;
+
   protected:
     State state() const
     {
@@ -64,12 +120,7 @@ namespace Network
       return _hostname.c_str();
     }
 
-    bool no_more_data() const
-    {
-      return _no_more_data;
-    }    
-
-    std::string& response()
+    StreamBuffer& response()
     {
       return _response;
     }
@@ -104,6 +155,8 @@ namespace Network
 
     void close();
 
+    void apply_socket_profile();
+
     bool connect();
 
     int poll();
@@ -124,16 +177,25 @@ namespace Network
 
     int _error;
     bool _no_more_data;
+    bool _connect_pending;
+    bool _low_latency;
     
     std::string _error_description;
-    std::string _request;
-    std::string _buffer;
-    std::string _response;    
+    StreamBuffer _request;
+    StreamBuffer _response;
 
     float _timeout;
     long long _start;
+    long long _last_receive;
+    long long _last_send;
   };    
 
+  // Milliseconds of a clock which is not affected by changes of the wall clock.
+  long long monotonic_millis();
+
+  // Nanoseconds of the same clock, matches System.nanoTime() on Android.
+  long long monotonic_nanos();
+
   void initialize();
   void deinitialize();
 }
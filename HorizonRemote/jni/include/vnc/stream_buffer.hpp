@@ -0,0 +1,125 @@
+#ifndef header_6a935491_0dee_44ea_a210_eaae4741d648
+#define header_6a935491_0dee_44ea_a210_eaae4741d648
+
+#include <string.h>
+#include <vector>
+
+namespace Network
+{
+  // Byte buffer with separate read and write cursors. Consuming only moves the read
+  // cursor, the unread bytes are moved back to the front when the free space at the
+  // end runs out, so every byte is moved at most once on average instead of on every
+  // consume as with erasing from the front of a std::string.
+  class StreamBuffer
+  {
+  public:
+    enum
+    {
+      initial_capacity = 4096
+    };
+
+    StreamBuffer()
+      : _data(initial_capacity), _read(0), _write(0)
+    {
+    }
+
+    size_t size() const
+    {
+      return _write - _read;
+    }
+
+    size_t length() const
+    {
+      return size();
+    }
+
+    bool empty() const
+    {
+      return _write == _read;
+    }
+
+    char* begin()
+    {
+      return &_data[0] + _read;
+    }
+
+    const char* data() const
+    {
+      return &_data[0] + _read;
+    }
+
+    char& operator[](size_t index)
+    {
+      return _data[_read + index];
+    }
+
+    char operator[](size_t index) const
+    {
+      return _data[_read + index];
+    }
+
+    void append(const char* data, const char* end)
+    {
+      size_t bytes = end - data;
+
+      memcpy(reserve(bytes), data, bytes);
+      commit(bytes);
+    }
+
+    // Returns space for at least bytes to be written directly, which are added by
+    // a following commit.
+    char* reserve(size_t bytes)
+    {
+      if (_write + bytes > _data.size())
+      {
+        size_t unread = size();
+
+        if (unread + bytes > _data.size() / 2)
+        {
+          size_t capacity = _data.size() * 2;
+          while (capacity < unread + bytes)
+            capacity *= 2;
+
+          std::vector<char> data(capacity);
+          memcpy(&data[0], &_data[0] + _read, unread);
+          _data.swap(data);
+        }
+        else
+        {
+          memmove(&_data[0], &_data[0] + _read, unread);
+        }
+
+        _read = 0;
+        _write = unread;
+      }
+
+      return &_data[0] + _write;
+    }
+
+    void commit(size_t bytes)
+    {
+      _write += bytes;
+    }
+
+    void consume(size_t bytes)
+    {
+      _read += bytes < size() ? bytes : size();
+
+      if (_read == _write)
+        _read = _write = 0;
+    }
+
+    void clear()
+    {
+      _read = _write = 0;
+    }
+
+  private:
+    std::vector<char> _data;
+
+    size_t _read;
+    size_t _write;
+  };
+}
+
+#endif
@@ -9,6 +9,10 @@
 #define STREAM_VNC_LOGIN_FAILED (STREAM_TCP_RANGE + 3)
 #define STREAM_VNC_UNSUPPORTED (STREAM_TCP_RANGE + 4)
 
+// How long probes may go unanswered on a connection which never answered one before
+// and whose acknowledgements can not be seen, see probe_age().
+#define VNC_PROBE_SETTLE_MAX_MILLIS 30000
+
 namespace Network
 {
   class VncClient: public RawStream
@@ -45,11 +49,36 @@ namespace Network
 
     bool connected() const;
 
+    VncState vnc_state() const
+    {
+      return _state;
+    }
+
     void pulse_key(unsigned short key);
     void send_key(unsigned short key, bool down);
 
     void request_screen(bool incremental, int x, int y, int width, int height);
 
+    // Liveness probe, asks for a single pixel which the server answers right away
+    // ( an incremental request is only answered once something changed ). Does nothing
+    // while an earlier probe is still unanswered, returns false when not connected.
+    bool probe();
+
+    // Milliseconds since the outstanding probe was sent without anything received
+    // since, -1 when there is no such probe. A probe is answered by the update which
+    // carries its pixel. Boxes are not obliged to answer a request for the screen right
+    // away, so a probe the peer's TCP stack acknowledged counts as answered too. Where
+    // acknowledgements can not be seen a probe goes unanswered once the box has
+    // answered one before, or once probes went unanswered for
+    // VNC_PROBE_SETTLE_MAX_MILLIS.
+    int probe_age() const;
+
+    // Smoothed round trip time of the answered probes in milliseconds, -1 when unknown.
+    int round_trip_time() const;
+
+    // Milliseconds since data was last received or a probe was settled as above.
+    int idle_time() const;
+
     void set_keep_framebuffer(bool keep);
 
     int framebuffer_width() const;
@@ -83,6 +112,8 @@ namespace Network
     void rfb_set_color_map();
     void rfb_bell();
     void rfb_set_clipboard();
+    void probe_answered();
+    bool probe_settled() const;
 
     unsigned int byte_swap(unsigned int v);
     unsigned short byte_swap(unsigned short v);
@@ -101,6 +132,10 @@ namespace Network
     int _bpp;
     int _framebuffer_version;
 
+    long long _probe_sent;
+    long long _probe_unanswered_since;
+    int _round_trip_time;
+
     std::string _name;
     std::string _username;
     std::string _password;
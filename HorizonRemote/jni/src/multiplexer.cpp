@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <unistd.h>
+#include <fcntl.h>
+#include <errno.h>
+#include "multiplexer.hpp"
+
+namespace horizonremote {
+
+Multiplexer::Multiplexer() {
+	if (pipe(_wakeup) == 0) {
+		fcntl(_wakeup[0], F_SETFL, fcntl(_wakeup[0], F_GETFL, 0) | O_NONBLOCK);
+		fcntl(_wakeup[1], F_SETFL, fcntl(_wakeup[1], F_GETFL, 0) | O_NONBLOCK);
+	} else {
+		_wakeup[0] = _wakeup[1] = -1;
+	}
+}
+
+Multiplexer::~Multiplexer() {
+	if (_wakeup[0] >= 0) {
+		close(_wakeup[0]);
+		close(_wakeup[1]);
+	}
+}
+
+/*
+ * Waits at most timeout milliseconds ( -1 is infinite ) for any of the controllers to become
+ * ready or for a wakeup. The readiness of every controller is stored in ready and the number
+ * of ready controllers is returned.
+ */
+int Multiplexer::wait(RemoteController** controllers, int count, int timeout, int* ready) {
+	_fds.resize(count + 1);
+	_slots.resize(count + 1);
+
+	/* the wakeup pipe is always the first descriptor */
+
+	int nfds = 0;
+
+	_fds[nfds].fd = _wakeup[0];
+	_fds[nfds].events = POLLIN;
+	_fds[nfds].revents = 0;
+	_slots[nfds++] = -1;
+
+	for (int i = 0; i < count; ++i) {
+		ready[i] = READY_NONE;
+
+		if (!controllers[i])
+			continue;
+
+		int socket = controllers[i]->socket();
+		if (socket <= 0)
+			continue;
+
+		/* only wait for writability when there is something to send or while
+		 * connecting, a connected socket is nearly always writable */
+
+		_fds[nfds].fd = socket;
+		_fds[nfds].events = POLLIN | (controllers[i]->wants_write() ? POLLOUT : 0);
+		_fds[nfds].revents = 0;
+		_slots[nfds++] = i;
+	}
+
+	int result;
+	do {
+		result = ::poll(&_fds[0], nfds, timeout);
+	} while (result < 0 && errno == EINTR);
+
+	if (result <= 0)
+		return 0;
+
+	if (_fds[0].revents)
+		drain_wakeup();
+
+	int readycount = 0;
+
+	for (int i = 1; i < nfds; ++i) {
+		short revents = _fds[i].revents;
+		if (!revents)
+			continue;
+
+		int status = READY_NONE;
+		status |= (revents & POLLIN) ? READY_RECEIVE : 0;
+		status |= (revents & POLLOUT) ? READY_SEND : 0;
+		status |= (revents & (POLLERR | POLLHUP | POLLNVAL)) ? READY_ERROR : 0;
+
+		ready[_slots[i]] = status;
+		readycount++;
+	}
+
+	return readycount;
+}
+
+void Multiplexer::wakeup() {
+	if (_wakeup[1] < 0)
+		return;
+
+	char signal = 1;
+	::write(_wakeup[1], &signal, 1);
+}
+
+void Multiplexer::drain_wakeup() {
+	char buffer[64];
+	while (::read(_wakeup[0], buffer, sizeof(buffer)) > 0)
+		;
+}
+
+} /* namespace horizon */
+
+#ifdef ANDROID
+
+//======= JNI binding
+
+#include "jni/jnireference.hpp"
+#include "jni/org_horizonremote_ControllerMultiplexer.h"
+
+JNIEXPORT jlong JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeCreate
+  (JNIEnv *env, jclass clazz) {
+
+	ref_ptr<horizonremote::Multiplexer> multiplexer = new horizonremote::Multiplexer();
+
+	JNIReference* ref = new JNIReference(multiplexer.get());
+	return (jlong) ref;
+}
+
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeWait
+ * Signature: (J[J[III)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeWait
+  (JNIEnv *env, jclass clazz, jlong jptr, jlongArray jcontrollers, jintArray jready, jint count, jint timeout) {
+
+	ref_ptr<horizonremote::Multiplexer> multiplexer = JNIReference::cast<horizonremote::Multiplexer*>(jptr);
+
+	if (count > org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS)
+		count = org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS;
+
+	/* unwrap the controllers on the stack, the java side keeps them referenced during the wait */
+
+	jlong pointers[org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS];
+	horizonremote::RemoteController* controllers[org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS];
+	jint ready[org_horizonremote_ControllerMultiplexer_MAX_CONTROLLERS];
+
+	env->GetLongArrayRegion(jcontrollers, 0, count, pointers);
+
+	for (int i = 0; i < count; ++i)
+		controllers[i] = pointers[i]
+				? JNIReference::cast<horizonremote::RemoteController*>(pointers[i])
+				: NULL;
+
+	jint result = multiplexer->wait(controllers, count, timeout, (int*)ready);
+
+	env->SetIntArrayRegion(jready, 0, count, ready);
+
+	return result;
+}
+
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeWakeup
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeWakeup
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::Multiplexer> multiplexer = JNIReference::cast<horizonremote::Multiplexer*>(jptr);
+	multiplexer->wakeup();
+}
+
+/*
+ * Class:     org_horizonremote_ControllerMultiplexer
+ * Method:    nativeCanWakeup
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_horizonremote_ControllerMultiplexer_nativeCanWakeup
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::Multiplexer> multiplexer = JNIReference::cast<horizonremote::Multiplexer*>(jptr);
+	return multiplexer->can_wakeup() ? JNI_TRUE : JNI_FALSE;
+}
+
+#endif
@@ -20,23 +20,43 @@
 
 namespace horizonremote {
 
+/* addresses are either a plain host or host:port */
+
+static std::string address_host(const std::string& addr) {
+	size_t separator = addr.rfind(':');
+	return separator == std::string::npos ? addr : addr.substr(0, separator);
+}
+
+static std::string address_port(const std::string& addr) {
+	size_t separator = addr.rfind(':');
+	return separator == std::string::npos ? HORIZON_PORT : addr.substr(separator + 1);
+}
+
 RemoteController::RemoteController(const std::string& addr) :
-	client(addr.c_str(), HORIZON_PORT) {
+	client(address_host(addr).c_str(), address_port(addr).c_str()) {
 }
 
 RemoteController::~RemoteController() {
 }
 
 bool RemoteController::connect() {
-	bool connected;
 
-	while (client.update()) {
-	  if ((connected=client.connected())
-			  || client.error_code() > 0)
-	    break;
+	/* sleep on the socket in between updates instead of spinning until connected */
+
+	long long deadline = Network::monotonic_millis() + CONNECT_TIMEOUT_MILLIS;
+
+	while (client.update() && !client.no_more_data()) {
+		if (client.connected() || client.error_code() > 0)
+			break;
+
+		long long left = deadline - Network::monotonic_millis();
+		if (left <= 0)
+			break;
+
+		client.wait(left < CONNECT_WAIT_MILLIS ? (int)left : CONNECT_WAIT_MILLIS);
 	}
 
-	return connected;
+	return client.connected();
 }
 
 void RemoteController::disconnect() {
@@ -51,6 +71,18 @@ RemoteController::State  RemoteController::state() {
 			  : RemoteController::STATE_DISCONNECTED;
 }
 
+RemoteController::ConnectPhase RemoteController::connect_phase() const {
+	if (client.connected())
+		return RemoteController::CONNECT_PHASE_DONE;
+
+	if (!client.socket())
+		return RemoteController::CONNECT_PHASE_RESOLVE;
+
+	return client.connect_pending()
+			? RemoteController::CONNECT_PHASE_TCP
+			: RemoteController::CONNECT_PHASE_HANDSHAKE;
+}
+
 void RemoteController::send_key(unsigned short keycode, bool down) {
 	client.send_key(keycode, down);
 	client.update();
@@ -61,8 +93,73 @@ void RemoteController::toggle_key(unsigned short keycode) {
 	client.update();
 }
 
+long long RemoteController::send_keys(const int* keycodes, const int* flags, int count) {
+
+	/* queue all key events first so that they leave in as few segments as possible */
+
+	for (int i = 0; i < count; ++i) {
+		if (flags[i] & KEY_FLAG_DOWN)
+			client.send_key(keycodes[i], true);
+
+		if (flags[i] & KEY_FLAG_UP)
+			client.send_key(keycodes[i], false);
+	}
+
+	client.update();
+
+	/* keys which did not fit in the socket buffer leave on a later update */
+
+	return client.wants_write() ? 0 : client.last_send();
+}
+
 bool RemoteController::poll() {
-	return client.update();
+
+	/* keep updating the client for as long as it makes progress so that a single
+	 * poll handles everything which has been received so far */
+
+	for (int step = 0; step < POLL_MAX_STEPS; ++step) {
+		Network::VncClient::VncState vnc_state = client.vnc_state();
+		size_t input = client.pending_input();
+
+		/* the server closing the connection is not an error for the stream itself */
+
+		if (!client.update() || client.no_more_data())
+			return false;
+
+		if (client.vnc_state() == vnc_state
+				&& client.pending_input() == input)
+			break;
+	}
+
+	return true;
+}
+
+bool RemoteController::probe() {
+	if (!client.probe())
+		return false;
+
+	client.update();
+	return true;
+}
+
+int RemoteController::probe_age() const {
+	return client.probe_age();
+}
+
+int RemoteController::round_trip_time() const {
+	return client.round_trip_time();
+}
+
+int RemoteController::idle_time() const {
+	return client.idle_time();
+}
+
+int RemoteController::socket() const {
+	return client.socket();
+}
+
+bool RemoteController::wants_write() const {
+	return client.wants_write();
 }
 
 } /* namespace horizon */
@@ -123,6 +220,18 @@ JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeState
 	return (jint)controller->state();
 }
 
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeConnectPhase
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeConnectPhase
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::RemoteController> controller = JNIReference::cast<horizonremote::RemoteController*>(jptr);
+	return (jint)controller->connect_phase();
+}
+
 /*
  * Class:     org_horizonremote_RemoteController
  * Method:    nativeSendKey
@@ -147,6 +256,32 @@ JNIEXPORT void JNICALL Java_org_horizonremote_RemoteController_nativeToggleKey
 	controller->toggle_key(keycode);
 }
 
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeSendKeys
+ * Signature: (J[I[II)J
+ */
+JNIEXPORT jlong JNICALL Java_org_horizonremote_RemoteController_nativeSendKeys
+  (JNIEnv *env, jclass clazz, jlong jptr, jintArray jkeycodes, jintArray jflags, jint count) {
+
+	if (count <= 0
+			|| env->GetArrayLength(jkeycodes) < count
+			|| env->GetArrayLength(jflags) < count)
+		return 0;
+
+	ref_ptr<horizonremote::RemoteController> controller = JNIReference::cast<horizonremote::RemoteController*>(jptr);
+
+	jint *keycodes = env->GetIntArrayElements(jkeycodes, 0);
+	jint *flags = env->GetIntArrayElements(jflags, 0);
+
+	long long sent = controller->send_keys(keycodes, flags, count);
+
+	env->ReleaseIntArrayElements(jflags, flags, JNI_ABORT);
+	env->ReleaseIntArrayElements(jkeycodes, keycodes, JNI_ABORT);
+
+	return (jlong)sent;
+}
+
 /*
  * Class:     org_horizonremote_RemoteController
  * Method:    nativePoll
@@ -159,4 +294,52 @@ JNIEXPORT jboolean JNICALL Java_org_horizonremote_RemoteController_nativePoll
 	return (jint)controller->poll();
 }
 
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeProbe
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_horizonremote_RemoteController_nativeProbe
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::RemoteController> controller = JNIReference::cast<horizonremote::RemoteController*>(jptr);
+	return (jboolean)controller->probe();
+}
+
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeProbeAge
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeProbeAge
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::RemoteController> controller = JNIReference::cast<horizonremote::RemoteController*>(jptr);
+	return (jint)controller->probe_age();
+}
+
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeRoundTripTime
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeRoundTripTime
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::RemoteController> controller = JNIReference::cast<horizonremote::RemoteController*>(jptr);
+	return (jint)controller->round_trip_time();
+}
+
+/*
+ * Class:     org_horizonremote_RemoteController
+ * Method:    nativeIdleTime
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_horizonremote_RemoteController_nativeIdleTime
+  (JNIEnv *env, jclass clazz, jlong jptr) {
+
+	ref_ptr<horizonremote::RemoteController> controller = JNIReference::cast<horizonremote::RemoteController*>(jptr);
+	return (jint)controller->idle_time();
+}
+
 #endif
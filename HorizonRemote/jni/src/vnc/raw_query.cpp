@@ -12,7 +12,12 @@
 #include <unistd.h>
 #include <fcntl.h>
 #include <errno.h>
-#define	TCP_NODELAY	 1	/* Don't delay send to coalesce packets  */
+#include <netinet/tcp.h>
+#include <netinet/ip.h>
+#include <sys/ioctl.h>
+#ifdef __linux__
+#include <linux/sockios.h>
+#endif
 #define closesocket close
 #include <time.h>
 #include <sys/time.h>
@@ -27,9 +32,14 @@
 namespace Network
 {	
 #	define REQUEST_SIZE 1024
-#	define SEND_BUFFER_SIZE 2048
 #	define RECV_BUFFER_SIZE 2048
 
+  // Kernel keepalive, a connection which stays silent is probed after the idle time
+  // and dropped when count probes sent interval apart go unanswered.
+#	define KEEPALIVE_IDLE_SECONDS 15
+#	define KEEPALIVE_INTERVAL_SECONDS 5
+#	define KEEPALIVE_COUNT 3
+
   inline bool would_block(int r)
   {
 #ifdef WIN32
@@ -42,7 +52,7 @@ namespace Network
   }	
 
   RawStream::RawStream(const char* hostname, const char* port)
-    : _start(0), _socket(0), _resolved(0), _state(state_none), _error(STREAM_NO_ERROR), _hostname(hostname), _port(port), _no_more_data(false), _timeout(-1)
+    : _start(0), _socket(0), _resolved(0), _state(state_none), _error(STREAM_NO_ERROR), _hostname(hostname), _port(port), _no_more_data(false), _connect_pending(false), _low_latency(true), _timeout(-1), _last_receive(0), _last_send(0)
   {
   }
 
@@ -73,6 +83,8 @@ namespace Network
 
     _error = 0;
     _state = state_none;
+    _connect_pending = false;
+    _timeout = -1;
   }  
 
   bool RawStream::resolve()
@@ -117,14 +129,41 @@ namespace Network
       mode = fcntl(_socket, F_GETFL, 0);
       fcntl(_socket, F_SETFL, mode | O_NONBLOCK);
 #endif
-      
-      int nodelay = 1;
-      setsockopt(_socket, IPPROTO_TCP, TCP_NODELAY, (const char *)&nodelay, sizeof(int));	
+
+      apply_socket_profile();
     }
 
     return _resolved != 0;
   }
 
+  void RawStream::apply_socket_profile()
+  {
+    // Let the kernel find out about connections which died silently ( e.g. after the
+    // network changed ) even when we are not sending anything ourselves.
+    int keepalive = 1;
+    setsockopt(_socket, SOL_SOCKET, SO_KEEPALIVE, (const char *)&keepalive, sizeof(int));
+
+#ifdef TCP_KEEPIDLE
+    int idle = KEEPALIVE_IDLE_SECONDS, interval = KEEPALIVE_INTERVAL_SECONDS, count = KEEPALIVE_COUNT;
+    setsockopt(_socket, IPPROTO_TCP, TCP_KEEPIDLE, (const char *)&idle, sizeof(int));
+    setsockopt(_socket, IPPROTO_TCP, TCP_KEEPINTVL, (const char *)&interval, sizeof(int));
+    setsockopt(_socket, IPPROTO_TCP, TCP_KEEPCNT, (const char *)&count, sizeof(int));
+#endif
+
+    if (!_low_latency)
+      return;
+
+    // Key events are tiny and have to leave immediately instead of waiting for the ack
+    // of the previous segment.
+    int nodelay = 1;
+    setsockopt(_socket, IPPROTO_TCP, TCP_NODELAY, (const char *)&nodelay, sizeof(int));
+
+#ifndef WIN32
+    int tos = IPTOS_LOWDELAY;
+    setsockopt(_socket, IPPROTO_IP, IP_TOS, (const char *)&tos, sizeof(int));
+#endif
+  }
+
   bool RawStream::connect()
   {
     if (_resolved)
@@ -134,7 +173,13 @@ namespace Network
       bool error = r < 0 && !would_block(r);
       if (error)
       {
-        set_error(STREAM_TCP_ERROR, strerror(r));
+        set_error(STREAM_TCP_ERROR, strerror(errno));
+      }
+      else
+      {
+        // The socket becomes writable as soon as the connection is established.
+        _connect_pending = true;
+        _last_receive = monotonic_millis();
       }
     }
     else
@@ -150,14 +195,14 @@ namespace Network
 
     if (timeout > 0)
     {
+      // Wall time, clock() would only count the time we spent on the cpu.
       if (_timeout < 0)
       {
         _timeout = timeout;
-        _start = clock();
+        _start = monotonic_millis();
       }
 
-      float delta = 0.0f;
-      delta = (clock() - _start) / (float)CLOCKS_PER_SEC;
+      float delta = (monotonic_millis() - _start) / 1000.0f;
 
       if (delta > _timeout)
       {
@@ -179,6 +224,8 @@ namespace Network
       
       if (poll_status & poll_send)
       {
+        _connect_pending = false;
+
         write();
 
         if (tcp_error())
@@ -210,10 +257,29 @@ namespace Network
     return !tcp_error();
   }
 
+  void RawStream::wait(int timeout)
+  {
+    if (_state == state_none || !_socket)
+      return;
+
+    timeval tv;
+    tv.tv_sec = timeout / 1000; tv.tv_usec = (timeout % 1000) * 1000;
+
+    fd_set read_fds, write_fds;
+    FD_ZERO(&read_fds);
+    FD_ZERO(&write_fds);
+    FD_SET(_socket, &read_fds);
+    if (wants_write())
+      FD_SET(_socket, &write_fds);
+
+    select(_socket + 1, &read_fds, &write_fds, NULL, &tv);
+  }
+
   int RawStream::poll()
   {
+    // Only checks the socket, waiting is left to wait() or a multiplexer.
     timeval tv;
-    tv.tv_sec = 0; tv.tv_usec = 1;
+    tv.tv_sec = 0; tv.tv_usec = 0;
 
     fd_set read_fds, write_fds, error_fds;
     FD_ZERO(&read_fds);
@@ -242,12 +308,12 @@ namespace Network
 
   void RawStream::write(const char* data)
   {
-    _request.insert(_request.end(), data, data + strlen(data));
+    _request.append(data, data + strlen(data));
   }
 
   void RawStream::write(const char* data, const char* end)
   {
-    _request.insert(_request.end(), data, end);
+    _request.append(data, end);
   }
 
   void RawStream::write()
@@ -255,25 +321,26 @@ namespace Network
     if (tcp_error())
       return;
 
-    int remaining = _request.size();
-    int chunk = std::min(SEND_BUFFER_SIZE, remaining);
-
-    if (chunk)
+    // Hand everything which is pending to the kernel at once so that events queued
+    // during the same update leave together, only loop on a partial send.
+    while (!_request.empty())
     {
-      int result = ::send(_socket, &_request[0], chunk, 0);
-      if (!would_block(result))
-      {
-        bool error = result < 0;
+      int result = ::send(_socket, _request.data(), _request.size(), 0);
 
-        if (error)
-        { 
-          set_error(STREAM_TCP_ERROR, strerror(result));          
-        }
+      if (would_block(result))
+        break;
+
+      if (result < 0)
+      {
+        set_error(STREAM_TCP_ERROR, strerror(errno));
+        break;
       }
-        
-      if (!tcp_error())
-        _request.erase(_request.begin(), _request.begin() + result);
-    }    
+
+      _request.consume(result);
+
+      if (_request.empty())
+        _last_send = monotonic_nanos();
+    }
   }
 
   void RawStream::read()
@@ -281,16 +348,15 @@ namespace Network
     if (tcp_error() || _no_more_data)
       return;
 
-    _buffer.resize(RECV_BUFFER_SIZE);
-
-    int result = recv(_socket, &_buffer[0], _buffer.size(), 0 );   
+    // Receive straight into the free space of the response buffer.
+    int result = recv(_socket, _response.reserve(RECV_BUFFER_SIZE), RECV_BUFFER_SIZE, 0 );
 
     if (would_block(result))
       return;
 
     if (result < 0 )
     {
-      set_error(STREAM_TCP_ERROR, strerror(result));
+      set_error(STREAM_TCP_ERROR, strerror(errno));
 
       return;
     }
@@ -301,17 +367,53 @@ namespace Network
       return;
     }
     
-    if ((size_t)result <= _buffer.size())
-    {
-      _response.insert(_response.end(), _buffer.begin(), _buffer.begin() + result);
-    }
+    _response.commit(result);
+    _last_receive = monotonic_millis();
+  }
+
+  int RawStream::unacknowledged() const
+  {
+#ifdef SIOCOUTQ
+    // The kernel keeps sent bytes queued until the peer acknowledged them.
+    int queued = 0;
+
+    if (_state == state_none || ioctl(_socket, SIOCOUTQ, &queued) < 0)
+      return -1;
+
+    return queued + (int)_request.size();
+#else
+    return -1;
+#endif
   }
 
   void RawStream::eat(int bytes)
   {
-    bytes = std::min(bytes, (int)_response.length());
+    _response.consume(bytes);
+  }
+
+  long long monotonic_millis()
+  {
+#ifdef WIN32
+    return GetTickCount64();
+#else
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long)now.tv_sec * 1000 + now.tv_nsec / 1000000;
+#endif
+  }
 
-    _response.erase(_response.begin(), _response.begin() + bytes);
+  long long monotonic_nanos()
+  {
+#ifdef WIN32
+    LARGE_INTEGER counter, frequency;
+    QueryPerformanceCounter(&counter);
+    QueryPerformanceFrequency(&frequency);
+    return (long long)(counter.QuadPart * 1000000000.0 / frequency.QuadPart);
+#else
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long)now.tv_sec * 1000000000LL + now.tv_nsec;
+#endif
   }
 
   void initialize()
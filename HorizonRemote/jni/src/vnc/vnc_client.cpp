@@ -17,7 +17,10 @@ namespace Network
       _height(0),
       _bpp(0),
       _keep_framebuffer(false),
-      _framebuffer_version(0)
+      _framebuffer_version(0),
+      _probe_sent(0),
+      _probe_unanswered_since(0),
+      _round_trip_time(-1)
   {
   }
 
@@ -144,7 +147,7 @@ namespace Network
 
   void VncClient::rfb_wait_for_version()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.size() >= 12)
     {
@@ -177,7 +180,7 @@ namespace Network
 
   void VncClient::rfb_wait_for_security_server()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 4)
     {
@@ -201,7 +204,7 @@ namespace Network
 
   void VncClient::rfb_wait_for_security_handshake()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() > 0)
     {
@@ -312,7 +315,7 @@ namespace Network
 
   void VncClient::rfb_wait_for_vnc_challenge()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 16)
     {
@@ -361,7 +364,7 @@ namespace Network
 
   void VncClient::rfb_wait_for_security_result()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 4)
     {
@@ -399,7 +402,7 @@ namespace Network
     }
     else
     {
-      std::string& r = response();
+      StreamBuffer& r = response();
 
       if (r.length() >= 4)
       {
@@ -429,7 +432,7 @@ namespace Network
 
   void VncClient::rfb_wait_for_server_initialization()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 24)
     {
@@ -462,7 +465,7 @@ namespace Network
 
   void VncClient::rfb_connected()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 1)
     {
@@ -490,13 +493,14 @@ namespace Network
 
   void VncClient::rfb_framebuffer_update()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 4)
     {
       int length = (int)byte_swap(*(unsigned short *)(&*r.begin() + 2));
 
       bool complete = true;
+      bool answers_probe = false;
 
       int current = 4;
 
@@ -522,6 +526,10 @@ namespace Network
           }
           else
           {
+            // Only the update with the pixel a probe asked for answers it.
+            if (x == 0 && y == 0 && width > 0 && height > 0)
+              answers_probe = true;
+
             int pixel_length = width * height * _bpp;
             if (r.length() >= current + 12 + pixel_length)
             {
@@ -558,13 +566,18 @@ namespace Network
       }
 
       if (complete)
+      {
         eat(current);
+
+        if (answers_probe)
+          probe_answered();
+      }
     }
   }
 
   void VncClient::rfb_set_color_map()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 6)
     {
@@ -579,7 +592,7 @@ namespace Network
    
   void VncClient::rfb_bell()
   {    
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 8)
     {
@@ -589,7 +602,7 @@ namespace Network
    
   void VncClient::rfb_set_clipboard()
   {
-    std::string& r = response();
+    StreamBuffer& r = response();
 
     if (r.length() >= 8)
     {
@@ -632,6 +645,80 @@ namespace Network
     write(frame_event, frame_event + sizeof(frame_event) / sizeof(char));
   }
 
+  bool VncClient::probe()
+  {
+    if (!connected())
+      return false;
+
+    if (probe_age() < 0)
+    {
+      request_screen(false, 0, 0, 1, 1);
+
+      long long now = monotonic_millis();
+
+      // A probe sent while an earlier one is settled but unanswered keeps its start.
+      if (!_probe_sent)
+        _probe_unanswered_since = now;
+
+      _probe_sent = now;
+    }
+
+    return true;
+  }
+
+  void VncClient::probe_answered()
+  {
+    if (!_probe_sent)
+      return;
+
+    int sample = (int)(monotonic_millis() - _probe_sent);
+
+    // Smoothed like the TCP round trip estimate, a single slow answer hardly moves it.
+    _round_trip_time = _round_trip_time < 0 ? sample : (7 * _round_trip_time + sample) / 8;
+    _probe_sent = 0;
+  }
+
+  bool VncClient::probe_settled() const
+  {
+    if (wants_write())
+      return false;
+
+    int unacknowledged = RawStream::unacknowledged();
+
+    if (unacknowledged >= 0)
+      return unacknowledged == 0;
+
+    return _round_trip_time < 0
+        && monotonic_millis() - _probe_unanswered_since < VNC_PROBE_SETTLE_MAX_MILLIS;
+  }
+
+  int VncClient::probe_age() const
+  {
+    // Any data received after the probe was sent shows that the connection is alive,
+    // stamps are in millis so data in the same millisecond counts as well.
+    if (!_probe_sent || last_receive() >= _probe_sent || probe_settled())
+      return -1;
+
+    return (int)(monotonic_millis() - _probe_sent);
+  }
+
+  int VncClient::round_trip_time() const
+  {
+    return _round_trip_time;
+  }
+
+  int VncClient::idle_time() const
+  {
+    long long since = last_receive();
+
+    // A settled probe shows the connection alive as well, without it a box which never
+    // answers would be probed over and over.
+    if (_probe_sent > since && probe_settled())
+      since = _probe_sent;
+
+    return (int)(monotonic_millis() - since);
+  }
+
   unsigned int VncClient::byte_swap(unsigned int v)
   {
     return 
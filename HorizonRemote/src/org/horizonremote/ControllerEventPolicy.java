@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ControllerEventPolicy decides which of the queued events of a controller are still worth 
+ * sending. Events pile up while the controller is ( re ) connecting, replaying them all at 
+ * once would make the box jump through menus the user already gave up on:
+ * 
+ * - key presses and holds which waited longer than the ttl are dropped.
+ * - a run of the same navigation key press which waited longer than COLLAPSE_AGE_MILLIS is 
+ *   collapsed into a single press, presses which are sent live are never collapsed.
+ * - key ups, releases and other markers are always kept so that no key is left down.
+ * 
+ * Urgent keys ( power and stop ) are queued in a lane of their own which is handled first,
+ * when preempts is set a press, down or hold of one also cancels the key presses which are 
+ * still queued, a repeating key and a running macro. Letting go of an urgent key cancels 
+ * nothing. Queued key ups and releases of a cancelled lane are still sent.
+ * 
+ * Every event which is not sent is counted, see counters(). Times are in
+ * SystemClock.elapsedRealtime() millis.
+ * 
+ * @author rogro82
+ */
+final class ControllerEventPolicy {
+	
+	static final int DEFAULT_TTL_MILLIS 	= 2000;
+	static final int TTL_MIN_MILLIS 		= 500;
+	
+	/* events which waited this long were queued while the controller could not send them */
+	static final int COLLAPSE_AGE_MILLIS 	= 250;
+	
+	volatile int ttl = DEFAULT_TTL_MILLIS;
+	volatile boolean preempts = true;
+	
+	/* events dropped because the queue was full, because they expired, because they were 
+	 * collapsed into another event, because the controller stopped before they were sent and
+	 * because an urgent key cancelled them */
+	final AtomicInteger full 		= new AtomicInteger();
+	final AtomicInteger expired 	= new AtomicInteger();
+	final AtomicInteger collapsed 	= new AtomicInteger();
+	final AtomicInteger discarded 	= new AtomicInteger();
+	final AtomicInteger preempted 	= new AtomicInteger();
+	
+	void configure(int ttl, boolean preempts) {
+		this.ttl 		= Math.max(TTL_MIN_MILLIS, ttl);
+		this.preempts 	= preempts;
+	}
+	
+	boolean isExpired(long time, long now) {
+		return now - time >= ttl;
+	}
+	
+	/**
+	 * Removes the events which should not be sent from a drained batch, the remaining events
+	 * and their times are moved to the front of events and times.
+	 * 
+	 * @return the number of events left
+	 */
+	int filter(long[] events, long[] times, int count, long now) {
+		int kept = 0;
+		int expiredcount = 0;
+		int collapsedcount = 0;
+		
+		for(int i = 0; i < count; ++i) {
+			final int action = ControllerEventQueue.action(events[i]);
+			
+			switch(action) {
+			case ControllerService.EVENT_KEY_PRESS:
+			case ControllerService.EVENT_KEY_DOWN:
+			case ControllerService.EVENT_KEY_HOLD:
+				if(isExpired(times[i], now)) {
+					expiredcount++;
+					continue;
+				}
+				
+				if(action == ControllerService.EVENT_KEY_PRESS && kept > 0 && events[kept - 1] == events[i]
+						&& isNavigation(ControllerEventQueue.data(events[i]))
+						&& now - times[kept - 1] >= COLLAPSE_AGE_MILLIS 
+						&& now - times[i] >= COLLAPSE_AGE_MILLIS) {
+					collapsedcount++;
+					continue;
+				}
+				
+				break;
+			}
+			
+			events[kept] 	= events[i];
+			times[kept] 	= times[i];
+			kept++;
+		}
+		
+		if(expiredcount > 0)
+			expired.addAndGet(expiredcount);
+		
+		if(collapsedcount > 0)
+			collapsed.addAndGet(collapsedcount);
+		
+		return kept;
+	}
+	
+	/**
+	 * Removes the key presses, downs and holds from a batch drained from the lane an urgent 
+	 * key cancels. Key ups and releases are kept so that no key which went down before is 
+	 * left down, as are markers. The remaining events and their times are moved to the 
+	 * front of events and times.
+	 * 
+	 * @return the number of events left
+	 */
+	int preempt(long[] events, long[] times, int count) {
+		int kept = 0;
+		
+		for(int i = 0; i < count; ++i) {
+			if(isPress(events[i]))
+				continue;
+			
+			events[kept] 	= events[i];
+			times[kept] 	= times[i];
+			kept++;
+		}
+		
+		if(kept < count)
+			preempted.addAndGet(count - kept);
+		
+		return kept;
+	}
+	
+	/**
+	 * @return true if a batch drained from the urgent lane cancels the other lane, which 
+	 * only a press, down or hold does
+	 */
+	static boolean isPreempting(long[] events, int count) {
+		for(int i = 0; i < count; ++i) {
+			if(isPress(events[i]))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	static boolean isPress(long event) {
+		switch(ControllerEventQueue.action(event)) {
+		case ControllerService.EVENT_KEY_PRESS:
+		case ControllerService.EVENT_KEY_DOWN:
+		case ControllerService.EVENT_KEY_HOLD:
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return the number of events dropped for every reason, indexed by the 
+	 * ControllerService.COUNTER_ constants
+	 */
+	int[] counters() {
+		return new int[] { full.get(), expired.get(), collapsed.get(), discarded.get(), preempted.get() };
+	}
+	
+	/**
+	 * @return true if the event belongs in the urgent lane, all events of an urgent key do
+	 * so that they stay in order
+	 */
+	static boolean isUrgent(int action, int data) {
+		switch(action) {
+		case ControllerService.EVENT_KEY_PRESS:
+		case ControllerService.EVENT_KEY_DOWN:
+		case ControllerService.EVENT_KEY_UP:
+		case ControllerService.EVENT_KEY_HOLD:
+		case ControllerService.EVENT_KEY_RELEASE:
+			break;
+		default:
+			return false;
+		}
+		
+		switch(data) {
+		case RemoteController.KEY_POWER:
+		case RemoteController.KEY_UNKNOWN_1:
+		case RemoteController.KEY_STOP:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	static boolean isNavigation(int key) {
+		switch(key) {
+		case RemoteController.KEY_DPAD_UP:
+		case RemoteController.KEY_DPAD_DOWN:
+		case RemoteController.KEY_DPAD_LEFT:
+		case RemoteController.KEY_DPAD_RIGHT:
+		case RemoteController.KEY_CHAN_UP:
+		case RemoteController.KEY_CHAN_DWN:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ControllerEventQueue is a bounded multi-producer / single-consumer ring of events packed into
+ * primitive longs ( action + data ). Producers ( binder threads ) claim a slot with a single CAS and
+ * never take a lock, the consumer ( the controller loop ) drains into a preallocated array so
+ * neither side allocates anything per event. Waking up the consumer is left to the caller.
+ *
+ * An empty slot is marked by 0, which is why the action is stored with an offset of 1. Every event
+ * carries the time it was enqueued at so that the consumer can tell how long it has been waiting,
+ * and a monotonic stamp ( System.nanoTime ) of the same moment for ControllerLatency.
+ *
+ * @author rogro82
+ */
+final class ControllerEventQueue {
+
+	static final int DEFAULT_CAPACITY = 256;
+
+	static final long EMPTY = 0;
+
+	final int capacity;
+	final int mask;
+
+	final AtomicLongArray slots;
+	
+	/* enqueue time and stamp of the event in the same slot, written before the event is published */
+	final long[] times;
+	final long[] stamps;
+
+	/* next index to be claimed by a producer */
+	final AtomicLong tail = new AtomicLong();
+
+	/* next index to be consumed, only written by the consumer */
+	volatile long head;
+
+	ControllerEventQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	ControllerEventQueue(int capacity) {
+		if(capacity <= 0 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("capacity should be a power of two");
+
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.slots = new AtomicLongArray(capacity);
+		this.times = new long[capacity];
+		this.stamps = new long[capacity];
+	}
+
+	static long pack(int action, int data) {
+		return ((long)(action + 1) << 32) | (data & 0xffffffffL);
+	}
+
+	static int action(long event) {
+		return (int)(event >>> 32) - 1;
+	}
+
+	static int data(long event) {
+		return (int)event;
+	}
+
+	/**
+	 * Enqueues an event, can be called from any thread.
+	 *
+	 * @return false when the ring is full and the event was not enqueued.
+	 */
+	boolean offer(int action, int data, long time, long stamp) {
+		long index;
+
+		do {
+			index = tail.get();
+			if(index - head >= capacity)
+				return false;
+
+		} while(!tail.compareAndSet(index, index + 1));
+
+		times[(int)index & mask] = time;
+		stamps[(int)index & mask] = stamp;
+		slots.set((int)index & mask, pack(action, data));
+
+		return true;
+	}
+
+	/**
+	 * Enqueues count events at once, can be called from any thread. The events occupy
+	 * consecutive slots and become visible to the consumer at the same time so that they
+	 * are drained in order and in one go.
+	 *
+	 * @return false when the ring does not have room for all events and none were enqueued.
+	 */
+	boolean offer(int[] actions, int[] data, int offset, int count, long time, long stamp) {
+		if(count <= 0)
+			return true;
+
+		long index;
+
+		do {
+			index = tail.get();
+			if(index + count - head > capacity)
+				return false;
+
+		} while(!tail.compareAndSet(index, index + count));
+
+		/* publish the first slot last as the consumer stops at the first empty slot */
+
+		for(int i = count - 1; i >= 0; --i) {
+			times[(int)(index + i) & mask] = time;
+			stamps[(int)(index + i) & mask] = stamp;
+			slots.set((int)(index + i) & mask, pack(actions[offset + i], data[offset + i]));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Moves pending events into events and their enqueue times and stamps into times and stamps
+	 * and returns the number of events moved, should only be called by the consumer.
+	 */
+	int drain(long[] events, long[] times, long[] stamps) {
+		long index = head;
+		int count = 0;
+
+		while(count < events.length) {
+			final int slot = (int)index & mask;
+			final long event = slots.get(slot);
+
+			/* stop at the first slot which has not been published yet */
+			if(event == EMPTY)
+				break;
+
+			times[count] = this.times[slot];
+			stamps[count] = this.stamps[slot];
+			events[count++] = event;
+			slots.lazySet(slot, EMPTY);
+			index++;
+		}
+
+		head = index;
+		return count;
+	}
+
+	/**
+	 * Discards all published events, should only be called by the consumer.
+	 * 
+	 * @return the number of events discarded
+	 */
+	int clear() {
+		final long start = head;
+		long index = start;
+
+		for(;;) {
+			final int slot = (int)index & mask;
+			if(slots.get(slot) == EMPTY)
+				break;
+
+			slots.lazySet(slot, EMPTY);
+			index++;
+		}
+
+		head = index;
+		return (int)(index - start);
+	}
+
+	boolean isEmpty() {
+		return slots.get((int)head & mask) == EMPTY;
+	}
+}
@@ -16,9 +16,14 @@
 
 package org.horizonremote;
 
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
@@ -51,10 +56,15 @@ public class ControllerFragment extends Fragment {
 
 	Handler mHandler;
 	IControllerService mService;
+	IControllerEvents mEvents;
+	int mEventSequence;
 	boolean mServiceBound;
 
 	int mControllerId;
 	int mControllerState = 0;
+	
+	/* keys of the repeating buttons which are held, more than one with split touch */
+	final ArrayList<Integer> mHeldKeys = new ArrayList<Integer>();
 	SoftInputView softInput;
     
     public ControllerFragment() {
@@ -72,6 +82,14 @@ public class ControllerFragment extends Fragment {
         bindService();			
 	}
 
+	@Override
+	public void onPause() {
+		super.onPause();
+		
+		/* a key can not be released once the fragment is no longer shown */
+		releaseHeldKeys();
+	}
+
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
@@ -100,10 +118,10 @@ public class ControllerFragment extends Fragment {
         initializeButton(rootView, R.id.button_key_8, RemoteController.KEY_NUM_8);
         initializeButton(rootView, R.id.button_key_9, RemoteController.KEY_NUM_9);
         /* d-pad */
-        initializeButton(rootView, R.id.button_key_up, RemoteController.KEY_DPAD_UP);
-        initializeButton(rootView, R.id.button_key_down, RemoteController.KEY_DPAD_DOWN);
-        initializeButton(rootView, R.id.button_key_left, RemoteController.KEY_DPAD_LEFT);
-        initializeButton(rootView, R.id.button_key_right, RemoteController.KEY_DPAD_RIGHT);
+        initializeRepeatingButton(rootView, R.id.button_key_up, RemoteController.KEY_DPAD_UP);
+        initializeRepeatingButton(rootView, R.id.button_key_down, RemoteController.KEY_DPAD_DOWN);
+        initializeRepeatingButton(rootView, R.id.button_key_left, RemoteController.KEY_DPAD_LEFT);
+        initializeRepeatingButton(rootView, R.id.button_key_right, RemoteController.KEY_DPAD_RIGHT);
         initializeButton(rootView, R.id.button_key_ok, RemoteController.KEY_OK);
         initializeButton(rootView, R.id.button_key_help, RemoteController.KEY_HELP);
         initializeButton(rootView, R.id.button_key_menu, RemoteController.KEY_MENU);
@@ -112,10 +130,10 @@ public class ControllerFragment extends Fragment {
 
         initializeButton(rootView, R.id.button_key_demand, RemoteController.KEY_ONDEMAND);
         initializeButton(rootView, R.id.button_key_tv, RemoteController.KEY_TV);
-        initializeButton(rootView, R.id.button_key_chan_up, RemoteController.KEY_CHAN_UP);
+        initializeRepeatingButton(rootView, R.id.button_key_chan_up, RemoteController.KEY_CHAN_UP);
         initializeButton(rootView, R.id.button_key_dvr, RemoteController.KEY_DVR);
         initializeButton(rootView, R.id.button_key_guide, RemoteController.KEY_GUIDE);
-        initializeButton(rootView, R.id.button_key_chan_dwn, RemoteController.KEY_CHAN_DWN);
+        initializeRepeatingButton(rootView, R.id.button_key_chan_dwn, RemoteController.KEY_CHAN_DWN);
 
         initializeButton(rootView, R.id.button_key_rwd, RemoteController.KEY_RWD);
         initializeButton(rootView, R.id.button_key_fwd, RemoteController.KEY_FWD);
@@ -147,8 +165,6 @@ public class ControllerFragment extends Fragment {
     }
 	
 	void initializeButton(View root, int viewid, int key) {
-		/* TODO: Add long-press repeat for specific keys (d-pad and channel up/down) */
-		
 		View button = root.findViewById(viewid);
 		button.setTag(key);
 		button.setOnClickListener(new OnClickListener() {
@@ -160,31 +176,46 @@ public class ControllerFragment extends Fragment {
 		});
 	}
 	
-	OnTouchListener ButtonTouchListener = new OnTouchListener() {
-		static final int DOWN_INTERVAL_MS = 500;
-		long lastDown = 0;
-
+	/**
+	 * A repeating button is pressed once when it is touched and repeats while it is held, the
+	 * repeats are generated by the service so holding a key costs two events.
+	 */
+	void initializeRepeatingButton(View root, int viewid, int key) {
+		View button = root.findViewById(viewid);
+		button.setTag(key);
+		button.setOnTouchListener(RepeatingButtonTouchListener);
+	}
+	
+	OnTouchListener RepeatingButtonTouchListener = new OnTouchListener() {
 		@Override
 		public boolean onTouch(View v, MotionEvent event) {
 			final Integer Key = (Integer) v.getTag();
 			
-				switch(event.getAction()) {
-				case MotionEvent.ACTION_DOWN:
-				case MotionEvent.ACTION_MOVE:
-					if(System.currentTimeMillis() - lastDown > DOWN_INTERVAL_MS) {
-						dispatchControllerEvent(ControllerService.EVENT_KEY_DOWN, Key);
-						lastDown = System.currentTimeMillis();
-					}
-					break;
-				case MotionEvent.ACTION_UP:
-					dispatchControllerEvent(ControllerService.EVENT_KEY_PRESS, Key);
-					break;
-				}
+			switch(event.getActionMasked()) {
+			case MotionEvent.ACTION_DOWN:
+				dispatchControllerEvent(ControllerService.EVENT_KEY_HOLD, Key);
+				mHeldKeys.add(Key);
+				break;
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
+				/* release the key of this button, not the one which was held last */
+				if(mHeldKeys.remove(Key))
+					dispatchControllerEvent(ControllerService.EVENT_KEY_RELEASE, Key);
+				break;
+			}
 			
+			/* let the button show that it is pressed */
 			return false;
 		}
 	};
 	
+	void releaseHeldKeys() {
+		for(Integer key : mHeldKeys)
+			dispatchControllerEvent(ControllerService.EVENT_KEY_RELEASE, key);
+		
+		mHeldKeys.clear();
+	}
+	
     @Override
 	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.controller, menu);
@@ -203,11 +234,75 @@ public class ControllerFragment extends Fragment {
 					}
 				}
 				break;
+			case R.id.action_latency:
+				showLatency();
+				break;
 		}
 		
 		return super.onOptionsItemSelected(item);
 	}
 	
+	/**
+	 * Shows the latency percentiles of every stage between a tap and the socket, see 
+	 * ControllerLatency.
+	 */
+	void showLatency() {
+		if(mService == null)
+			return;
+		
+		final int[] histograms;
+		
+		try {
+			histograms = mService.getLatencies(mControllerId);
+		} catch (RemoteException e) {
+			return;
+		}
+		
+		final String[] stages = getResources().getStringArray(R.array.latency_stages);
+		final StringBuilder message = new StringBuilder();
+		
+		for(int stage = 0; histograms != null && stage < ControllerLatency.STAGES; ++stage) {
+			final int count = ControllerLatency.count(histograms, stage);
+			
+			if(count == 0)
+				continue;
+			
+			if(message.length() > 0)
+				message.append("\n\n");
+			
+			message.append(getString(R.string.latency_format, stages[stage], count,
+					formatMillis(ControllerLatency.percentile(histograms, stage, 50)),
+					formatMillis(ControllerLatency.percentile(histograms, stage, 90)),
+					formatMillis(ControllerLatency.percentile(histograms, stage, 99)),
+					formatMillis(ControllerLatency.percentile(histograms, stage, 99.9)),
+					formatMillis(ControllerLatency.percentile(histograms, stage, 100))));
+		}
+		
+		if(message.length() == 0)
+			message.append(getString(R.string.latency_none));
+		
+		new AlertDialog.Builder(getActivity())
+			.setTitle(R.string.latency)
+			.setMessage(message)
+			.setPositiveButton(R.string.latency_close, null)
+			.setNeutralButton(R.string.latency_reset, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if(mService != null) {
+						try {
+							mService.resetLatencies(mControllerId);
+						} catch (RemoteException e) {
+						}
+					}
+				}
+			})
+			.show();
+	}
+	
+	static String formatMillis(int micros) {
+		return String.format(Locale.US, "%.2f", micros / 1000.0);
+	}
+	
 	@Override
 	public void onPrepareOptionsMenu(Menu menu) {
 		MenuItem connection = menu.findItem(R.id.action_connection);
@@ -276,8 +371,14 @@ public class ControllerFragment extends Fragment {
 			mService = IControllerService.Stub.asInterface(service);
 
 			try {
-				if (mService != null)
+				if (mService != null) {
 					mService.registerCallback(callback, mControllerId);
+					
+					/* key traffic goes through a oneway channel so that it never blocks the ui */
+					
+					mEvents = mService.openEventChannel();
+					mEventSequence = 0;
+				}
 
 			} catch (RemoteException e) {
 			}
@@ -285,13 +386,23 @@ public class ControllerFragment extends Fragment {
 
 		public void onServiceDisconnected(ComponentName className) {
 			mService = null;
+			mEvents = null;
 		}
 	};	
 	
 	void dispatchControllerEvent(int action, int data) {
-		if(mService != null) {
+		if(mEvents != null) {
+			try {
+				mEvents.dispatchEvent(mEventSequence++, mControllerId, action, data, System.nanoTime());
+			} catch (RemoteException e) {
+			}
+		}
+	}
+	
+	void dispatchControllerEvents(int[] actions, int[] data) {
+		if(mEvents != null) {
 			try {
-				mService.dispatchEvent(mControllerId, action, data);
+				mEvents.dispatchEvents(mEventSequence++, mControllerId, actions, data, System.nanoTime());
 			} catch (RemoteException e) {
 			}
 		}
@@ -317,6 +428,9 @@ public class ControllerFragment extends Fragment {
 
 			getActivity().unbindService(connection);
 
+			mService = null;
+			mEvents = null;
+
 			mServiceBound = false;
 		}		
 	}		
@@ -376,8 +490,19 @@ public class ControllerFragment extends Fragment {
 				@Override
 				public boolean commitText(CharSequence text, int newCursorPosition) {
 					Log.d("SoftInput", "commitText");
-					for (int i = 0; i < text.length(); ++i)
-						handleKeyCode((int)text.charAt(i));
+					
+					/* send the whole text in one transaction so that it arrives in order */
+					
+					final int length = text.length();
+					final int[] actions = new int[length];
+					final int[] data = new int[length];
+					
+					for (int i = 0; i < length; ++i) {
+						actions[i] = ControllerService.EVENT_KEY_PRESS;
+						data[i] = translateKeyCode((int)text.charAt(i));
+					}
+					
+					dispatchControllerEvents(actions, data);
 
 					return true;
 				}
@@ -415,19 +540,19 @@ public class ControllerFragment extends Fragment {
 		void handleKeyCode(int keyCode) {
 			Log.d("SoftInput", "handleKeyCode " + keyCode);
 			
+			dispatchControllerEvent(ControllerService.EVENT_KEY_PRESS, translateKeyCode(keyCode));
+		}
+		
+		int translateKeyCode(int keyCode) {
 			switch(keyCode) {
 			case KeyEvent.KEYCODE_VOLUME_UP:
-				dispatchControllerEvent(ControllerService.EVENT_KEY_PRESS, RemoteController.KEY_CHAN_UP);
-				break;
+				return RemoteController.KEY_CHAN_UP;
 			case KeyEvent.KEYCODE_VOLUME_DOWN:
-				dispatchControllerEvent(ControllerService.EVENT_KEY_PRESS, RemoteController.KEY_CHAN_DWN);
-				break;
+				return RemoteController.KEY_CHAN_DWN;
 			case KeyEvent.KEYCODE_DEL:
-				dispatchControllerEvent(ControllerService.EVENT_KEY_PRESS, 0xFFFF);
-				break;
-				default:
-					dispatchControllerEvent(ControllerService.EVENT_KEY_PRESS, keyCode);
-				break;
+				return 0xFFFF;
+			default:
+				return keyCode;
 			}
 		}
 
@@ -17,157 +17,126 @@
 package org.horizonremote;
 
 import java.util.ArrayList;
-import java.util.Locale;
-import java.util.Set;
+import java.util.List;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
-import android.preference.PreferenceManager;
 
 public class ControllerInfo {
 	
 	static final String CONTROLLER_PREFIX 		= "controller-";
-	static final String PREFERENCES_NAME 		= "org.horizonremote_preferences";
 	
 	static final String DEFAULT_CONTROLLER_NAME 	= "Controller";
 	static final String DEFAULT_CONTROLLER_ADDRESS 	= "192.168.0.0";
 	
+	/* properties of the controller-N records in the preferences, see ControllerStore */
 	public static final String PREF_NAME 		= "_name";
 	public static final String PREF_ADDRESS		= "_address";
+	public static final String PREF_TRANSPORT	= "_transport";
 	
-	int id;
-	String name;
-	String address;
+	/* connection implementations, native ( libhorizonremote ) or pure Java */
+	public static final String TRANSPORT_NATIVE	= "native";
+	public static final String TRANSPORT_JAVA	= "java";
 	
-	public static ArrayList<ControllerInfo> get(Context context) {
-		
-		ArrayList<ControllerInfo> list = new ArrayList<ControllerInfo>();
-		ArrayList<String> keys = getKeys(context);
-		for(String key : keys) {
-			ControllerInfo info = get(context, key);
-			if(info != null)
-				list.add(info);
-		}
-		
-		return list;
+	/* records are immutable, they are replaced by the ControllerRegistry when they change */
+	
+	final int id;
+	final String key;
+	final String name;
+	final String address;
+	final String transport;
+	
+	ControllerInfo(int id, String key, String name, String address, String transport) {
+		this.id 		= id;
+		this.key 		= key;
+		this.name 		= name;
+		this.address 	= address;
+		this.transport 	= transport;
+	}
+	
+	/**
+	 * @return all controllers in order of their id, the list can not be modified
+	 */
+	public static List<ControllerInfo> get(Context context) {
+		return ControllerRegistry.get(context).list();
 	}
 	
 	public static ControllerInfo get(Context context, int id) {
-		return get(context, key(id));
+		return ControllerRegistry.get(context).get(id);
 	}
 	
 	public static ControllerInfo get(Context context, String key) {
-		if(!isValid(context, key))
+		if(key == null)
 			return null;
 		
-		ControllerInfo info = new ControllerInfo();
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		
-		info.id 		= prefs.getInt(key, 0);
-		info.name 		= prefs.getString(key + PREF_NAME, DEFAULT_CONTROLLER_NAME);
-		info.address 	= prefs.getString(key + PREF_ADDRESS, DEFAULT_CONTROLLER_ADDRESS);
-		
-		return info;
+		return get(context, ControllerRegistry.recordId(key));
 	}
 	
+	/**
+	 * @return the key of the new controller or null if it could not be stored
+	 */
 	public static String add(Context context, String name, String address) {
-
-		int lastId = 0;
-		ArrayList<String> keys = getKeys(context);
-		for (String key : keys) {
-			String keyNr = key.replace(CONTROLLER_PREFIX, "");
-			int id = Integer.valueOf(keyNr);
-			if (id > lastId)
-				lastId = id;
-		}
-
-		int newId = lastId + 1;
-		String newKey = key(newId);
-
-		SharedPreferences prefs = context.getSharedPreferences(
-				PREFERENCES_NAME, Context.MODE_PRIVATE);
-
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putInt(newKey, newId);
-		editor.putString(newKey + PREF_NAME, name);
-		editor.putString(newKey + PREF_ADDRESS, address);
-		editor.commit();
-
-		return newKey;
+		ControllerInfo info = ControllerRegistry.get(context).add(name, address, TRANSPORT_NATIVE);
+		return info != null ? info.key : null;
 	}
 	
-	public static void remove(Context context, int id) {
-		remove(context, key(id));
+	/* the setters and remove return false if there is no such controller or the change could not be stored */
+	
+	public static boolean setName(Context context, int id, String name) {
+		ControllerInfo info = get(context, id);
+		return info != null 
+				&& ControllerRegistry.get(context).update(new ControllerInfo(id, info.key, name, info.address, info.transport));
 	}
 	
-	public static void remove(Context context, String key) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		Set<String> prefKeys = prefs.getAll().keySet();
-
-		Editor editor = prefs.edit();
-
-		for (String prefKey : prefKeys) {
-			if (prefKey.startsWith(key))
-				editor.remove(prefKey);
-		}
-
-		editor.commit();
+	public static boolean setAddress(Context context, int id, String address) {
+		ControllerInfo info = get(context, id);
+		return info != null 
+				&& ControllerRegistry.get(context).update(new ControllerInfo(id, info.key, info.name, address, info.transport));
+	}
+	
+	public static boolean setTransport(Context context, int id, String transport) {
+		ControllerInfo info = get(context, id);
+		return info != null 
+				&& ControllerRegistry.get(context).update(new ControllerInfo(id, info.key, info.name, info.address, transport));
+	}
+	
+	public static boolean remove(Context context, int id) {
+		return ControllerRegistry.get(context).remove(id);
+	}
+	
+	public static boolean remove(Context context, String key) {
+		return remove(context, ControllerRegistry.recordId(key));
 	}			
 
 	public static ArrayList<String> getKeys(Context context) {
 
-		ArrayList<String> names = new ArrayList<String>();
+		List<ControllerInfo> list = get(context);
+		ArrayList<String> names = new ArrayList<String>(list.size());
 		
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		Set<String> prefKeys = prefs.getAll().keySet();
-		for (String prefKey : prefKeys) {
-			if (prefKey.startsWith(CONTROLLER_PREFIX)) {
-				if (!prefKey.replace(CONTROLLER_PREFIX, "").contains("_")) {
-					names.add(prefKey);
-				}
-			}
+		for (ControllerInfo info : list) {
+			names.add(info.key);
 		}
 
 		return names;
 	}
 	
 	public static String getName(Context context, int id) {
-		return getName(context, key(id));
+		ControllerInfo info = get(context, id);
+		return info != null ? info.name : DEFAULT_CONTROLLER_NAME;
 	}
 	
 	public static String getName(Context context, String key) {
-		SharedPreferences profile = PreferenceManager.getDefaultSharedPreferences(context);
-		return profile.getString(key + PREF_NAME, DEFAULT_CONTROLLER_NAME);
+		return getName(context, ControllerRegistry.recordId(key));
 	}
 
 	public static boolean isValid(Context context, String key) {
-		if (key == null)
-			return false;
-
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		return (prefs.getInt(key, -1) != -1);
+		return get(context, key) != null;
 	}	
 
-	public static String newKey(Context context) {
-		int lastId = 0;
-		ArrayList<String> keys = getKeys(context);
-		for (String key : keys) {
-			String keyNr = key.replace(CONTROLLER_PREFIX, "");
-			int id = Integer.valueOf(keyNr);
-			if (id > lastId)
-				lastId = id;
-		}
-		int newId = lastId + 1;
-		
-		return key(newId);
-	}
-	
 	public static int id(String key) {
 		return Integer.valueOf(key.replace(CONTROLLER_PREFIX, ""));
 	}
 	
 	public static String key(int id) {
-		return String.format(Locale.getDefault(), "%s%d", CONTROLLER_PREFIX, id);
+		return CONTROLLER_PREFIX + id;
 	}
 }
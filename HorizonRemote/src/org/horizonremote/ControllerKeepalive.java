@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+/**
+ * ControllerKeepalive decides when the connection of a running session is probed and when 
+ * it is considered dead. Its intervals follow the observed traffic:
+ * 
+ * - the heartbeat is frequent right after the user sent events and backs off while the
+ *   controller is not used, anything received from the server counts as a heartbeat.
+ * - events sent on a connection which has been silent for a while are followed by a probe
+ *   so that a connection which died while idle ( e.g. after roaming ) is found right away.
+ * - a connection is dead when a probe stays unanswered for DEAD_TIMEOUT_FACTOR round trips,
+ *   within DEAD_TIMEOUT_MIN_MILLIS and DEAD_TIMEOUT_MAX_MILLIS.
+ * - an unused connection is kept for INACTIVITY_GAP_FACTOR times the average gap between
+ *   events, within INACTIVITY_MIN_MILLIS and INACTIVITY_MAX_MILLIS, so that a controller
+ *   which is used every few minutes does not have to reconnect every time.
+ * 
+ * Times are in SystemClock.elapsedRealtime() millis, the ages reported by the transport
+ * are relative so they do not have to share its clock.
+ * 
+ * @author rogro82
+ */
+final class ControllerKeepalive {
+	
+	static final int HEARTBEAT_MIN_MILLIS 		= 5000;
+	static final int HEARTBEAT_MAX_MILLIS 		= 60000;
+	
+	static final int DEAD_TIMEOUT_FACTOR 		= 4;
+	static final int DEAD_TIMEOUT_MIN_MILLIS 	= 3000;
+	static final int DEAD_TIMEOUT_MAX_MILLIS 	= 10000;
+	
+	static final int INACTIVITY_GAP_FACTOR 		= 4;
+	static final int INACTIVITY_MIN_MILLIS 		= 30000;
+	static final int INACTIVITY_MAX_MILLIS 		= 300000;
+	
+	final ControllerTransport transport;
+	
+	long lastevent;
+	
+	/* moving average of the time between events, -1 until the first event */
+	long averagegap = -1;
+	
+	ControllerKeepalive(ControllerTransport transport, long now) {
+		this.transport = transport;
+		this.lastevent = now;
+	}
+	
+	/**
+	 * Called after events were sent.
+	 */
+	void onEvents(long now) {
+		final long gap = now - lastevent;
+		
+		averagegap = averagegap < 0 ? gap : (7 * averagegap + gap) / 8;
+		lastevent = now;
+		
+		if(transport.getIdleTime() >= HEARTBEAT_MIN_MILLIS) {
+			transport.probe();
+		}
+	}
+	
+	/**
+	 * Probes the connection when the heartbeat is due.
+	 * 
+	 * @return false when the connection is dead
+	 */
+	boolean check(long now) {
+		final int probeage = transport.getProbeAge();
+		
+		if(probeage >= 0)
+			return probeage < deadTimeout();
+		
+		if(transport.getIdleTime() >= heartbeatInterval(now)) {
+			transport.probe();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return the time at which check has to be called again
+	 */
+	long nextDeadline(long now) {
+		final int probeage = transport.getProbeAge();
+		
+		if(probeage >= 0)
+			return now + Math.max(0, deadTimeout() - probeage);
+		
+		return now + Math.max(0, heartbeatInterval(now) - transport.getIdleTime());
+	}
+	
+	/**
+	 * @return the time between heartbeats, half the time since the last event
+	 */
+	long heartbeatInterval(long now) {
+		return clamp((now - lastevent) / 2, HEARTBEAT_MIN_MILLIS, HEARTBEAT_MAX_MILLIS);
+	}
+	
+	/**
+	 * @return the time after which an unanswered probe means that the connection is dead
+	 */
+	int deadTimeout() {
+		final int rtt = transport.getRoundTripTime();
+		
+		if(rtt < 0)
+			return DEAD_TIMEOUT_MIN_MILLIS;
+		
+		return (int)clamp(DEAD_TIMEOUT_FACTOR * rtt, DEAD_TIMEOUT_MIN_MILLIS, DEAD_TIMEOUT_MAX_MILLIS);
+	}
+	
+	/**
+	 * @return the time without events after which an unused connection is closed
+	 */
+	long inactivityTimeout() {
+		if(averagegap < 0)
+			return INACTIVITY_MIN_MILLIS;
+		
+		return clamp(INACTIVITY_GAP_FACTOR * averagegap, INACTIVITY_MIN_MILLIS, INACTIVITY_MAX_MILLIS);
+	}
+	
+	static long clamp(long value, long min, long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
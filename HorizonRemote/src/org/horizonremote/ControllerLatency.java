@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ControllerLatency keeps a histogram of the time keys of a controller spend in each stage
+ * between the tap and the socket, indexed by the ControllerService.LATENCY_ constants:
+ *
+ * - tap in the ui to receipt by the service ( the oneway binder call ).
+ * - receipt to enqueue ( ordering on the event thread ).
+ * - enqueue to drain by the controller loop.
+ * - drain to the call into the transport.
+ * - call into the transport until send() returned for the last of the keys.
+ *
+ * The buckets are log-linear, values below SUB_BUCKETS microseconds have a bucket each and
+ * every power of two above is split into SUB_BUCKETS buckets, which keeps the error of any
+ * value below 1 / SUB_BUCKETS. Recording is a single atomic increment and never allocates,
+ * it can be done from any thread. Stamps are System.nanoTime() values.
+ *
+ * @author rogro82
+ */
+final class ControllerLatency {
+
+	static final int STAGES 			= 5;
+
+	static final int SUB_BUCKET_BITS 	= 3;
+	static final int SUB_BUCKETS 		= 1 << SUB_BUCKET_BITS;
+
+	/* covers every positive int number of microseconds */
+	static final int BUCKETS 			= (31 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	/* counts of all stages, stage after stage */
+	final AtomicIntegerArray counts = new AtomicIntegerArray(STAGES * BUCKETS);
+
+	/**
+	 * Records the time between two stamps, stamps of 0 are not known and are left out.
+	 */
+	void record(int stage, long from, long to) {
+		if(from == 0 || to == 0 || to < from)
+			return;
+
+		counts.incrementAndGet(stage * BUCKETS + bucket(micros(to - from)));
+	}
+
+	/**
+	 * Records the time between from and each of count stamps.
+	 */
+	void record(int stage, long[] from, int count, long to) {
+		for(int i = 0; i < count; ++i)
+			record(stage, from[i], to);
+	}
+
+	/**
+	 * @return a copy of the counts of all stages, see percentile
+	 */
+	int[] histograms() {
+		final int[] copy = new int[counts.length()];
+
+		for(int i = 0; i < copy.length; ++i)
+			copy[i] = counts.get(i);
+
+		return copy;
+	}
+
+	void reset() {
+		for(int i = 0; i < counts.length(); ++i)
+			counts.set(i, 0);
+	}
+
+	static int micros(long nanos) {
+		return (int)Math.min(Integer.MAX_VALUE, nanos / 1000);
+	}
+
+	static int bucket(int micros) {
+		if(micros < SUB_BUCKETS)
+			return micros;
+
+		/* the highest bit selects the power of two, the bits below it the sub bucket */
+
+		final int shift = 31 - Integer.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+
+		return (shift + 1) * SUB_BUCKETS + ((micros >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the highest number of microseconds which ends up in bucket
+	 */
+	static int highest(int bucket) {
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+
+		final int shift = bucket / SUB_BUCKETS - 1;
+		final long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+		return (int)Math.min(Integer.MAX_VALUE, lowest + (1L << shift) - 1);
+	}
+
+	/**
+	 * @return the number of samples of stage in histograms
+	 */
+	static int count(int[] histograms, int stage) {
+		int count = 0;
+
+		for(int i = stage * BUCKETS; i < (stage + 1) * BUCKETS; ++i)
+			count += histograms[i];
+
+		return count;
+	}
+
+	/**
+	 * @return the number of microseconds which percentile ( 0 - 100 ) of the samples of stage
+	 * in histograms did not exceed, or -1 when there are no samples
+	 */
+	static int percentile(int[] histograms, int stage, double percentile) {
+		final int count = count(histograms, stage);
+
+		if(count == 0)
+			return -1;
+
+		/* rank of the sample we are looking for, at least the first one */
+
+		final long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+		long seen = 0;
+
+		for(int i = 0; i < BUCKETS; ++i) {
+			seen += histograms[stage * BUCKETS + i];
+
+			if(seen >= rank)
+				return highest(i);
+		}
+
+		return highest(BUCKETS - 1);
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.horizonremote.jni.JNIReference.JNIReferenceException;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * ControllerLoop is an event loop which drives one or more controller sessions. It sleeps in
+ * a ControllerMultiplexer until one of the session sockets becomes ready, a session deadline
+ * expires or it is woken up because new events have been queued.
+ * 
+ * A dedicated loop runs a single session and stops with it, a shared loop runs every session
+ * of the service and keeps running until it is quit. The multiplexer is closed when the loop
+ * stops. A loop runs at most ControllerMultiplexer.MAX_CONTROLLERS sessions, a session added
+ * beyond that is closed right away.
+ * 
+ * @author rogro82
+ */
+final class ControllerLoop extends Thread {
+	
+	static final String LOG_TAG = "ControllerLoop";
+	
+	static final long SESSION_CLOSED = -1;
+	
+	/* longest wait when the multiplexer can not be woken up, new events wait this long */
+	static final int WAKEUP_FALLBACK_MILLIS = 10;
+
+	/**
+	 * A per-connection state machine driven by a ControllerLoop.
+	 */
+	interface Session {
+		
+		/**
+		 * Performs all pending work of the session.
+		 * 
+		 * @param now 	current time in SystemClock.elapsedRealtime() millis
+		 * @param ready	socket readiness as reported by ControllerMultiplexer
+		 * 
+		 * @return the time at which the session wants to be stepped again or SESSION_CLOSED
+		 */
+		long step(long now, int ready);
+		
+		/**
+		 * @return the controller whose socket should be waited for or null
+		 */
+		ControllerTransport getController();
+		
+		/**
+		 * @return true if the session should be stepped without waiting ( e.g. queued events )
+		 */
+		boolean hasPendingWork();
+		
+		/**
+		 * Requests the session to close on its next step.
+		 */
+		void cancel();
+	}
+	
+	final boolean shared;
+	final AtomicBoolean sleeping = new AtomicBoolean();
+	final ConcurrentLinkedQueue<Session> added = new ConcurrentLinkedQueue<Session>();
+	
+	final ArrayList<Session> sessions = new ArrayList<Session>();
+	
+	long[] deadlines 			= new long[1];
+	long[] pointers 			= new long[1];
+	int[] ready 				= new int[1];
+	ControllerTransport[] controllers = new ControllerTransport[1];
+	
+	ControllerMultiplexer multiplexer;
+	boolean canwakeup;
+	volatile boolean shouldstop;
+	
+	ControllerLoop(String name, boolean shared) {
+		super(name);
+		this.shared = shared;
+	}
+	
+	/**
+	 * Adds a session to this loop, can be called from any thread.
+	 */
+	void add(Session session) {
+		added.add(session);
+		wakeup();
+	}
+	
+	/**
+	 * Wakes up the loop if it is waiting, can be called from any thread.
+	 */
+	void wakeup() {
+		/* only the first caller has to interrupt the wait */
+		if(sleeping.compareAndSet(true, false)) {
+			multiplexer.wakeup();
+		}
+	}
+	
+	void quit() {
+		shouldstop = true;
+		wakeup();
+	}
+	
+	@Override
+	public void run() {
+		
+		/* keys are sent from this thread, keep it ahead of the ui and binder threads so that
+		 * timed keys ( e.g. macros ) are sent on time */
+		
+		Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+		
+		try {
+			multiplexer = new ControllerMultiplexer();
+		} catch (JNIReferenceException e) {
+			Log.e(LOG_TAG, "failed to create multiplexer", e);
+			return;
+		}
+		
+		canwakeup = multiplexer.canWakeup();
+		
+		if(!canwakeup)
+			Log.e(LOG_TAG, "multiplexer can not be woken up, waiting at most " + WAKEUP_FALLBACK_MILLIS + "ms");
+		
+		while(!shouldstop) {
+			
+			adoptSessions();
+			
+			if(sessions.isEmpty() && !shared)
+				break;
+			
+			/* step every session which is ready, has pending work or reached its deadline */
+			
+			final long now = SystemClock.elapsedRealtime();
+			long next = Long.MAX_VALUE;
+			int count = 0;
+			
+			for(int i = 0, size = sessions.size(); i < size; ++i) {
+				final Session session = sessions.get(i);
+				long deadline = deadlines[i];
+				
+				final int readiness = ready[i];
+				ready[i] = ControllerMultiplexer.READY_NONE;
+				
+				if(readiness != ControllerMultiplexer.READY_NONE || deadline <= now || session.hasPendingWork()) {
+					deadline = session.step(now, readiness);
+				}
+				
+				if(deadline == SESSION_CLOSED)
+					continue;
+				
+				/* compact sessions in place while removing closed ones */
+				
+				sessions.set(count, session);
+				deadlines[count] = deadline;
+				count++;
+				
+				next = Math.min(next, deadline);
+			}
+			
+			while(sessions.size() > count)
+				sessions.remove(sessions.size() - 1);
+			
+			/* publish that we are about to sleep and check for work which might have been
+			 * queued before that, any later work will wake us up. A dedicated loop whose 
+			 * session closed stops instead of waiting for nothing */
+			
+			sleeping.set(true);
+			
+			if(shouldstop || hasPendingWork() || (count == 0 && !shared)) {
+				sleeping.set(false);
+				continue;
+			}
+			
+			/* controllers without a native pointer are not waited for, their sessions 
+			 * poll them through their deadlines */
+			
+			for(int i = 0; i < count; ++i) {
+				controllers[i] = sessions.get(i).getController();
+				pointers[i] = controllers[i] != null ? controllers[i].pointer() : 0;
+			}
+			
+			long timeout = (next == Long.MAX_VALUE) 
+					? -1 : Math.max(0, Math.min(Integer.MAX_VALUE, next - SystemClock.elapsedRealtime()));
+			
+			if(!canwakeup && (timeout < 0 || timeout > WAKEUP_FALLBACK_MILLIS))
+				timeout = WAKEUP_FALLBACK_MILLIS;
+			
+			multiplexer.wait(pointers, ready, count, (int)timeout);
+			
+			sleeping.set(false);
+			
+			/* release controller references until the next wait */
+			
+			for(int i = 0; i < count; ++i)
+				controllers[i] = null;
+		}
+		
+		/* close all sessions when the loop is quit */
+		
+		adoptSessions();
+		
+		for(Session session : sessions) {
+			session.cancel();
+			session.step(SystemClock.elapsedRealtime(), ControllerMultiplexer.READY_NONE);
+		}
+		
+		sessions.clear();
+		
+		/* free the native multiplexer and its pipe now instead of when it is collected */
+		
+		multiplexer.close();
+	}
+	
+	void adoptSessions() {
+		Session session;
+		
+		while((session = added.poll()) != null) {
+			final int index = sessions.size();
+			
+			/* the multiplexer can not wait for any more sockets */
+			
+			if(index >= ControllerMultiplexer.MAX_CONTROLLERS) {
+				Log.e(LOG_TAG, "closing session because the loop already runs " + index + " sessions");
+				
+				session.cancel();
+				session.step(SystemClock.elapsedRealtime(), ControllerMultiplexer.READY_NONE);
+				continue;
+			}
+			
+			sessions.add(session);
+			
+			if(index >= deadlines.length) {
+				final int capacity = deadlines.length * 2;
+				
+				deadlines 	= Arrays.copyOf(deadlines, capacity);
+				pointers 	= new long[capacity];
+				ready 		= Arrays.copyOf(ready, capacity);
+				controllers = new ControllerTransport[capacity];
+			}
+			
+			/* step new sessions immediately */
+			deadlines[index] = 0;
+			ready[index] = ControllerMultiplexer.READY_NONE;
+		}
+	}
+	
+	boolean hasPendingWork() {
+		if(!added.isEmpty())
+			return true;
+		
+		for(int i = 0, size = sessions.size(); i < size; ++i) {
+			if(sessions.get(i).hasPendingWork())
+				return true;
+		}
+		
+		return false;
+	}
+	
+}
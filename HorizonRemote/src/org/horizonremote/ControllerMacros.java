@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * ControllerMacros keeps the named key sequences which can be run on a controller, e.g. a 
+ * menu path or the steps of pairing a remote. Every step is a key press preceded by a delay, 
+ * macros are persisted in a file like the controllers ( see ControllerStore ):
+ * 
+ * <pre>
+ * horizonremote-macros &lt;version&gt;
+ * &lt;name&gt; TAB &lt;delay&gt;:&lt;key&gt; TAB &lt;delay&gt;:&lt;key&gt; ...
+ * </pre>
+ * 
+ * A macro runs inside the controller loop. Its steps are scheduled relative to the start of 
+ * the macro so that errors do not add up, the loop sleeps until a step is due ( see deadline )
+ * and never waits inside a step, which keeps a step within a millisecond of its time.
+ * 
+ * @author rogro82
+ */
+final class ControllerMacros {
+	
+	static final String LOG_TAG = "ControllerMacros";
+	
+	static final String FILE_NAME = "macros";
+	
+	static final String HEADER = "horizonremote-macros";
+	static final int VERSION = 1;
+	
+	static final int STEPS_MAX 			= 256;
+	static final int DELAY_MAX_MILLIS 	= 60000;
+	
+	static final class Macro {
+		final String name;
+		final int[] keys;
+		final int[] delays;
+		
+		Macro(String name, int[] keys, int[] delays) {
+			this.name 	= name;
+			this.keys 	= keys;
+			this.delays = delays;
+		}
+	}
+	
+	final File file;
+	
+	/* set when the file was written by a newer version, it is left alone in that case */
+	boolean readOnly;
+	
+	/* macros by name in the order they were defined, guarded by this */
+	final LinkedHashMap<String, Macro> macros = new LinkedHashMap<String, Macro>();
+	
+	ControllerMacros(File directory) {
+		this.file = new File(directory, FILE_NAME);
+		
+		load();
+	}
+	
+	synchronized Macro get(String name) {
+		return macros.get(name);
+	}
+	
+	synchronized String[] names() {
+		return macros.keySet().toArray(new String[macros.size()]);
+	}
+	
+	/**
+	 * Adds or replaces macro name, the key presses are preceded by their delay in millis.
+	 * 
+	 * @return false if the macro is not valid or could not be stored
+	 */
+	synchronized boolean define(String name, int[] keys, int[] delays) {
+		if(name == null || name.length() == 0 || keys == null || delays == null)
+			return false;
+		
+		if(keys.length == 0 || keys.length > STEPS_MAX || keys.length != delays.length)
+			return false;
+		
+		for(int delay : delays) {
+			if(delay < 0 || delay > DELAY_MAX_MILLIS)
+				return false;
+		}
+		
+		final Macro previous = macros.put(name, new Macro(name, keys.clone(), delays.clone()));
+		
+		if(!write()) {
+			if(previous != null)
+				macros.put(name, previous);
+			else
+				macros.remove(name);
+			
+			return false;
+		}
+		
+		return true;
+	}
+	
+	synchronized boolean remove(String name) {
+		final Macro previous = macros.remove(name);
+		
+		if(previous == null)
+			return false;
+		
+		if(!write()) {
+			macros.put(name, previous);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	void load() {
+		if(!file.exists())
+			return;
+		
+		BufferedReader reader = null;
+		
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			
+			final String header = reader.readLine();
+			
+			if(header == null || !header.startsWith(HEADER + " ")) {
+				Log.w(LOG_TAG, "ignoring " + file + " because it does not contain macros");
+				readOnly = true;
+				return;
+			}
+			
+			final int version = Integer.parseInt(header.substring(HEADER.length() + 1).trim());
+			
+			if(version > VERSION) {
+				Log.w(LOG_TAG, "ignoring " + file + " because it has version " + version);
+				readOnly = true;
+				return;
+			}
+			
+			String line;
+			
+			while((line = reader.readLine()) != null) {
+				final Macro macro = parse(line);
+				
+				if(macro != null)
+					macros.put(macro.name, macro);
+			}
+			
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "failed to read " + file, e);
+		} catch (NumberFormatException e) {
+			Log.e(LOG_TAG, "failed to read " + file, e);
+		} finally {
+			ControllerStore.close(reader);
+		}
+	}
+	
+	boolean write() {
+		if(readOnly)
+			return false;
+		
+		final StringBuilder contents = new StringBuilder(1024);
+		
+		contents.append(HEADER).append(' ').append(VERSION).append('\n');
+		
+		for(Macro macro : macros.values()) {
+			ControllerStore.escape(contents, macro.name);
+			
+			for(int i = 0; i < macro.keys.length; ++i) {
+				contents.append('\t').append(macro.delays[i]).append(':').append(macro.keys[i]);
+			}
+			
+			contents.append('\n');
+		}
+		
+		return ControllerStore.replace(file, contents);
+	}
+	
+	static Macro parse(String line) {
+		final ArrayList<String> fields = ControllerStore.fields(line);
+		final int steps = fields.size() - 1;
+		
+		if(steps < 1)
+			return null;
+		
+		final int[] keys = new int[steps];
+		final int[] delays = new int[steps];
+		
+		try {
+			for(int i = 0; i < steps; ++i) {
+				final String step = fields.get(i + 1);
+				final int separator = step.indexOf(':');
+				
+				delays[i] 	= Integer.parseInt(step.substring(0, separator));
+				keys[i] 	= Integer.parseInt(step.substring(separator + 1));
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+		
+		return new Macro(fields.get(0), keys, delays);
+	}
+	
+	/**
+	 * @return the loop time in millis at which a step which is due in remaining nanos can
+	 * be sent, rounded up so that the loop does not wake up before it is due
+	 */
+	static long deadline(long now, long remaining) {
+		if(remaining <= 0)
+			return now;
+		
+		return now + (remaining + 999999) / 1000000;
+	}
+}
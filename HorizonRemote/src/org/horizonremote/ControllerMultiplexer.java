@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import org.horizonremote.jni.JNIReference;
+
+/**
+ * ControllerMultiplexer waits for socket activity of any number of RemoteControllers with a
+ * single native poll() so that one thread can drive all of them. A wait can be interrupted
+ * from any thread through {@link #wakeup()}, unless canWakeup() is false because the native
+ * wakeup pipe could not be created. close() frees the native multiplexer and its pipe, a
+ * wakeup after that does nothing.
+ *
+ * @author rogro82
+ */
+public class ControllerMultiplexer extends JNIReference {
+
+	public static final int READY_NONE		= 0;
+	public static final int READY_RECEIVE	= 1;
+	public static final int READY_SEND		= 2;
+	public static final int READY_ERROR		= 4;
+	
+	/* maximum number of controllers which can be waited for at once */
+	public static final int MAX_CONTROLLERS = 256;
+	
+	public ControllerMultiplexer() throws JNIReferenceException {
+		super(nativeCreate());
+	}
+	
+	/**
+	 * Waits at most timeoutMillis ( -1 is infinite ) for activity on any of the controllers
+	 * or a wakeup. The native pointers of the controllers are passed in controllers ( 0 for
+	 * no controller ) and their readiness is returned in ready.
+	 * 
+	 * @return the number of ready controllers
+	 */
+	public int wait(long[] controllers, int[] ready, int count, int timeoutMillis) {
+		return nativeWait(getReferencePointer(), controllers, ready, 
+				Math.min(count, MAX_CONTROLLERS), timeoutMillis);
+	}
+	
+	public synchronized void wakeup() {
+		if(isValidReference())
+			nativeWakeup(getReferencePointer());
+	}
+	
+	/**
+	 * @return false if a wait can only end through a socket or its timeout
+	 */
+	public boolean canWakeup() {
+		return nativeCanWakeup(getReferencePointer());
+	}
+	
+	/**
+	 * Frees the native multiplexer, must be called from the thread which waits.
+	 */
+	public synchronized void close() {
+		disposeReference();
+	}
+	
+	public synchronized boolean isClosed() {
+		return !isValidReference();
+	}
+	
+	/* native methods */
+	
+	private static native long nativeCreate();
+	private static native int  nativeWait(long pointer, long[] controllers, int[] ready, int count, int timeout);
+	private static native void nativeWakeup(long pointer);
+	private static native boolean nativeCanWakeup(long pointer);
+}
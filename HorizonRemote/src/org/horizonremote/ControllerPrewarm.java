@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.View.OnTouchListener;
+
+/**
+ * ControllerPrewarm connects controllers of a list ahead of their use through a binding
+ * to the ControllerService, requests made before the service is connected are sent once 
+ * it is. It is shared by the controller lists of MainActivity and MainFragment, bind and 
+ * unbind follow the resume and pause of the activity.
+ *
+ * @author rogro82
+ */
+final class ControllerPrewarm {
+	
+	static final String LOG_TAG = "ControllerPrewarm";
+	
+	final Context context;
+	
+	IControllerService service;
+	boolean bound;
+	
+	/* ids requested while the service was not connected, in order */
+	final ArrayList<Integer> pending = new ArrayList<Integer>();
+	
+	/* touching a controller connects it while the click is still being recognized */
+	final OnTouchListener touchListener = new OnTouchListener() {
+		@Override
+		public boolean onTouch(View v, MotionEvent event) {
+			if(event.getActionMasked() == MotionEvent.ACTION_DOWN && v.getTag() instanceof Integer) {
+				prewarm((Integer)v.getTag());
+			}
+			
+			return false;
+		}
+	};
+	
+	private final ServiceConnection connection = new ServiceConnection() {
+		
+		public void onServiceConnected(ComponentName className, IBinder binder) {
+			service = IControllerService.Stub.asInterface(binder);
+			
+			for(int id : pending)
+				prewarm(id);
+			
+			pending.clear();
+		}
+		
+		public void onServiceDisconnected(ComponentName className) {
+			service = null;
+		}
+	};
+	
+	ControllerPrewarm(Context context) {
+		this.context = context;
+	}
+	
+	void bind() {
+		if(!bound) {
+			context.bindService(new Intent(context, ControllerService.class), connection, 
+					Context.BIND_AUTO_CREATE);
+			
+			bound = true;
+		}
+	}
+	
+	void unbind() {
+		if(bound) {
+			context.unbindService(connection);
+			
+			service = null;
+			pending.clear();
+			
+			bound = false;
+		}
+	}
+	
+	/**
+	 * Connects controller id ahead of its use, prewarmController is oneway so this never
+	 * waits for the service.
+	 */
+	void prewarm(int id) {
+		if(service == null) {
+			if(bound && !pending.contains(id))
+				pending.add(id);
+			
+			return;
+		}
+		
+		try {
+			service.prewarmController(id);
+		} catch (RemoteException e) {
+			Log.w(LOG_TAG, "could not prewarm controller " + id, e);
+		}
+	}
+	
+	/**
+	 * Connects the first controllers of list ahead of their use, in reverse so that the 
+	 * first one is the most recently prewarmed.
+	 */
+	void prewarm(List<ControllerInfo> list) {
+		for(int i = Math.min(list.size(), ControllerService.WARM_CONTROLLERS_MAX) - 1; i >= 0; --i) {
+			prewarm(list.get(i).id);
+		}
+	}
+}
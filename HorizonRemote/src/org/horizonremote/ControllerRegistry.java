@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * ControllerRegistry is the process wide, in-memory copy of the controller records which
+ * are persisted by a ControllerStore. It is loaded once, every change goes through the
+ * registry which writes the store and publishes a new immutable snapshot: readers never 
+ * take a lock and lookups by id are a binary search which allocates nothing, whatever the 
+ * ids in the store or the preferences it was migrated from. A change which
+ * could not be written is not published, so the registry never shows what is not stored.
+ * 
+ * @author rogro82
+ */
+final class ControllerRegistry {
+	
+	static volatile ControllerRegistry instance;
+	
+	static final class Snapshot {
+		
+		/* in order of their id, ids[i] is the id of list.get(i) */
+		final List<ControllerInfo> list;
+		final int[] ids;
+		
+		/**
+		 * @param records in order of their id without duplicates
+		 */
+		Snapshot(List<ControllerInfo> records) {
+			final ArrayList<ControllerInfo> list = new ArrayList<ControllerInfo>(records);
+			
+			ids = new int[list.size()];
+			
+			for(int i = 0; i < ids.length; ++i)
+				ids[i] = list.get(i).id;
+			
+			this.list = Collections.unmodifiableList(list);
+		}
+		
+		ControllerInfo get(int id) {
+			final int index = Arrays.binarySearch(ids, id);
+			return index >= 0 ? list.get(index) : null;
+		}
+		
+		/**
+		 * @return the records with info set, replacing the record with its id
+		 */
+		ArrayList<ControllerInfo> with(ControllerInfo info) {
+			final ArrayList<ControllerInfo> records = new ArrayList<ControllerInfo>(list);
+			final int index = Arrays.binarySearch(ids, info.id);
+			
+			if(index >= 0)
+				records.set(index, info);
+			else
+				records.add(-index - 1, info);
+			
+			return records;
+		}
+		
+		/**
+		 * @return the records without the record with id
+		 */
+		ArrayList<ControllerInfo> without(int id) {
+			final ArrayList<ControllerInfo> records = new ArrayList<ControllerInfo>(list);
+			final int index = Arrays.binarySearch(ids, id);
+			
+			if(index >= 0)
+				records.remove(index);
+			
+			return records;
+		}
+	}
+	
+	final ControllerStore store;
+	
+	volatile Snapshot snapshot;
+	
+	/* next id to be allocated, only changed with the registry lock held */
+	int nextId;
+	
+	private ControllerRegistry(Context context) {
+		this(new ControllerStore(context.getFilesDir()), PreferenceManager.getDefaultSharedPreferences(context));
+	}
+	
+	ControllerRegistry(ControllerStore store, SharedPreferences prefs) {
+		this.store = store;
+		store.load(prefs);
+		
+		/* sorted by id, a later record with the same id replaces an earlier one */
+		
+		final TreeMap<Integer, ControllerInfo> byId = new TreeMap<Integer, ControllerInfo>();
+		
+		for(ControllerInfo info : store.records) {
+			if(info.id >= 0)
+				byId.put(info.id, info);
+		}
+		
+		store.records.clear();
+		
+		nextId = store.nextId;
+		snapshot = new Snapshot(new ArrayList<ControllerInfo>(byId.values()));
+	}
+	
+	static ControllerRegistry get(Context context) {
+		final ControllerRegistry registry = instance;
+		if(registry != null)
+			return registry;
+		
+		synchronized(ControllerRegistry.class) {
+			if(instance == null) {
+				instance = new ControllerRegistry(context.getApplicationContext());
+			}
+			
+			return instance;
+		}
+	}
+	
+	ControllerInfo get(int id) {
+		return snapshot.get(id);
+	}
+	
+	List<ControllerInfo> list() {
+		return snapshot.list;
+	}
+	
+	/**
+	 * Adds a controller with a new id.
+	 * 
+	 * @return the new controller or null if it could not be stored or the ids ran out
+	 */
+	synchronized ControllerInfo add(String name, String address, String transport) {
+		if(nextId == Integer.MAX_VALUE)
+			return null;
+		
+		final int id = nextId++;
+		final ControllerInfo info = new ControllerInfo(id, ControllerInfo.key(id), name, address, transport);
+		
+		if(!publish(snapshot.with(info))) {
+			nextId = id;
+			return null;
+		}
+		
+		return info;
+	}
+	
+	/**
+	 * Replaces the record with the id of info.
+	 * 
+	 * @return false if there is no such record or the change could not be stored
+	 */
+	synchronized boolean update(ControllerInfo info) {
+		if(get(info.id) == null)
+			return false;
+		
+		return publish(snapshot.with(info));
+	}
+	
+	/**
+	 * @return false if there is no such record or the change could not be stored
+	 */
+	synchronized boolean remove(int id) {
+		if(get(id) == null)
+			return false;
+		
+		return publish(snapshot.without(id));
+	}
+	
+	/**
+	 * Stores records and makes them the current snapshot when they were stored, called
+	 * with the lock held.
+	 * 
+	 * @return false if the store could not be written
+	 */
+	boolean publish(List<ControllerInfo> records) {
+		final Snapshot next = new Snapshot(records);
+		
+		if(!store.write(next.list, nextId))
+			return false;
+		
+		snapshot = next;
+		return true;
+	}
+	
+	/**
+	 * @return the id of a record key or -1 when key is not a record key
+	 */
+	static int recordId(String key) {
+		if(!key.startsWith(ControllerInfo.CONTROLLER_PREFIX))
+			return -1;
+		
+		try {
+			return Integer.parseInt(key.substring(ControllerInfo.CONTROLLER_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+/**
+ * ControllerRepeat generates the presses of a held key next to the connection, so that
+ * holding a key costs the client a single hold and release event instead of one call per
+ * repeat. A key is pressed once when it is held and repeats after the delay:
+ * 
+ * - the first repeats follow each other at rate presses per second.
+ * - the rate grows by acceleration percent of the initial rate for every second the key
+ *   is held, up to RATE_MAX.
+ * - a repeat that is late is sent once, missed repeats are not made up for.
+ * - a key is released after HOLD_MAX_MILLIS in case its release never arrives.
+ * 
+ * Only one key repeats at a time, holding another key replaces it. Times are in 
+ * SystemClock.elapsedRealtime() millis.
+ * 
+ * @author rogro82
+ */
+final class ControllerRepeat {
+	
+	static final int DEFAULT_DELAY_MILLIS 	= 400;
+	static final int DEFAULT_RATE 			= 8;
+	static final int DEFAULT_ACCELERATION 	= 25;
+	
+	static final int RATE_MAX 				= 25;
+	static final int HOLD_MAX_MILLIS 		= 30000;
+	
+	int delay 			= DEFAULT_DELAY_MILLIS;
+	int rate 			= DEFAULT_RATE;
+	int acceleration 	= DEFAULT_ACCELERATION;
+	
+	/* key being held, -1 when no key is held */
+	int key = -1;
+	
+	long holdtime;
+	long next;
+	
+	/**
+	 * Applies to keys held from now on.
+	 */
+	void configure(int delay, int rate, int acceleration) {
+		this.delay 			= Math.max(0, delay);
+		this.rate 			= Math.max(1, Math.min(RATE_MAX, rate));
+		this.acceleration 	= Math.max(0, acceleration);
+	}
+	
+	void hold(int key, long now) {
+		this.key 		= key;
+		this.holdtime 	= now;
+		this.next 		= now + delay;
+	}
+	
+	void release() {
+		key = -1;
+	}
+	
+	/**
+	 * Releases key if it is the one which repeats, the release of a key which has been 
+	 * replaced by another held key leaves the other key repeating.
+	 */
+	void release(int key) {
+		if(this.key == key)
+			release();
+	}
+	
+	boolean isHeld() {
+		return key >= 0;
+	}
+	
+	/**
+	 * @return the key to press now or -1 if no repeat is due
+	 */
+	int poll(long now) {
+		if(key < 0 || now < next)
+			return -1;
+		
+		final long held = now - holdtime;
+		
+		if(held >= HOLD_MAX_MILLIS) {
+			release();
+			return -1;
+		}
+		
+		final long repeating = held - delay;
+		final long current = Math.min(RATE_MAX, rate + rate * acceleration * repeating / 100000);
+		final long interval = 1000 / current;
+		
+		next += interval;
+		
+		if(next <= now)
+			next = now + interval;
+		
+		return key;
+	}
+	
+	/**
+	 * @return the time at which poll has to be called again
+	 */
+	long nextDeadline() {
+		if(key < 0)
+			return Long.MAX_VALUE;
+		
+		return Math.min(next, holdtime + HOLD_MAX_MILLIS);
+	}
+}
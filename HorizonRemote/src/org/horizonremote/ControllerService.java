@@ -16,12 +16,27 @@
 
 package org.horizonremote;
 
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class ControllerService extends Service {
@@ -37,10 +52,93 @@ public class ControllerService extends Service {
 	public static final int EVENT_KEY_DOWN 			= 1;
 	public static final int EVENT_KEY_UP 			= 2;
 	public static final int EVENT_RECONNECT 		= 3;
+	public static final int EVENT_PREWARM 			= 4;
+	public static final int EVENT_KEY_HOLD 			= 5;
+	public static final int EVENT_KEY_RELEASE 		= 6;
+	
+	/* indexes of the counters returned by getEventCounters */
+	public static final int COUNTER_QUEUE_FULL 		= 0;
+	public static final int COUNTER_EXPIRED 		= 1;
+	public static final int COUNTER_COLLAPSED 		= 2;
+	public static final int COUNTER_DISCARDED 		= 3;
+	public static final int COUNTER_PREEMPTED 		= 4;
+	
+	/* stages of the histograms returned by getLatencies, see ControllerLatency */
+	public static final int LATENCY_BINDER 			= 0;
+	public static final int LATENCY_DISPATCH 		= 1;
+	public static final int LATENCY_QUEUE 			= 2;
+	public static final int LATENCY_LOOP 			= 3;
+	public static final int LATENCY_SEND 			= 4;
+	
+	/* marks the end of the keys of a channel tune, data is its ticket */
+	static final int EVENT_TUNED 					= 7;
+	
+	/* results reported by IControllerMacroCallback.onMacroFinished */
+	public static final int MACRO_DONE 				= 0;
+	public static final int MACRO_CANCELLED 		= 1;
+	public static final int MACRO_FAILED 			= 2;
+	
+	/* results of ControllerInstance.tuneChannel */
+	static final int TUNE_QUEUED 					= 0;
+	static final int TUNE_DROPPED 					= 1;
+	static final int TUNE_REMOVED 					= 2;
+	
+	/* capacity of the urgent lane of every controller */
+	static final int URGENT_CAPACITY 				= 16;
+	
+	/* number of unused connections kept warm and how long they are kept */
+	static final int WARM_CONTROLLERS_MAX			= 3;
+	static final int WARM_IDLE_MILLIS 				= 60000;
+	
+	/* drive all controllers from a single ControllerLoop instead of one thread per controller */
+	public static final String PREF_SHARED_LOOP		= "shared_loop";
+	
+	/* repeat of held keys, see ControllerRepeat */
+	public static final String PREF_REPEAT_DELAY 		= "repeat_delay";
+	public static final String PREF_REPEAT_RATE 		= "repeat_rate";
+	public static final String PREF_REPEAT_ACCELERATION = "repeat_acceleration";
+	
+	/* how long queued key presses are kept and if urgent keys cancel them, see ControllerEventPolicy */
+	public static final String PREF_EVENT_TTL 			= "event_ttl";
+	public static final String PREF_URGENT_PREEMPTS 	= "urgent_preempts";
 	
 	boolean started;
-	final ArrayList<ControllerInstance> instances = 
-			new ArrayList<ControllerInstance>();
+	
+	/* active instances indexed by controller id, lookups do not take a lock */
+	final ConcurrentHashMap<Integer, ControllerInstance> instances = 
+			new ConcurrentHashMap<Integer, ControllerInstance>();
+	
+	/* instances every callback binder is registered with */
+	final HashMap<IBinder, ArrayList<ControllerInstance>> registrations = 
+			new HashMap<IBinder, ArrayList<ControllerInstance>>();
+	
+	/* prewarmed instances in least recently used order */
+	final LinkedHashMap<Integer, ControllerInstance> warm = 
+			new LinkedHashMap<Integer, ControllerInstance>(8, 0.75f, true);
+	
+	ControllerLoop sharedLoop;
+	
+	/* state updates are delivered to callbacks on this thread so that a slow client 
+	 * never delays a controller loop */
+	HandlerThread broadcastThread;
+	Handler broadcastHandler;
+	
+	/* events from the oneway event channels are handed to the instances on this thread so 
+	 * that a client never waits for a controller which is ( re ) connecting */
+	HandlerThread eventThread;
+	Handler eventHandler;
+	
+	/* host names are looked up on this thread as a lookup blocks until the network answers */
+	HandlerThread resolverThread;
+	Handler resolverHandler;
+	
+	/* spreads out the connection retries of controllers which failed together */
+	final Random jitter = new Random();
+	
+	ControllerMacros macros;
+	
+	/* identifies the channel tunes waiting for their keys to be sent */
+	final AtomicInteger tickets = new AtomicInteger();
 	
 	@Override
 	public void onCreate() {
@@ -48,9 +146,39 @@ public class ControllerService extends Service {
 			this.startService(new Intent(this, ControllerService.class));
 		}
 
+		broadcastThread = new HandlerThread("ControllerBroadcast");
+		broadcastThread.start();
+		broadcastHandler = new Handler(broadcastThread.getLooper());
+		
+		eventThread = new HandlerThread("ControllerEvents");
+		eventThread.start();
+		eventHandler = new Handler(eventThread.getLooper());
+		
+		resolverThread = new HandlerThread("ControllerResolver");
+		resolverThread.start();
+		resolverHandler = new Handler(resolverThread.getLooper());
+		
+		macros = new ControllerMacros(getFilesDir());
+		
 		super.onCreate();
 	}	
 	
+	@Override
+	public void onDestroy() {
+		synchronized(this) {
+			if(sharedLoop != null) {
+				sharedLoop.quit();
+				sharedLoop = null;
+			}
+		}
+		
+		broadcastThread.quit();
+		eventThread.quit();
+		resolverThread.quit();
+		
+		super.onDestroy();
+	}
+	
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		if(!started) {
@@ -66,7 +194,7 @@ public class ControllerService extends Service {
 			int action 	= intent.getIntExtra(EXTRA_EVENT_ACTION, EVENT_KEY_PRESS);
 			int data 	= intent.getIntExtra(EXTRA_EVENT_DATA, 0);
 			
-			getControllerInstance(id).dispatchEvent(action, data);
+			dispatchEvent(id, action, data);
 		}
 		
 		return Service.START_STICKY;
@@ -82,8 +210,16 @@ public class ControllerService extends Service {
 		public void unregisterCallback(IControllerCallback cb)
 				throws RemoteException {
 			
-			synchronized(instances) {
-				for(ControllerInstance instance : instances) {
+			/* only visit the instances this callback is registered with */
+			
+			ArrayList<ControllerInstance> registered;
+			
+			synchronized(registrations) {
+				registered = registrations.remove(cb.asBinder());
+			}
+			
+			if(registered != null) {
+				for(ControllerInstance instance : registered) {
 					instance.unregisterCallback(cb);
 				}
 			}
@@ -93,301 +229,1701 @@ public class ControllerService extends Service {
 		public void registerCallback(IControllerCallback cb, int id)
 				throws RemoteException {
 			
-			getControllerInstance(id)
-				.registerCallback(cb);
+			/* retry in case the instance finished while we were registering */
+			
+			ControllerInstance instance;
+			
+			do {
+				instance = getControllerInstance(id);
+			} while(!instance.registerCallback(cb));
 		}
 		
 		@Override
 		public void dispatchEvent(int id, int action, int data)
 				throws RemoteException {
 			
-			getControllerInstance(id)
-				.dispatchEvent(action, data);
+			ControllerService.this.dispatchEvent(id, action, data);
 		}
-	};
-	
-	ControllerInstance getControllerInstance(int id) {
-		synchronized(instances) {
+		
+		@Override
+		public void dispatchEvents(int id, int[] actions, int[] data)
+				throws RemoteException {
 			
-			/* see if we already have a ControllerInstance with this id */
+			ControllerService.this.dispatchEvents(id, actions, data);
+		}
+		
+		@Override
+		public IControllerEvents openEventChannel() throws RemoteException {
+			return new EventChannel();
+		}
+		
+		@Override
+		public void prewarmController(int id) throws RemoteException {
+			ControllerService.this.prewarmController(id);
+		}
+		
+		@Override
+		public boolean defineMacro(String name, int[] keys, int[] delays) throws RemoteException {
+			return macros.define(name, keys, delays);
+		}
+		
+		@Override
+		public boolean removeMacro(String name) throws RemoteException {
+			return macros.remove(name);
+		}
+		
+		@Override
+		public String[] getMacros() throws RemoteException {
+			return macros.names();
+		}
+		
+		@Override
+		public boolean runMacro(int id, String name, IControllerMacroCallback cb) throws RemoteException {
+			return ControllerService.this.runMacro(id, name, cb);
+		}
+		
+		@Override
+		public void cancelMacro(int id) throws RemoteException {
+			final ControllerInstance instance = instances.get(id);
 			
-			for(ControllerInstance instance : instances) {
-				if(instance.id == id)
-					return instance;
-			}
+			if(instance != null)
+				instance.cancelMacro();
+		}
+		
+		@Override
+		public boolean tuneChannel(int id, int channel, boolean ok, IControllerTuneCallback cb) 
+				throws RemoteException {
+			return ControllerService.this.tuneChannel(id, channel, ok, cb);
+		}
+		
+		@Override
+		public int[] getEventCounters(int id) throws RemoteException {
+			final ControllerInstance instance = instances.get(id);
 			
-			/* start a new ControllerInstance for id */
-
-			Log.d(LOG_TAG, "creating new controller for id: " + id);
+			return instance != null ? instance.policy.counters() : null;
+		}
+		
+		@Override
+		public int[] getLatencies(int id) throws RemoteException {
+			final ControllerInstance instance = instances.get(id);
 			
-			ControllerInstance instance = new ControllerInstance(id);
-			instances.add(instance);
+			return instance != null ? instance.latency.histograms() : null;
+		}
+		
+		@Override
+		public void resetLatencies(int id) throws RemoteException {
+			final ControllerInstance instance = instances.get(id);
 			
-			return instance;
+			if(instance != null)
+				instance.latency.reset();
 		}
+	};
+	
+	void dispatchEvent(int id, int action, int data) {
+		dispatchEvent(id, action, data, 0, System.nanoTime());
 	}
 	
-	class ControllerInstance {
+	/**
+	 * @param tapped stamp of the tap which caused the event or 0 when it is not known
+	 * @param received stamp of the receipt of the event by the service
+	 */
+	void dispatchEvent(int id, int action, int data, long tapped, long received) {
+		if(action == EVENT_PREWARM) {
+			prewarmController(id);
+			return;
+		}
 		
-		int id;
-		ControllerThread thread;
-		volatile int state;
+		/* retry in case the instance finished while we were dispatching */
 		
-		final ArrayList<IControllerCallback> callbacks = 
-				new ArrayList<IControllerCallback>();
+		while(!getControllerInstance(id).dispatchEvent(action, data, tapped, received))
+			;
+	}
+	
+	/**
+	 * Connects controller id ahead of its use, at most WARM_CONTROLLERS_MAX unused 
+	 * connections are kept and the least recently prewarmed ones are closed first.
+	 */
+	void prewarmController(int id) {
+		ControllerInstance instance;
 		
-		final ArrayList<ControllerEvent> events = 
-				new ArrayList<ControllerEvent>();
+		do {
+			instance = getControllerInstance(id);
+		} while(!instance.prewarm());
 		
-		public ControllerInstance(int id) {
-			this.id = id;
-		}
+		ArrayList<ControllerInstance> evicted = null;
 		
-		void startController(boolean forceRestart) {
-			if(forceRestart && thread != null) {
-				try {
+		synchronized(warm) {
+			warm.put(id, instance);
+			
+			int excess = warm.size() - WARM_CONTROLLERS_MAX;
+			
+			for(Iterator<ControllerInstance> it = warm.values().iterator(); excess > 0 && it.hasNext();) {
+				final ControllerInstance candidate = it.next();
+				
+				/* instances with callbacks are in use and not part of the pool */
+				
+				if(candidate != instance && candidate.callbackCount == 0) {
+					it.remove();
+					excess--;
 					
-					/* force stop possibly active thread */
-					thread.cancel();
-					thread.join(500);
+					if(evicted == null)
+						evicted = new ArrayList<ControllerInstance>(1);
 					
-				} catch (InterruptedException e) {
+					evicted.add(candidate);
 				}
-				
-				thread = null;
 			}
+		}
+		
+		if(evicted != null) {
+			for(ControllerInstance candidate : evicted)
+				candidate.expire();
+		}
+	}
+	
+	/**
+	 * Runs macro name on controller id, replacing the macro it is running.
+	 * 
+	 * @return false if there is no macro with this name
+	 */
+	boolean runMacro(int id, String name, IControllerMacroCallback cb) {
+		final ControllerMacros.Macro macro = macros.get(name);
+		
+		if(macro == null)
+			return false;
+		
+		ControllerInstance instance;
+		
+		do {
+			instance = getControllerInstance(id);
+		} while(!instance.runMacro(macro, cb));
+		
+		return true;
+	}
+	
+	/**
+	 * Tunes controller id to a channel by pressing its digits, and OK if ok is set. The keys 
+	 * are queued as one batch so that they are sent in one go, well within the time the box 
+	 * waits for the next digit. cb is told once the keys have been sent.
+	 * 
+	 * @return false if channel is not a valid channel number, or if the keys did not fit in 
+	 * the queue of the controller in which case cb has been told so
+	 */
+	boolean tuneChannel(int id, int channel, boolean ok, IControllerTuneCallback cb) {
+		if(channel < 0)
+			return false;
+		
+		final String digits = Integer.toString(channel);
+		final int count = digits.length() + (ok ? 2 : 1);
+		
+		final int[] actions = new int[count];
+		final int[] data = new int[count];
+		
+		for(int i = 0; i < digits.length(); ++i) {
+			actions[i] 	= EVENT_KEY_PRESS;
+			data[i] 	= RemoteController.KEY_NUM_0 + (digits.charAt(i) - '0');
+		}
+		
+		if(ok) {
+			actions[count - 2] 	= EVENT_KEY_PRESS;
+			data[count - 2] 	= RemoteController.KEY_OK;
+		}
+		
+		final int ticket = tickets.incrementAndGet();
+		
+		actions[count - 1] 	= EVENT_TUNED;
+		data[count - 1] 	= ticket;
+		
+		/* retry in case the instance finished while we were dispatching */
+		
+		ControllerInstance instance;
+		int result;
+		
+		do {
+			instance = getControllerInstance(id);
+		} while((result = instance.tuneChannel(actions, data, count, channel, ticket, cb)) == TUNE_REMOVED);
+		
+		return result == TUNE_QUEUED;
+	}
+	
+	void dispatchEvents(int id, int[] actions, int[] data) {
+		dispatchEvents(id, actions, data, 0, System.nanoTime());
+	}
+	
+	void dispatchEvents(int id, int[] actions, int[] data, long tapped, long received) {
+		final int count = Math.min(actions.length, data.length);
+		
+		/* retry in case the instance finished while we were dispatching */
+		
+		while(!getControllerInstance(id).dispatchEvents(actions, data, count, tapped, received))
+			;
+	}
+	
+	static final class EventBatch {
+		final int sequence;
+		final int id;
+		final int[] actions;
+		final int[] data;
+		
+		/* stamps of the tap and the receipt, see ControllerLatency */
+		final long tapped;
+		final long received;
+		
+		EventBatch(int sequence, int id, int[] actions, int[] data, long tapped, long received) {
+			this.sequence = sequence;
+			this.id = id;
+			this.actions = actions;
+			this.data = data;
+			this.tapped = tapped;
+			this.received = received;
+		}
+	}
+	
+	/**
+	 * EventChannel is the service side of the oneway event path of a single client. Calls 
+	 * return immediately, the events are handed to the instances on the event thread in the 
+	 * order of the sequence numbers assigned by the client ( starting at 0 ) regardless of the 
+	 * order in which the calls arrived.
+	 */
+	class EventChannel extends IControllerEvents.Stub implements Runnable {
+		
+		/* number of early batches we hold on to before giving up on a missing one */
+		static final int MAX_OUT_OF_ORDER = 64;
+		
+		/* sequence number of the next batch to be delivered, guarded by this */
+		int sequence;
+		
+		final HashMap<Integer, EventBatch> early = new HashMap<Integer, EventBatch>();
+		final ArrayDeque<EventBatch> ready = new ArrayDeque<EventBatch>();
+		
+		boolean scheduled;
+		
+		@Override
+		public void dispatchEvent(int sequence, int id, int action, int data, long tapped) {
+			final long received = System.nanoTime();
 			
-			/* start thread if its not already running */
-			
-			if(thread == null || !thread.isAlive()) {
-				thread = new ControllerThread();
-				thread.start();
-			}
+			enqueue(new EventBatch(sequence, id, new int[] { action }, new int[] { data }, tapped, received));
 		}
 		
-		public void registerCallback(IControllerCallback cb) {
-			synchronized(callbacks) {
-				try {
-					callbacks.add(cb);
-					cb.OnControllerStateUpdate(id, state);
-					Log.d(LOG_TAG, "registered callback @ controller " + id);
-					
-				} catch(Exception ex) {
-					/* remove dead callback */
-					Log.d(LOG_TAG, "removed dead callback @ controller " + id);
-					callbacks.remove(cb);
-				}
-			}
-
-			/* start controller if its not running */
-			startController(false);
+		@Override
+		public void dispatchEvents(int sequence, int id, int[] actions, int[] data, long tapped) {
+			final long received = System.nanoTime();
+			
+			enqueue(new EventBatch(sequence, id, actions, data, tapped, received));
 		}
 		
-		public void unregisterCallback(IControllerCallback cb) {
-			synchronized(callbacks) {
-				if(callbacks.remove(cb)) {
-					Log.d(LOG_TAG, "unregistered callback @ controller " + id);
+		synchronized void enqueue(EventBatch batch) {
+			if(batch.sequence != sequence) {
+				early.put(batch.sequence, batch);
+				
+				if(early.size() <= MAX_OUT_OF_ORDER)
+					return;
+				
+				/* the batch we are waiting for is lost, continue with the oldest one we have */
+				
+				int skip = Integer.MAX_VALUE;
+				for(int pending : early.keySet()) {
+					skip = Math.min(skip, pending - sequence);
 				}
+				
+				Log.w(LOG_TAG, "skipped " + skip + " missing event batches");
+				
+				sequence += skip;
+				batch = early.remove(sequence);
+			}
+			
+			do {
+				ready.add(batch);
+				sequence++;
+				
+				batch = early.isEmpty() ? null : early.remove(sequence);
+			} while(batch != null);
+			
+			if(!scheduled) {
+				scheduled = true;
+				eventHandler.post(this);
 			}
 		}
 		
-		public void dispatchEvent(int action, int data) {
-				switch(action) {
-				case EVENT_RECONNECT:
-					/* handle reconnect event locally */
-					startController(data > 0);
-					break;
-				default:
-					/* start controller if its not running */
-					startController(false);
+		@Override
+		public void run() {
+			for(;;) {
+				EventBatch batch;
+				
+				synchronized(this) {
+					batch = ready.poll();
 					
-					/* schedule event */
-					synchronized(events) {
-						events.add(new ControllerEvent(action, data));
+					if(batch == null) {
+						scheduled = false;
+						return;
 					}
-					break;
 				}
+				
+				if(batch.actions.length == 1) {
+					ControllerService.this.dispatchEvent(batch.id, batch.actions[0], batch.data[0], 
+							batch.tapped, batch.received);
+				} else {
+					ControllerService.this.dispatchEvents(batch.id, batch.actions, batch.data, 
+							batch.tapped, batch.received);
+				}
+			}
 		}
-		
-		void updateState(int state) {
-			this.state = state;
+	}
+	
+	/**
+	 * @return false if cb was already registered with instance
+	 */
+	boolean addRegistration(IControllerCallback cb, ControllerInstance instance) {
+		synchronized(registrations) {
+			ArrayList<ControllerInstance> registered = registrations.get(cb.asBinder());
 			
-			synchronized(callbacks) {
-				for(IControllerCallback cb : callbacks) {
-					try {
-						cb.OnControllerStateUpdate(id, state);
-					} catch (RemoteException e) {
-						/* remove dead callback */
-						Log.d(LOG_TAG, "removed dead callback @ controller " + id);						
-						callbacks.remove(cb);
-					}
-				}
+			if(registered == null) {
+				registered = new ArrayList<ControllerInstance>(1);
+				registrations.put(cb.asBinder(), registered);
 			}
 			
-			/* clear any unhandled events */
+			if(registered.contains(instance))
+				return false;
 			
-			if(state == RemoteController.STATE_DISCONNECTED) {
-				synchronized(events) {
-					events.clear();
-				}
+			registered.add(instance);
+			return true;
+		}
+	}
+	
+	void removeRegistration(IControllerCallback cb, ControllerInstance instance) {
+		synchronized(registrations) {
+			ArrayList<ControllerInstance> registered = registrations.get(cb.asBinder());
+			
+			if(registered != null && registered.remove(instance) && registered.isEmpty()) {
+				registrations.remove(cb.asBinder());
 			}
 		}
+	}
+	
+	boolean useSharedLoop() {
+		return PreferenceManager.getDefaultSharedPreferences(this)
+				.getBoolean(PREF_SHARED_LOOP, false);
+	}
+	
+	void configureRepeat(ControllerRepeat repeat) {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		
+		repeat.configure(
+				getIntPreference(prefs, PREF_REPEAT_DELAY, ControllerRepeat.DEFAULT_DELAY_MILLIS),
+				getIntPreference(prefs, PREF_REPEAT_RATE, ControllerRepeat.DEFAULT_RATE),
+				getIntPreference(prefs, PREF_REPEAT_ACCELERATION, ControllerRepeat.DEFAULT_ACCELERATION));
+	}
+	
+	void configurePolicy(ControllerEventPolicy policy) {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		
+		policy.configure(
+				getIntPreference(prefs, PREF_EVENT_TTL, ControllerEventPolicy.DEFAULT_TTL_MILLIS),
+				prefs.getBoolean(PREF_URGENT_PREEMPTS, true));
+	}
+	
+	/**
+	 * @return the value of an integer preference which is stored as a string by a ListPreference
+	 */
+	static int getIntPreference(SharedPreferences prefs, String key, int defaultValue) {
+		try {
+			return Integer.parseInt(prefs.getString(key, Integer.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	synchronized ControllerLoop getSharedLoop() {
+		if(sharedLoop == null) {
+			sharedLoop = new ControllerLoop("ControllerLoop", true);
+			sharedLoop.start();
+		}
+		
+		return sharedLoop;
+	}
+	
+	ControllerInstance getControllerInstance(int id) {
+		
+		/* see if we already have a ControllerInstance with this id */
+		
+		ControllerInstance instance = instances.get(id);
+		if(instance != null)
+			return instance;
+		
+		/* start a new ControllerInstance for id */
 		
-		class ControllerThread extends Thread {
+		synchronized(instances) {
+			instance = instances.get(id);
 			
-			static final int EVENT_INTERVAL_MILLIS 			= 100;
-			static final int CONNECTION_RETRY_COUNT			= 3;
-			static final int CONNECTION_RETRY_MILLIS 		= 500;
-			static final int CONNECTION_POLL_MILLIS 		= 5000;
-			static final int CONNECTION_INACTIVITY_MILLIS 	= 30000;
+			if(instance == null) {
+				Log.d(LOG_TAG, "creating new controller for id: " + id);
+				
+				instance = new ControllerInstance(id);
+				instances.put(id, instance);
+			}
 			
-			boolean shouldstop;
-			long lastpoll;
-			long lastevent;
+			return instance;
+		}
+	}
+	
+	class ControllerInstance {
+		
+		int id;
+		volatile ControllerSession session;
+		volatile int state;
+		
+		/* set once the instance has been removed from instances, guarded by this */
+		volatile boolean removed;
+		
+		/* number of registered callbacks, only modified while holding this */
+		volatile int callbackCount;
+		
+		/* time of the last prewarm request */
+		volatile long prewarmed = Long.MIN_VALUE / 2;
+		
+		/* macro requested to run, replaced by a newer request and only modified while holding this */
+		volatile MacroRun macro;
+		
+		/* state as last delivered to the callbacks, only used on the broadcast thread */
+		int broadcastState = Integer.MIN_VALUE;
+		
+		final AtomicBoolean broadcastPending = new AtomicBoolean();
+		final AtomicBoolean failurePending = new AtomicBoolean();
+		
+		final RemoteCallbackList<IControllerCallback> callbacks = 
+				new RemoteCallbackList<IControllerCallback>() {
+			@Override
+			public void onCallbackDied(IControllerCallback cb) {
+				/* the client process died without unregistering */
+				Log.d(LOG_TAG, "removed dead callback @ controller " + id);
+				
+				callbackRemoved(cb);
+			}
+		};
+		
+		final ControllerEventQueue events = 
+				new ControllerEventQueue();
+		
+		/* lane for keys which jump ahead of the other events, see ControllerEventPolicy.isUrgent */
+		final ControllerEventQueue urgent = 
+				new ControllerEventQueue(URGENT_CAPACITY);
+		
+		final ControllerEventPolicy policy = 
+				new ControllerEventPolicy();
+		
+		final ControllerLatency latency = 
+				new ControllerLatency();
+		
+		/* channel tunes whose keys are queued, by ticket */
+		final ConcurrentHashMap<Integer, Tune> tunes = 
+				new ConcurrentHashMap<Integer, Tune>();
+		
+		public ControllerInstance(int id) {
+			this.id = id;
+		}
+		
+		/**
+		 * Starts the controller if its not running or wakes it up otherwise.
+		 * 
+		 * @return false if this instance has been removed and can no longer be started
+		 */
+		boolean startController(boolean forceRestart) {
 			
-			RemoteController controller;
-
-			final ArrayList<ControllerEvent> batch = 
-					new ArrayList<ControllerEvent>();
+			/* fast path for a running session which only needs to be woken up */
 			
-			public void cancel() {
-				this.shouldstop = true;
+			final ControllerSession current = session;
+			if(!forceRestart && current != null && !current.closed && !removed) {
+				current.loop.wakeup();
+				return true;
 			}
 			
-			@Override
-			public void run() {
-
-				updateState(RemoteController.STATE_CONNECTING);
+			synchronized(this) {
+				if(removed)
+					return false;
 				
-				/* get controller properties */
+				restartController(forceRestart);
+				return true;
+			}
+		}
+		
+		void restartController(boolean forceRestart) {
+			if(forceRestart && session != null) {
 				
-				ControllerInfo info = ControllerInfo.get(ControllerService.this, id);
-				if(info != null) { 
+				/* force stop possibly active session, it closes on its own loop. We can not 
+				 * wait for that here as closing needs the lock we are holding */
+				session.cancel();
+				session = null;
+			}
+			
+			/* start session if its not already running */
+			
+			if(session == null || session.closed) {
+				final ControllerLoop loop = getControllerLoop();
 				
-					Log.d(LOG_TAG, "starting controller (name: "+ info.name +", addr: " + info.address +")");				
-					
-					try {
-						
-						controller = new RemoteController(info.address);
-						controller.connect();
-						
-						Log.d(LOG_TAG, "controller connected");
-	
-						int retrycnt = 0;
-						
-						while(controller.getState() != RemoteController.STATE_CONNECTED 
-								&& retrycnt < CONNECTION_RETRY_COUNT) {
+				session = new ControllerSession(loop);
+				loop.add(session);
+				
+				if(!loop.shared) {
+					loop.start();
+				}
+			}
+		}
+		
+		/**
+		 * @return false if this instance has been removed and the callback was not registered
+		 */
+		public boolean registerCallback(final IControllerCallback cb) {
+			synchronized(this) {
+				if(removed)
+					return false;
+				
+				/* callbacks can only be added while holding the instance lock so that 
+				 * an instance with callbacks is never removed, a callback whose process
+				 * already died is not registered at all */
+				
+				if(callbacks.register(cb)) {
+					if(addRegistration(cb, this)) {
+						callbackCount++;
+					}
+					
+					Log.d(LOG_TAG, "registered callback @ controller " + id);
+					
+					/* deliver the current state to the new callback only */
+					
+					broadcastHandler.post(new Runnable() {
+						@Override
+						public void run() {
 							try {
-								/* sleep before retrying */
-								Thread.sleep(CONNECTION_RETRY_MILLIS);
-							} catch (InterruptedException e) {
+								cb.OnControllerStateUpdate(id, state);
+							} catch (RemoteException e) {
 							}
+						}
+					});
+				}
+				
+				/* start controller if its not running */
+				restartController(false);
+			}
+			
+			return true;
+		}
+		
+		public void unregisterCallback(IControllerCallback cb) {
+			if(callbacks.unregister(cb)) {
+				Log.d(LOG_TAG, "unregistered callback @ controller " + id);
+				
+				callbackRemoved(cb);
+			}
+		}
+		
+		void callbackRemoved(IControllerCallback cb) {
+			synchronized(this) {
+				callbackCount--;
+			}
+			
+			removeRegistration(cb, this);
+			
+			/* a client which goes away can not release the key it is holding */
+			
+			final ControllerSession current = session;
+			if(current != null)
+				current.releaseKeys();
+		}
+		
+		/**
+		 * @return false if this instance has been removed and the event was not dispatched
+		 */
+		public boolean dispatchEvent(int action, int data, long tapped, long received) {
+				switch(action) {
+				case EVENT_RECONNECT:
+					/* handle reconnect event locally */
+					return startController(data > 0);
+
+				default:
+					/* schedule event */
+					final ControllerEventQueue lane = ControllerEventPolicy.isUrgent(action, data) ? urgent : events;
+					final long stamp = System.nanoTime();
+					
+					if(lane.offer(action, data, SystemClock.elapsedRealtime(), stamp)) {
+						latency.record(LATENCY_BINDER, tapped, received);
+						latency.record(LATENCY_DISPATCH, received, stamp);
+					} else {
+						Log.w(LOG_TAG, "dropped event @ controller " + id + " because the queue is full");
+						policy.full.incrementAndGet();
+					}
+					
+					/* start controller if its not running or wake up the loop running it */
+					return startController(false);
+				}
+		}
+		
+		/**
+		 * Schedules a sequence of key events which will be handled in order by a single step 
+		 * of the session. The sequence is queued as a whole or not at all, so a sequence which
+		 * is larger than the queue is dropped instead of being sent in part.
+		 * 
+		 * @return false if this instance has been removed and the events were not dispatched
+		 */
+		public boolean dispatchEvents(int[] actions, int[] data, int count, long tapped, long received) {
+			final long stamp = System.nanoTime();
+			
+			if(count > events.capacity) {
+				Log.w(LOG_TAG, "dropped " + count + " events @ controller " + id + " because they do not fit in the queue");
+				policy.full.addAndGet(count);
+			} else if(events.offer(actions, data, 0, count, SystemClock.elapsedRealtime(), stamp)) {
+				latency.record(LATENCY_BINDER, tapped, received);
+				latency.record(LATENCY_DISPATCH, received, stamp);
+			} else {
+				Log.w(LOG_TAG, "dropped " + count + " events @ controller " + id + " because the queue is full");
+				policy.full.addAndGet(count);
+			}
+			
+			/* start controller if its not running or wake up the loop running it */
+			return startController(false);
+		}
+		
+		/**
+		 * Connects the controller ahead of its first use and keeps it connected for
+		 * WARM_IDLE_MILLIS even when no callback registers.
+		 * 
+		 * @return false if this instance has been removed and can no longer be started
+		 */
+		boolean prewarm() {
+			prewarmed = SystemClock.elapsedRealtime();
+			return startController(false);
+		}
+		
+		/**
+		 * Schedules the keys of a channel tune, see ControllerService.tuneChannel. A tune 
+		 * which does not fit in the queue is reported to cb as not sent right away.
+		 * 
+		 * @return TUNE_QUEUED, TUNE_DROPPED when the queue is full or TUNE_REMOVED if this 
+		 * instance has been removed and the keys were not dispatched
+		 */
+		int tuneChannel(int[] actions, int[] data, int count, int channel, int ticket, 
+				IControllerTuneCallback cb) {
+			
+			final Tune tune = new Tune(channel, cb);
+			tunes.put(ticket, tune);
+			
+			if(!events.offer(actions, data, 0, count, SystemClock.elapsedRealtime(), System.nanoTime())) {
+				Log.w(LOG_TAG, "dropped channel tune @ controller " + id + " because the queue is full");
+				policy.full.addAndGet(count);
+				
+				tunes.remove(ticket);
+				tune.report(false);
+				
+				/* the tune has been reported, it is not dispatched again whether or not the 
+				 * loop can be woken up to empty the queue */
+				
+				startController(false);
+				return TUNE_DROPPED;
+			}
+			
+			/* start controller if its not running or wake up the loop running it */
+			
+			/* the tune is dispatched again to the instance which replaces this one */
+			
+			if(!startController(false)) {
+				tunes.remove(ticket);
+				return TUNE_REMOVED;
+			}
+			
+			return TUNE_QUEUED;
+		}
+		
+		/**
+		 * Reports a tune whose keys expired as not sent.
+		 */
+		void tuneExpired(int ticket) {
+			final Tune tune = tunes.remove(ticket);
+			
+			if(tune != null)
+				tune.report(false);
+		}
+		
+		/**
+		 * Reports the tunes whose keys have been sent to their callback, or all remaining 
+		 * ones as not sent when sent is null.
+		 */
+		void tuned(int[] sent, int count) {
+			if(sent == null) {
+				for(Tune tune : tunes.values())
+					tune.report(false);
+				
+				tunes.clear();
+				return;
+			}
+			
+			for(int i = 0; i < count; ++i) {
+				final Tune tune = tunes.remove(sent[i]);
+				
+				if(tune != null)
+					tune.report(true);
+			}
+		}
+		
+		final class Tune {
+			final int channel;
+			final IControllerTuneCallback callback;
+			
+			Tune(int channel, IControllerTuneCallback callback) {
+				this.channel 	= channel;
+				this.callback 	= callback;
+			}
+			
+			void report(final boolean sent) {
+				if(callback == null)
+					return;
+				
+				broadcastHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							callback.onChannelTuned(id, channel, sent);
+						} catch (RemoteException e) {
+						}
+					}
+				});
+			}
+		}
+		
+		/**
+		 * Runs a macro on the session, a macro which was already requested or is running 
+		 * is cancelled.
+		 * 
+		 * @return false if this instance has been removed and the macro was not started
+		 */
+		boolean runMacro(ControllerMacros.Macro definition, IControllerMacroCallback cb) {
+			final MacroRun previous;
+			
+			synchronized(this) {
+				if(removed)
+					return false;
+				
+				previous = macro;
+				macro = new MacroRun(definition, cb);
+			}
+			
+			if(previous != null)
+				previous.cancel();
+			
+			/* start controller if its not running or wake up the loop running it */
+			return startController(false);
+		}
+		
+		void cancelMacro() {
+			final MacroRun current = macro;
+			
+			if(current != null) {
+				current.cancel();
+				
+				final ControllerSession running = session;
+				if(running != null)
+					running.loop.wakeup();
+			}
+		}
+		
+		/**
+		 * A single run of a macro, it is stepped by the session and reports its progress 
+		 * and result to its callback on the broadcast thread.
+		 */
+		final class MacroRun {
+			static final int PENDING 	= 0;
+			static final int RUNNING 	= 1;
+			static final int FINISHED 	= 2;
+			
+			final ControllerMacros.Macro macro;
+			final IControllerMacroCallback callback;
+			final AtomicInteger state = new AtomicInteger(PENDING);
+			
+			volatile boolean cancelled;
+			
+			/* index of the next step and the System.nanoTime() at which it is due, only used 
+			 * by the session */
+			int step;
+			long next;
+			
+			MacroRun(ControllerMacros.Macro macro, IControllerMacroCallback callback) {
+				this.macro 		= macro;
+				this.callback 	= callback;
+			}
+			
+			/**
+			 * @return false if the run has been cancelled already
+			 */
+			boolean start(long time) {
+				if(!state.compareAndSet(PENDING, RUNNING))
+					return false;
+				
+				step = 0;
+				next = time + macro.delays[0] * 1000000L;
+				return true;
+			}
+			
+			/**
+			 * Stops the run, a run which has not started yet is finished right away and a 
+			 * running one by its session.
+			 */
+			void cancel() {
+				cancelled = true;
+				
+				if(state.compareAndSet(PENDING, FINISHED))
+					report(-1, MACRO_CANCELLED);
+			}
+			
+			void finish(int result) {
+				if(state.getAndSet(FINISHED) != FINISHED)
+					report(-1, result);
+			}
+			
+			void progress(int step) {
+				report(step, -1);
+			}
+			
+			/**
+			 * Reports a step which has been sent or the result if step is -1.
+			 */
+			void report(final int step, final int result) {
+				if(callback == null)
+					return;
+				
+				broadcastHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if(step >= 0)
+								callback.onMacroProgress(id, macro.name, step, macro.keys.length);
+							else
+								callback.onMacroFinished(id, macro.name, result);
+						} catch (RemoteException e) {
+						}
+					}
+				});
+			}
+		}
+		
+		/**
+		 * Closes the session if it is not used by any callback, e.g. when it is evicted
+		 * from the warm connections.
+		 */
+		void expire() {
+			final ControllerSession current = session;
+			if(current != null)
+				current.expire();
+		}
+		
+		/**
+		 * Updates the state and schedules its delivery to the callbacks, updates which are
+		 * not delivered yet are coalesced into the latest state.
+		 */
+		void updateState(int state) {
+			this.state = state;
+			
+			/* a failure is always delivered, even when it has been superseded already */
+			
+			if(state == RemoteController.STATE_FAILURE) {
+				failurePending.set(true);
+			}
+			
+			if(broadcastPending.compareAndSet(false, true)) {
+				broadcastHandler.post(broadcast);
+			}
+		}
+		
+		final Runnable broadcast = new Runnable() {
+			@Override
+			public void run() {
+				broadcastPending.set(false);
+				
+				if(failurePending.getAndSet(false)) {
+					broadcastState(RemoteController.STATE_FAILURE);
+				}
+				
+				/* skip updates which do not change anything */
+				
+				final int current = state;
+				if(current != broadcastState) {
+					broadcastState(current);
+				}
+			}
+		};
+		
+		void broadcastState(int state) {
+			broadcastState = state;
+			
+			final int count = callbacks.beginBroadcast();
+			
+			for(int i = 0; i < count; ++i) {
+				try {
+					callbacks.getBroadcastItem(i).OnControllerStateUpdate(id, state);
+				} catch (RemoteException e) {
+					/* dead callbacks are removed by RemoteCallbackList */
+				}
+			}
+			
+			callbacks.finishBroadcast();
+		}
+		
+		/**
+		 * Removes this instance from the registry once its session has finished, unless 
+		 * callbacks are still registered. Called with the instance lock held.
+		 */
+		void finish() {
+			if(callbackCount > 0)
+				return;
+			
+			removed = true;
+			instances.remove(id, this);
+			
+			synchronized(warm) {
+				if(warm.get(id) == this)
+					warm.remove(id);
+			}
+			
+			Log.d(LOG_TAG, "removed controller for id: " + id);
+		}
+		
+		ControllerLoop getControllerLoop() {
+			if(useSharedLoop()) {
+				return getSharedLoop();
+			}
+			
+			/* a dedicated loop which stops together with its session, it is started
+			 * once the session has been added */
+			
+			return new ControllerLoop("ControllerLoop-" + id, false);
+		}
+		
+		/**
+		 * ControllerSession is the state machine of a single connection to a controller, it is
+		 * driven by a ControllerLoop and never blocks so that one loop can drive many sessions.
+		 */
+		class ControllerSession implements ControllerLoop.Session {
+			
+			static final int CONNECTION_RETRY_COUNT			= 5;
+			static final int CONNECTION_RETRY_MILLIS 		= 500;
+			static final int CONNECTION_RETRY_MAX_MILLIS 	= 8000;
+			
+			/* deadlines of the phases of a connection attempt */
+			static final int CONNECTION_RESOLVE_MILLIS 		= 5000;
+			static final int CONNECTION_TCP_MILLIS 			= 5000;
+			static final int CONNECTION_HANDSHAKE_MILLIS 	= 5000;
+			
+			/* poll intervals for transports which can not be waited for */
+			static final int TRANSPORT_CONNECT_POLL_MILLIS	= 10;
+			static final int TRANSPORT_POLL_MILLIS			= 100;
+			
+			static final int PHASE_START 		= 0;
+			static final int PHASE_CONNECTING 	= 1;
+			static final int PHASE_RUNNING 		= 2;
+			static final int PHASE_CLOSED 		= 3;
+			
+			final ControllerLoop loop;
+			
+			volatile boolean cancelled;
+			volatile boolean expired;
+			volatile boolean closed;
+			volatile boolean released;
+			
+			int phase = PHASE_START;
+			int connectphase;
+			int retrycnt;
+			long retrytime;
+			long connectdeadline;
+			long lastevent;
+			
+			ControllerInfo info;
+			String address;
+			Resolution resolution;
+			ControllerTransport controller;
+			ControllerKeepalive keepalive;
+			MacroRun running;
+			boolean polled;
+			
+			final ControllerRepeat repeat = new ControllerRepeat();
+
+			final long[] batch = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+			final long[] times = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+			final long[] stamps = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+			
+			/* normal events drained by preempt while the batch holds the urgent ones */
+			final long[] preempted = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+			final long[] preemptedtimes = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+			
+			/* stamp of the last drain, see ControllerLatency */
+			long drainstamp;
+			
+			/* batch translated for RemoteController.sendKeys, followed by a repeated key */
+			final int[] keycodes = new int[ControllerEventQueue.DEFAULT_CAPACITY + 1];
+			final int[] keyflags = new int[ControllerEventQueue.DEFAULT_CAPACITY + 1];
+			
+			/* tickets of the channel tunes in the batch */
+			final int[] tuned = new int[ControllerEventQueue.DEFAULT_CAPACITY];
+			int tunedcount;
+			
+			ControllerSession(ControllerLoop loop) {
+				this.loop = loop;
+			}
+			
+			@Override
+			public void cancel() {
+				this.cancelled = true;
+				
+				/* wake up the loop in case it is waiting */
+				loop.wakeup();
+			}
+			
+			void expire() {
+				this.expired = true;
+				loop.wakeup();
+			}
+			
+			/**
+			 * Stops the repeat of a held key.
+			 */
+			void releaseKeys() {
+				this.released = true;
+				loop.wakeup();
+			}
+			
+			@Override
+			public ControllerTransport getController() {
+				return controller;
+			}
+			
+			@Override
+			public boolean hasPendingWork() {
+				return cancelled || expired || (resolution != null && resolution.done) 
+						|| (phase == PHASE_RUNNING && (released || !urgent.isEmpty() || !events.isEmpty() || macroChanged()));
+			}
+			
+			/**
+			 * @return true if a macro is waiting to be started or the running one is cancelled
+			 */
+			boolean macroChanged() {
+				final MacroRun requested = macro;
+				
+				if(running != null)
+					return running != requested || running.cancelled;
+				
+				return requested != null && requested.state.get() == MacroRun.PENDING;
+			}
+			
+			@Override
+			public long step(long now, int ready) {
+				if(cancelled) {
+					return close();
+				}
+				
+				if(expired) {
+					expired = false;
+					
+					if(callbackCount == 0) {
+						Log.d(LOG_TAG, "stopping controller (id:" + id + ") because it was evicted");
+						return close();
+					}
+				}
+				
+				/* keys are only held while running, there is nothing to release before */
+				
+				if(phase != PHASE_RUNNING)
+					released = false;
+				
+				switch(phase) {
+				case PHASE_START:
+					return start(now);
+				case PHASE_CONNECTING:
+					return connect(now);
+				case PHASE_RUNNING:
+					return run(now, ready);
+				default:
+					return ControllerLoop.SESSION_CLOSED;
+				}
+			}
+			
+			long start(long now) {
+				
+				updateState(RemoteController.STATE_CONNECTING);
+				
+				/* get controller properties */
+				
+				info = ControllerInfo.get(ControllerService.this, id);
+				if(info == null) { 
+					return close();
+				}
+				
+				Log.d(LOG_TAG, "starting controller (name: "+ info.name +", addr: " + info.address +")");
+				
+				configurePolicy(policy);
+				
+				phase = PHASE_CONNECTING;
+				retrytime = now;
+				
+				return connect(now);
+			}
+			
+			/**
+			 * Drives a connection attempt through its phases ( resolve, TCP connect and RFB 
+			 * handshake ) which all have their own deadline, without ever blocking the loop.
+			 */
+			long connect(long now) {
+				
+				if(controller == null) {
+					
+					/* sleep before retrying */
+					if(now < retrytime)
+						return retrytime;
+					
+					/* look up the host off the loop, again after a failed attempt in case the
+					 * controller moved to another address */
+					
+					if(address == null) {
+						if(resolution == null) {
+							resolution = new Resolution(info.address);
+							resolverHandler.post(resolution);
 							
-							controller.connect();
-							retrycnt++;
+							connectphase 	= ControllerTransport.CONNECT_PHASE_RESOLVE;
+							connectdeadline = now + CONNECTION_RESOLVE_MILLIS;
 						}
 						
-						if(controller.getState() != RemoteController.STATE_CONNECTED) {
-							Log.d(LOG_TAG, "failed to start controller");						
-							
-							updateState(RemoteController.STATE_FAILURE);
-							
-						} else {
-							Log.d(LOG_TAG, "controller is entering running state");
-							
-							updateState(RemoteController.STATE_CONNECTED);
-							
-							lastevent 	= System.currentTimeMillis();
-							lastpoll 	= lastevent;
+						if(!resolution.done) {
+							if(now < connectdeadline)
+								return connectdeadline;
 							
-							while(!shouldstop) {
-								
-								final long currenttime = System.currentTimeMillis();
-	
-								/* copy events to thread local events so that we do not block any new incoming
-								 * events while processing them */
-	
-								int batchsize = 0;
-				
-								synchronized(events) {
-									batchsize = events.size();
-									
-									if(batchsize > 0) {
-										/* move events to batch */
-										batch.addAll(events);
-										events.clear();
-									}
-								}
-								
-								if(batchsize > 0) {
-									
-									/* start processing events in batch */
-									
-									for(ControllerEvent ev : batch) {
-										switch(ev.action) {
-										case EVENT_KEY_PRESS:
-											controller.toggleKey(ev.data);
-											break;
-										case EVENT_KEY_DOWN:
-											controller.sendKey(ev.data, true);
-											break;
-										case EVENT_KEY_UP:
-											controller.sendKey(ev.data, false);
-											break;
-										}
-									}
-									
-									lastevent = currenttime;
-									
-									/* remove processed events */
-									
-									batch.clear();
-								}
-								
-								/* check if we should disconnect based on inactivity ( when we have no registered callbacks ) */
-								
-								final long inactivity = currenttime - lastevent;
-								if((inactivity > CONNECTION_INACTIVITY_MILLIS) && callbacks.isEmpty()) {
-									Log.d(LOG_TAG, "stopping controller (id:" + id + ") because of " + inactivity + "ms inactivity");								
-									break;
-								}
-	
-								/* check if the RemoteController is still connected */
-								
-								if(currenttime - lastpoll > CONNECTION_POLL_MILLIS) {
-									lastpoll = currenttime;
-									
-									if(controller.poll()) {
-										/* dispatch heartbeat to callbacks so that we can filter out 
-										 * any possibly dead callbacks who failed to unregister */
-										updateState(RemoteController.STATE_CONNECTED);
-									} else {
-										Log.d(LOG_TAG, "stopping controller (id:" + id + ") because we are no longer connected");									
-										break;
-									}
-								}
-							}
+							Log.d(LOG_TAG, "looking up " + info.address + " timed out");
+							resolution = null;
+							return retry(now);
 						}
+						
+						address = resolution.address;
+						resolution = null;
+						
+						if(address == null)
+							return retry(now);
+					}
+					
+					try {
+						controller = ControllerTransports.create(info.transport, address);
 					} catch (Exception e) {
+						Log.d(LOG_TAG, "failed to create controller");
+						return close();
 					}
 					
-					/* disconnect in case we are stopping because of inactivity */
+					polled = controller.pointer() == 0;
+					
+					connectphase 	= ControllerTransport.CONNECT_PHASE_TCP;
+					connectdeadline = now + CONNECTION_TCP_MILLIS;
+				}
+				
+				/* advance the connection as far as possible without blocking, we will
+				 * be stepped again as soon as the socket is ready */
+				
+				final boolean alive = controller.poll();
+				final int state = controller.getState();
+				
+				/* the handshake gets its own deadline once the TCP connection is established */
+				
+				final int current = controller.getConnectPhase();
+				
+				if(current == ControllerTransport.CONNECT_PHASE_HANDSHAKE 
+						&& connectphase != ControllerTransport.CONNECT_PHASE_HANDSHAKE) {
+					connectphase 	= current;
+					connectdeadline = now + CONNECTION_HANDSHAKE_MILLIS;
+				}
+				
+				if(alive && state == RemoteController.STATE_CONNECTED) {
+					Log.d(LOG_TAG, "controller is entering running state");
+					
+					updateState(RemoteController.STATE_CONNECTED);
+					
+					phase 		= PHASE_RUNNING;
+					lastevent 	= now;
+					keepalive 	= new ControllerKeepalive(controller, now);
+					
+					return run(now, ControllerMultiplexer.READY_NONE);
+				}
+				
+				if(!alive || state == RemoteController.STATE_FAILURE || now >= connectdeadline) {
+					Log.d(LOG_TAG, "connection attempt (id:" + id + ") failed in phase " + connectphase 
+							+ (now >= connectdeadline ? " because it timed out" : ""));
 					
 					controller.disconnect();
-
+					controller = null;
+					address = null;
+					
+					return retry(now);
 				}
+				
+				if(polled)
+					return Math.min(connectdeadline, now + TRANSPORT_CONNECT_POLL_MILLIS);
+				
+				return connectdeadline;
+			}
 
-				updateState(RemoteController.STATE_DISCONNECTED);
+			
+			/**
+			 * Schedules the next connection attempt with exponential backoff, half of the delay
+			 * is random so that controllers which failed together do not retry in lock step.
+			 */
+			long retry(long now) {
+				if(retrycnt++ >= CONNECTION_RETRY_COUNT) {
+					Log.d(LOG_TAG, "failed to start controller");						
+					
+					updateState(RemoteController.STATE_FAILURE);
+					return close();
+				}
+				
+				final int delay = Math.min(CONNECTION_RETRY_MAX_MILLIS, CONNECTION_RETRY_MILLIS << (retrycnt - 1));
+				final int jittered;
+				
+				synchronized(jitter) {
+					jittered = delay / 2 + jitter.nextInt(delay / 2 + 1);
+				}
+				
+				retrytime = now + jittered;
+				return retrytime;
+			}
+			
+			long run(long now, int ready) {
+				
+				/* handle incoming data or a closed connection */
+				
+				if((ready != ControllerMultiplexer.READY_NONE || polled) && !controller.poll()) {
+					Log.d(LOG_TAG, "stopping controller (id:" + id + ") because we are no longer connected");
+					return close();
+				}
+				
+				if(released) {
+					released = false;
+					repeat.release();
+				}
+				
+				/* urgent keys jump ahead of everything else and go out in a write of their own,
+				 * the normal events are still handled in the same step so they are never starved */
+				
+				if(!urgent.isEmpty()) {
+					final int urgentsize = drain(urgent, now);
+					
+					/* only a press of an urgent key cancels the queued keys, cancel before the 
+					 * translate so that a held urgent key keeps its own repeat */
+					if(policy.preempts && ControllerEventPolicy.isPreempting(batch, urgentsize))
+						preempt(now);
+					
+					final int count = translate(urgentsize, now);
+					
+					if(count > 0) {
+						send(count, true);
+						keepalive.onEvents(now);
+						
+						lastevent = now;
+					}
+				}
+				
+				/* translate the batch and hand it to the controller in one go */
+				
+				final int batchsize = drain(events, now);
+				
+				int count = translate(batchsize, now);
+				
+				final boolean dispatched = count > 0;
+				
+				/* the repeat of a held key is paced by the loop */
+				
+				final int repeated = repeat.poll(now);
+				
+				if(repeated >= 0) {
+					keycodes[count] = repeated;
+					keyflags[count] = RemoteController.KEY_FLAG_TOGGLE;
+					count++;
+				}
+				
+				if(count > 0) {
+					send(count, dispatched);
+					
+					/* repeats keep the connection in use but are not part of the traffic
+					 * the keepalive adapts to */
+					
+					if(dispatched)
+						keepalive.onEvents(now);
+					
+					lastevent = now;
+				}
+				
+				if(tunedcount > 0)
+					tuned(tuned, tunedcount);
+				
+				if(runMacro())
+					lastevent = now;
+				
+				/* check if we should disconnect based on inactivity ( when we have no registered callbacks ) */
+				
+				if(callbackCount == 0 && now >= idleDeadline()) {
+					Log.d(LOG_TAG, "stopping controller (id:" + id + ") because of " + (now - lastevent) + "ms inactivity");
+					return close();
+				}
+				
+				/* probe the connection when its heartbeat is due, a connection which died 
+				 * silently is replaced right away as long as it is in use */
+				
+				if(!keepalive.check(now)) {
+					Log.d(LOG_TAG, "controller (id:" + id + ") did not answer a probe for " 
+							+ controller.getProbeAge() + "ms, the connection is dead");
+					
+					if(callbackCount > 0)
+						return reconnect(now);
+					
+					return close();
+				}
+				
+				return nextDeadline(now);
 			}
-		}
-		
-		class ControllerEvent {
-			int action;
-			int data;
 			
-			public ControllerEvent(int action, int data) {
-				this.action = action;
-				this.data = data;
+			/**
+			 * Moves the events of a lane to the session local batch so that we do not block 
+			 * any new incoming events while processing them, and leaves out the events which
+			 * waited too long or are redundant.
+			 * 
+			 * @return the number of events in the batch
+			 */
+			int drain(ControllerEventQueue lane, long now) {
+				final int drained = lane.drain(batch, times, stamps);
+				
+				if(drained == 0)
+					return 0;
+				
+				drainstamp = System.nanoTime();
+				latency.record(LATENCY_QUEUE, stamps, drained, drainstamp);
+				
+				final int batchsize = policy.filter(batch, times, drained, now);
+				
+				if(batchsize < drained) {
+					Log.d(LOG_TAG, "dropped " + (drained - batchsize) + " of " + drained 
+							+ " queued events @ controller " + id);
+				}
+				
+				return batchsize;
+			}
+			
+			/**
+			 * Hands the first count translated keys to the controller, the time they spent 
+			 * after the drain is recorded when drained is set.
+			 */
+			void send(int count, boolean drained) {
+				final long entered = System.nanoTime();
+				final long sent = controller.sendKeys(keycodes, keyflags, count);
+				
+				if(drained) {
+					latency.record(LATENCY_LOOP, drainstamp, entered);
+					latency.record(LATENCY_SEND, entered, sent);
+				}
+			}
+			
+			/**
+			 * Drops the key presses of the normal events which are still queued and stops the 
+			 * repeat and the macro, called when a press of an urgent key is about to be sent.
+			 * The queued key ups and releases are sent right away so that no key is left down,
+			 * the batch with the urgent keys is left alone.
+			 */
+			void preempt(long now) {
+				int dropped = 0;
+				int drained;
+				
+				while((drained = events.drain(preempted, preemptedtimes, stamps)) > 0) {
+					int kept = 0;
+					
+					/* the keys of a tune are presses, so the tune is not sent */
+					
+					for(int i = 0; i < drained; ++i) {
+						if(ControllerEventQueue.action(preempted[i]) == EVENT_TUNED) {
+							tuneExpired(ControllerEventQueue.data(preempted[i]));
+							continue;
+						}
+						
+						preempted[kept] = preempted[i];
+						preemptedtimes[kept] = preemptedtimes[i];
+						kept++;
+					}
+					
+					final int remaining = policy.preempt(preempted, preemptedtimes, kept);
+					dropped += kept - remaining;
+					
+					final int count = translate(preempted, preemptedtimes, remaining, now);
+					
+					if(count > 0)
+						send(count, false);
+				}
+				
+				if(dropped > 0)
+					Log.d(LOG_TAG, "urgent key preempted " + dropped + " queued events @ controller " + id);
+				
+				repeat.release();
+				
+				if(running != null) {
+					running.finish(MACRO_CANCELLED);
+					running = null;
+				}
+			}
+			
+			/**
+			 * Translates the first batchsize events of the batch ( or of queued ) into keycodes 
+			 * and keyflags for RemoteController.sendKeys, collects the tickets of the tunes 
+			 * among them in tuned.
+			 * 
+			 * @return the number of keys
+			 */
+			int translate(int batchsize, long now) {
+				return translate(batch, times, batchsize, now);
+			}
+			
+			int translate(long[] queued, long[] queuedtimes, int batchsize, long now) {
+				int count = 0;
+				
+				tunedcount = 0;
+				
+				for(int i = 0; i < batchsize; ++i) {
+					final int flags;
+					final int data = ControllerEventQueue.data(queued[i]);
+					
+					switch(ControllerEventQueue.action(queued[i])) {
+					case EVENT_KEY_PRESS:
+						flags = RemoteController.KEY_FLAG_TOGGLE;
+						break;
+					case EVENT_KEY_DOWN:
+						flags = RemoteController.KEY_FLAG_DOWN;
+						break;
+					case EVENT_KEY_UP:
+						flags = RemoteController.KEY_FLAG_UP;
+						break;
+					case EVENT_KEY_HOLD:
+						/* a held key is pressed right away and repeats after the delay */
+						configureRepeat(repeat);
+						repeat.hold(data, now);
+						flags = RemoteController.KEY_FLAG_TOGGLE;
+						break;
+					case EVENT_KEY_RELEASE:
+						repeat.release(data);
+						continue;
+					case EVENT_TUNED:
+						/* the keys of a tune expire together with their marker */
+						if(policy.isExpired(queuedtimes[i], now))
+							tuneExpired(data);
+						else
+							tuned[tunedcount++] = data;
+						continue;
+					default:
+						continue;
+					}
+					
+					keycodes[count] = data;
+					keyflags[count] = flags;
+					count++;
+				}
+				
+				return count;
+			}
+			
+			/**
+			 * Starts a requested macro and sends its steps which are due, a step which is not
+			 * due yet is left to the step of the session at macroDeadline so that the loop 
+			 * never waits here. Steps are sent on their own instead of with the batch.
+			 * 
+			 * @return true if a step was sent
+			 */
+			boolean runMacro() {
+				final MacroRun requested = macro;
+				
+				if(running != null && (running != requested || running.cancelled)) {
+					running.finish(MACRO_CANCELLED);
+					running = null;
+				}
+				
+				if(running == null) {
+					if(requested == null || !requested.start(System.nanoTime()))
+						return false;
+					
+					running = requested;
+				}
+				
+				final int[] keys = running.macro.keys;
+				final int[] delays = running.macro.delays;
+				
+				boolean sent = false;
+				
+				while(running.next - System.nanoTime() <= 0) {
+					keycodes[0] = keys[running.step];
+					keyflags[0] = RemoteController.KEY_FLAG_TOGGLE;
+					
+					controller.sendKeys(keycodes, keyflags, 1);
+					sent = true;
+					
+					running.progress(running.step++);
+					
+					if(running.step == keys.length) {
+						running.finish(MACRO_DONE);
+						running = null;
+						break;
+					}
+					
+					/* steps are scheduled from the previous step instead of the moment it 
+					 * was sent, so that a late step does not delay the rest */
+					
+					running.next += delays[running.step] * 1000000L;
+				}
+				
+				return sent;
+			}
+			
+			/**
+			 * @return the time at which the loop has to wake up for the next macro step
+			 */
+			long macroDeadline(long now) {
+				if(running == null)
+					return Long.MAX_VALUE;
+				
+				return ControllerMacros.deadline(now, running.next - System.nanoTime());
+			}
+			
+			/**
+			 * Returns the time at which the session has to be stepped even if no events arrive, 
+			 * which is either the next macro step, the next repeat of a held key, the next heartbeat 
+			 * or probe timeout or the moment we should disconnect because of inactivity ( only when 
+			 * there are no registered callbacks ). Transports which can not be waited for are polled
+			 * in between.
+			 */
+			long nextDeadline(long now) {
+				long deadline = Math.min(keepalive.nextDeadline(now), repeat.nextDeadline());
+				
+				deadline = Math.min(deadline, macroDeadline(now));
+				
+				if(callbackCount == 0) {
+					deadline = Math.min(deadline, idleDeadline());
+				}
+				
+				if(polled) {
+					deadline = Math.min(deadline, now + TRANSPORT_POLL_MILLIS);
+				}
+				
+				return deadline;
+			}
+			
+			/**
+			 * Returns the time at which an unused session is closed, a prewarmed session is 
+			 * kept for at least WARM_IDLE_MILLIS after the last prewarm request.
+			 */
+			long idleDeadline() {
+				return Math.max(lastevent + keepalive.inactivityTimeout(), prewarmed + WARM_IDLE_MILLIS);
+			}
+			
+			/**
+			 * Replaces a dead connection by a new one, the session stays registered with its loop.
+			 */
+			long reconnect(long now) {
+				controller.disconnect();
+				controller = null;
+				keepalive = null;
+				
+				repeat.release();
+				
+				if(running != null) {
+					running.finish(MACRO_FAILED);
+					running = null;
+				}
+				
+				updateState(RemoteController.STATE_CONNECTING);
+				
+				phase 		= PHASE_CONNECTING;
+				retrycnt 	= 0;
+				retrytime 	= now;
+				
+				return connect(now);
+			}
+			
+			/**
+			 * Looks up the host of an address on the resolver thread and wakes up the loop 
+			 * when it is done, address is null when the lookup failed.
+			 */
+			final class Resolution implements Runnable {
+				final String host;
+				
+				volatile String address;
+				volatile boolean done;
+				
+				Resolution(String host) {
+					this.host = host;
+				}
+				
+				@Override
+				public void run() {
+					try {
+						address = ControllerTransports.resolve(host);
+					} catch (UnknownHostException e) {
+						Log.d(LOG_TAG, "could not look up " + host + ": " + e.getMessage());
+					}
+					
+					done = true;
+					loop.wakeup();
+				}
+			}
+			
+			long close() {
+				if(phase == PHASE_CLOSED)
+					return ControllerLoop.SESSION_CLOSED;
+				
+				phase = PHASE_CLOSED;
+				
+				repeat.release();
+				
+				if(running != null) {
+					running.finish(MACRO_FAILED);
+					running = null;
+				}
+				
+				/* disconnect in case we are stopping because of inactivity */
+				
+				if(controller != null) {
+					controller.disconnect();
+					controller = null;
+				}
+				
+				/* queued events are kept for the next session as long as clients are registered,
+				 * the policy drops them once they expire. They are discarded together with the 
+				 * instance, unless a replacement session is taking over */
+				
+				final boolean current;
+				
+				synchronized(ControllerInstance.this) {
+					closed = true;
+					current = session == this;
+					
+					if(!cancelled) {
+						if(macro != null) {
+							macro.finish(MACRO_FAILED);
+							macro = null;
+						}
+						
+						if(session == this) {
+							finish();
+						}
+						
+						if(removed) {
+							final int discarded = urgent.clear() + events.clear();
+							
+							if(discarded > 0) {
+								Log.d(LOG_TAG, "discarded " + discarded + " queued events @ controller " + id);
+								policy.discarded.addAndGet(discarded);
+							}
+							
+							tuned(null, 0);
+						}
+					}
+				}
+				
+				/* a session which has been replaced leaves the state to its replacement */
+				
+				if(current)
+					updateState(RemoteController.STATE_DISCONNECTED);
+				
+				return ControllerLoop.SESSION_CLOSED;
 			}
 		}
 	}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * ControllerStore persists the controller records in a line oriented UTF-8 file:
+ * 
+ * <pre>
+ * horizonremote-controllers &lt;version&gt;
+ * next &lt;id&gt;
+ * &lt;id&gt; TAB &lt;name&gt; TAB &lt;address&gt; TAB &lt;transport&gt;
+ * ...
+ * </pre>
+ * 
+ * Tabs, line feeds and backslashes in fields are escaped with a backslash, fields added by 
+ * later minor versions are appended to a record and ignored when reading. Lines which can
+ * not be read are skipped and written back as they are, a file which can not be read at 
+ * all is left alone. The file is 
+ * rewritten as a whole into a temporary file which replaces it by a rename, so it is
+ * either the old or the new version after a crash. The next id is part of the file so that
+ * allocating one never has to look at the records.
+ * 
+ * Controllers used to be stored as controller-N keys in the default preferences, they
+ * are moved into the store when it does not exist yet.
+ * 
+ * @author rogro82
+ */
+final class ControllerStore {
+	
+	static final String LOG_TAG = "ControllerStore";
+	
+	static final String FILE_NAME = "controllers";
+	
+	static final String HEADER = "horizonremote-controllers";
+	static final int VERSION = 1;
+	
+	final File file;
+	
+	/* set when the file was written by a newer version or could not be read, it is left 
+	 * alone in that case */
+	boolean readOnly;
+	
+	/* contents as read by load */
+	final ArrayList<ControllerInfo> records = new ArrayList<ControllerInfo>();
+	int nextId = 1;
+	
+	/* lines load could not read, kept so that a write does not lose them */
+	final ArrayList<String> malformed = new ArrayList<String>();
+	
+	ControllerStore(File directory) {
+		this.file = new File(directory, FILE_NAME);
+	}
+	
+	/**
+	 * Reads the store into records and nextId, migrates the preferences when there is no
+	 * store yet.
+	 */
+	void load(SharedPreferences prefs) {
+		records.clear();
+		malformed.clear();
+		nextId = 1;
+		
+		if(!file.exists()) {
+			migrate(prefs);
+			return;
+		}
+		
+		BufferedReader reader = null;
+		
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			
+			final String header = reader.readLine();
+			
+			if(header == null || !header.startsWith(HEADER + " ")) {
+				Log.w(LOG_TAG, "ignoring " + file + " because it is not a controller store");
+				readOnly = true;
+				return;
+			}
+			
+			final int version = parseInt(header.substring(HEADER.length() + 1));
+			
+			if(version < 0 || version > VERSION) {
+				Log.w(LOG_TAG, "ignoring " + file + " because it has version " + header.substring(HEADER.length() + 1));
+				readOnly = true;
+				return;
+			}
+			
+			String line;
+			
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("next ")) {
+					final int next = parseInt(line.substring(5));
+					
+					if(next >= 0) {
+						nextId = Math.max(nextId, next);
+						continue;
+					}
+				} else {
+					final ControllerInfo info = parse(line);
+					
+					if(info != null) {
+						records.add(info);
+						nextId = Math.max(nextId, info.id + 1);
+						continue;
+					}
+				}
+				
+				Log.w(LOG_TAG, "skipping malformed line in " + file + ": " + line);
+				malformed.add(line);
+			}
+			
+		} catch (IOException e) {
+			/* what was not read would be lost by the next write */
+			Log.e(LOG_TAG, "failed to read " + file + ", leaving it alone", e);
+			readOnly = true;
+		} finally {
+			close(reader);
+		}
+	}
+	
+	/**
+	 * Replaces the store by records.
+	 * 
+	 * @return false if the store could not be written
+	 */
+	boolean write(List<ControllerInfo> records, int nextId) {
+		if(readOnly) {
+			Log.w(LOG_TAG, "not writing " + file + " because it could not be loaded");
+			return false;
+		}
+		
+		final StringBuilder contents = new StringBuilder(64 + 64 * records.size());
+		
+		contents.append(HEADER).append(' ').append(VERSION).append('\n');
+		contents.append("next ").append(nextId).append('\n');
+		
+		for(ControllerInfo info : records) {
+			contents.append(info.id).append('\t');
+			escape(contents, info.name).append('\t');
+			escape(contents, info.address).append('\t');
+			escape(contents, info.transport).append('\n');
+		}
+		
+		for(String line : malformed)
+			contents.append(line).append('\n');
+		
+		return replace(file, contents);
+	}
+	
+	/**
+	 * Writes contents into a temporary file which then replaces file, so that file is 
+	 * either the old or the new version after a crash.
+	 * 
+	 * @return false if the file could not be written
+	 */
+	static boolean replace(File file, CharSequence contents) {
+		final File temporary = new File(file.getPath() + ".tmp");
+		
+		FileOutputStream stream = null;
+		
+		try {
+			stream = new FileOutputStream(temporary);
+			
+			final Writer writer = new OutputStreamWriter(stream, "UTF-8");
+			
+			writer.append(contents);
+			writer.flush();
+			
+			/* make sure the data is on disk before it replaces the old file */
+			
+			stream.getFD().sync();
+			stream.close();
+			stream = null;
+			
+			if(!temporary.renameTo(file)) {
+				Log.e(LOG_TAG, "failed to replace " + file);
+				return false;
+			}
+			
+			return true;
+			
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "failed to write " + file, e);
+			return false;
+		} finally {
+			close(stream);
+		}
+	}
+	
+	/**
+	 * Moves the controller-N records from the preferences into the store.
+	 */
+	void migrate(SharedPreferences prefs) {
+		final ArrayList<String> keys = new ArrayList<String>();
+		
+		for(Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			final String key = entry.getKey();
+			
+			if(!key.startsWith(ControllerInfo.CONTROLLER_PREFIX))
+				continue;
+			
+			keys.add(key);
+			
+			final int id = ControllerRegistry.recordId(key);
+			
+			if(id < 0 || !(entry.getValue() instanceof Integer) || prefs.getInt(key, -1) == -1)
+				continue;
+			
+			records.add(new ControllerInfo(id, key,
+					prefs.getString(key + ControllerInfo.PREF_NAME, ControllerInfo.DEFAULT_CONTROLLER_NAME),
+					prefs.getString(key + ControllerInfo.PREF_ADDRESS, ControllerInfo.DEFAULT_CONTROLLER_ADDRESS),
+					prefs.getString(key + ControllerInfo.PREF_TRANSPORT, ControllerInfo.TRANSPORT_NATIVE)));
+			
+			nextId = Math.max(nextId, id + 1);
+		}
+		
+		if(!write(records, nextId))
+			return;
+		
+		if(!keys.isEmpty()) {
+			Log.d(LOG_TAG, "moved " + records.size() + " controllers from the preferences");
+			
+			final SharedPreferences.Editor editor = prefs.edit();
+			
+			for(String key : keys)
+				editor.remove(key);
+			
+			editor.commit();
+		}
+	}
+	
+	static ControllerInfo parse(String line) {
+		final ArrayList<String> fields = fields(line);
+		
+		if(fields.size() < 4)
+			return null;
+		
+		final int id = parseInt(fields.get(0));
+		
+		if(id < 0)
+			return null;
+		
+		return new ControllerInfo(id, ControllerInfo.key(id), fields.get(1), fields.get(2), fields.get(3));
+	}
+	
+	/**
+	 * @return the value of a non negative number or -1 when value is not one
+	 */
+	static int parseInt(String value) {
+		try {
+			return Math.max(-1, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * @return the unescaped tab separated fields of line
+	 */
+	static ArrayList<String> fields(String line) {
+		final ArrayList<String> fields = new ArrayList<String>(8);
+		final StringBuilder field = new StringBuilder(line.length());
+		
+		for(int i = 0, length = line.length(); i <= length; ++i) {
+			final char c = i < length ? line.charAt(i) : '\t';
+			
+			if(c == '\t') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if(c == '\\' && i + 1 < length) {
+				final char escaped = line.charAt(++i);
+				field.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped);
+			} else {
+				field.append(c);
+			}
+		}
+		
+		return fields;
+	}
+	
+	static StringBuilder escape(StringBuilder line, String value) {
+		for(int i = 0, length = value.length(); i < length; ++i) {
+			final char c = value.charAt(i);
+			
+			switch(c) {
+			case '\t':
+				line.append("\\t");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			default:
+				line.append(c);
+			}
+		}
+		
+		return line;
+	}
+	
+	static void close(Closeable closeable) {
+		if(closeable == null)
+			return;
+		
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+/**
+ * ControllerTransport is a connection to a single controller as driven by a ControllerSession.
+ * None of the methods except connect() block, poll() advances the connection as far as it can
+ * and has to be called again whenever the connection is ready or after some time has passed.
+ * 
+ * @author rogro82
+ */
+public interface ControllerTransport {
+	
+	public static final int STATE_FAILURE 		= -2;
+	public static final int STATE_DISCONNECTED	= -1;
+	public static final int STATE_CONNECTING	= 0;
+	public static final int STATE_CONNECTED 	= 1;
+	
+	/* phases of a connection attempt, see getConnectPhase */
+	public static final int CONNECT_PHASE_RESOLVE	= 0;
+	public static final int CONNECT_PHASE_TCP		= 1;
+	public static final int CONNECT_PHASE_HANDSHAKE	= 2;
+	public static final int CONNECT_PHASE_DONE		= 3;
+	
+	/* flags used by sendKeys */
+	public static final int KEY_FLAG_DOWN	= 1;
+	public static final int KEY_FLAG_UP		= 2;
+	public static final int KEY_FLAG_TOGGLE	= KEY_FLAG_DOWN | KEY_FLAG_UP;
+	
+	/**
+	 * Connects and blocks until the connection is established, failed or timed out.
+	 */
+	void connect();
+	
+	void disconnect();
+	
+	int getState();
+	
+	/**
+	 * @return the CONNECT_PHASE_* the connection attempt is in
+	 */
+	int getConnectPhase();
+	
+	void sendKey(int keyCode, boolean keyDown);
+	
+	void toggleKey(int keyCode);
+	
+	/**
+	 * Sends the first count keys with their KEY_FLAG_* flags in order, all of them are
+	 * written to the connection at once.
+	 * 
+	 * @return the time ( System.nanoTime ) at which send() returned for the last of the keys,
+	 * or 0 when they were not sent or are still waiting for the connection to accept them
+	 */
+	long sendKeys(int[] keyCodes, int[] flags, int count);
+	
+	/**
+	 * Advances the connection without blocking.
+	 * 
+	 * @return false if the connection failed or was closed by the other side
+	 */
+	boolean poll();
+	
+	/**
+	 * Sends a liveness probe which the other side answers right away, nothing is sent while
+	 * an earlier probe is still unanswered.
+	 * 
+	 * @return false if the transport is not connected
+	 */
+	boolean probe();
+	
+	/**
+	 * @return milliseconds since the outstanding probe was sent without anything received 
+	 * since, or -1 when no probe is outstanding
+	 */
+	int getProbeAge();
+	
+	/**
+	 * @return the smoothed round trip time of the answered probes in milliseconds, or -1
+	 * when it is not known yet
+	 */
+	int getRoundTripTime();
+	
+	/**
+	 * @return milliseconds since data was last received
+	 */
+	int getIdleTime();
+	
+	/**
+	 * @return the native controller which a ControllerMultiplexer can wait for or 0 when
+	 * the transport has to be polled periodically instead
+	 */
+	long pointer();
+}
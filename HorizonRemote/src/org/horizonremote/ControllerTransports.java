@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.horizonremote.rfb.RfbController;
+
+/**
+ * Creates the ControllerTransport for a controller. The implementation is selected by 
+ * ControllerInfo.transport.
+ * 
+ * @author rogro82
+ */
+public final class ControllerTransports {
+	
+	private ControllerTransports() {
+	}
+	
+	public static ControllerTransport create(ControllerInfo info) throws Exception {
+		return create(info.transport, info.address);
+	}
+	
+	public static ControllerTransport create(String transport, String address) 
+			throws Exception {
+		
+		if(ControllerInfo.TRANSPORT_JAVA.equals(transport))
+			return new RfbController(address);
+		
+		return new RemoteController(address);
+	}
+	
+	/**
+	 * Looks up the host of address, which may block on the network, and returns the address
+	 * with its numeric IPv4 host so that creating and connecting a transport for it does not 
+	 * block.
+	 */
+	public static String resolve(String address) throws UnknownHostException {
+		final int separator = address.lastIndexOf(':');
+		final String host = separator > 0 ? address.substring(0, separator) : address;
+		final String port = separator > 0 ? address.substring(separator) : "";
+		
+		/* the transports only connect over IPv4 */
+		
+		for(InetAddress resolved : InetAddress.getAllByName(host)) {
+			if(resolved instanceof Inet4Address)
+				return resolved.getHostAddress() + port;
+		}
+		
+		throw new UnknownHostException("no IPv4 address for " + host);
+	}
+}
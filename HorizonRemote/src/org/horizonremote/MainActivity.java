@@ -16,7 +16,7 @@
 
 package org.horizonremote;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import android.os.Bundle;
 import android.app.Activity;
@@ -58,6 +58,9 @@ public class MainActivity extends Activity {
     private ListView mControllerList;
     ControllerInfoAdapter mControllerAdapter;    
     
+    /* shared with MainFragment, bound while the activity is resumed */
+    ControllerPrewarm mPrewarm;
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -69,6 +72,8 @@ public class MainActivity extends Activity {
 
         mDrawerContent = (View) findViewById(R.id.drawer_content);
         
+        mPrewarm = new ControllerPrewarm(this);
+        
         mControllerList = (ListView) findViewById(R.id.listview_controllers);
         mControllerList.setEmptyView(findViewById(R.id.empty_view));
         mControllerList.setOnItemClickListener(new OnItemClickListener() {
@@ -109,6 +114,12 @@ public class MainActivity extends Activity {
 
             public void onDrawerOpened(View drawerView) {
                 getActionBar().setTitle(mDrawerTitle);
+                
+                /* the list is shown, connect ahead of the first key press */
+                
+                if(mControllerAdapter != null)
+                	mControllerAdapter.prewarm();
+                
                 invalidateOptionsMenu();
             }
         };
@@ -122,12 +133,21 @@ public class MainActivity extends Activity {
 	@Override
 	protected void onResume() {
 		super.onResume();
+		
+		mPrewarm.bind();
 
 		/* load remote controllers */
 		
-		mControllerAdapter = new ControllerInfoAdapter(this, ControllerInfo.get(this));
+		mControllerAdapter = new ControllerInfoAdapter(this, ControllerInfo.get(this), mPrewarm);
         mControllerList.setAdapter(mControllerAdapter);
 	}
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		
+		mPrewarm.unbind();
+	}
     
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -220,11 +240,19 @@ public class MainActivity extends Activity {
     
     class ControllerInfoAdapter extends BaseAdapter {
     	Context context;
-    	ArrayList<ControllerInfo> list;
+    	List<ControllerInfo> list;
+    	
+    	ControllerPrewarm prewarm;
     	
-    	public ControllerInfoAdapter(Context context, ArrayList<ControllerInfo> list) {
+    	public ControllerInfoAdapter(Context context, List<ControllerInfo> list, ControllerPrewarm prewarm) {
     		this.context = context;
     		this.list = list;
+    		this.prewarm = prewarm;
+    	}
+    	
+    	void prewarm() {
+    		if(prewarm != null)
+    			prewarm.prewarm(list);
     	}
     	
 		@Override
@@ -263,6 +291,11 @@ public class MainActivity extends Activity {
 						.findViewById(R.id.text_controller_name);
 
 				textViewName.setText(info.name);
+				
+				view.setTag(info.id);
+				
+				if(prewarm != null)
+					view.setOnTouchListener(prewarm.touchListener);
 			}
 
 			return view;			
@@ -16,7 +16,7 @@
 
 package org.horizonremote;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Fragment;
 import android.content.Context;
@@ -45,10 +45,21 @@ public class MainFragment extends Fragment {
 	public void onResume() {
 		super.onResume();
 		
-		mControllerAdapter = new ControllerInfoAdapter(this.getActivity(), ControllerInfo.get(this.getActivity()));
+		/* MainActivity binds the service before its fragments are resumed */
+		
+		ControllerPrewarm prewarm = null;
+		
+		if(getActivity() instanceof MainActivity)
+			prewarm = ((MainActivity)getActivity()).mPrewarm;
+		
+		mControllerAdapter = new ControllerInfoAdapter(this.getActivity(), ControllerInfo.get(this.getActivity()), prewarm);
 		if(mControllerList != null) {
 			mControllerList.setAdapter(mControllerAdapter);
 		}
+		
+		/* the list is shown, connect ahead of the first key press */
+		
+		mControllerAdapter.prewarm();
 	}
 	
 
@@ -87,11 +98,19 @@ public class MainFragment extends Fragment {
 
 	class ControllerInfoAdapter extends BaseAdapter {
     	Context context;
-    	ArrayList<ControllerInfo> list;
+    	List<ControllerInfo> list;
     	
-    	public ControllerInfoAdapter(Context context, ArrayList<ControllerInfo> list) {
+    	ControllerPrewarm prewarm;
+    	
+    	public ControllerInfoAdapter(Context context, List<ControllerInfo> list, ControllerPrewarm prewarm) {
     		this.context = context;
     		this.list = list;
+    		this.prewarm = prewarm;
+    	}
+    	
+    	void prewarm() {
+    		if(prewarm != null)
+    			prewarm.prewarm(list);
     	}
     	
 		@Override
@@ -130,6 +149,11 @@ public class MainFragment extends Fragment {
 						.findViewById(R.id.text_controller_name);
 
 				textViewName.setText(info.name);
+				
+				view.setTag(info.id);
+				
+				if(prewarm != null)
+					view.setOnTouchListener(prewarm.touchListener);
 			}
 
 			return view;			
@@ -18,13 +18,7 @@ package org.horizonremote;
 
 import org.horizonremote.jni.JNIReference;
 
-public class RemoteController extends JNIReference {
-
-	public static final int STATE_FAILURE 		= -2;
-	public static final int STATE_DISCONNECTED	= -1;
-	public static final int STATE_CONNECTING	= 0;
-	public static final int STATE_CONNECTED 	= 1;
-	
+public class RemoteController extends JNIReference implements ControllerTransport {
 	
 	public static final int KEY_POWER		= 0xe000;
 	public static final int KEY_OK 			= 0xe001;
@@ -83,6 +77,10 @@ public class RemoteController extends JNIReference {
 		return nativeState(getReferencePointer());
 	}
 	
+	public int getConnectPhase() {
+		return nativeConnectPhase(getReferencePointer());
+	}
+	
 	public void sendKey(int keyCode, boolean keyDown) {
 		nativeSendKey(getReferencePointer(), keyCode, keyDown);
 	}
@@ -91,9 +89,38 @@ public class RemoteController extends JNIReference {
 		nativeToggleKey(getReferencePointer(), keyCode);
 	}
 	
+	public long sendKeys(int[] keyCodes, int[] flags, int count) {
+		if(count <= 0)
+			return 0;
+		
+		return nativeSendKeys(getReferencePointer(), keyCodes, flags, count);
+	}
+	
 	public boolean poll() {
 		return nativePoll(getReferencePointer());
 	}
+	
+	public boolean probe() {
+		return nativeProbe(getReferencePointer());
+	}
+	
+	public int getProbeAge() {
+		return nativeProbeAge(getReferencePointer());
+	}
+	
+	public int getRoundTripTime() {
+		return nativeRoundTripTime(getReferencePointer());
+	}
+	
+	public int getIdleTime() {
+		return nativeIdleTime(getReferencePointer());
+	}
+	
+	/* native pointer used by ControllerMultiplexer */
+	
+	public long pointer() {
+		return getReferencePointer();
+	}
 
 	/* native methods */
 	
@@ -101,7 +128,13 @@ public class RemoteController extends JNIReference {
 	private static native void nativeConnect(long pointer);
 	private static native void nativeDisconnect(long pointer);
 	private static native int  nativeState(long pointer);
+	private static native int  nativeConnectPhase(long pointer);
 	private static native void nativeSendKey(long pointer, int keycode, boolean down);
 	private static native void nativeToggleKey(long pointer, int keycode);
+	private static native long nativeSendKeys(long pointer, int[] keycodes, int[] flags, int count);
 	private static native boolean nativePoll(long pointer);
+	private static native boolean nativeProbe(long pointer);
+	private static native int  nativeProbeAge(long pointer);
+	private static native int  nativeRoundTripTime(long pointer);
+	private static native int  nativeIdleTime(long pointer);
 }
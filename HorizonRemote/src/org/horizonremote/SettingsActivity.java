@@ -16,12 +16,24 @@
 
 package org.horizonremote;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.horizonremote.rfb.RfbDiscovery;
+
+import android.content.Context;
 import android.content.Intent;
+import android.net.DhcpInfo;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
@@ -29,10 +41,18 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
+import android.widget.Toast;
 
 public class SettingsActivity extends PreferenceActivity {
 
+	/* shared by all instances so that the results of earlier scans are reused */
+	static final RfbDiscovery discovery = new RfbDiscovery();
+	
 	PreferenceCategory controllersCategory;
+	Preference discoverPref;
+	
+	/* mediaboxes found by the last scan and their protocol version */
+	final LinkedHashMap<String, String> discovered = new LinkedHashMap<String, String>();
 	
 	@SuppressWarnings("deprecation")
 	@Override
@@ -43,6 +63,13 @@ public class SettingsActivity extends PreferenceActivity {
 		addDynamicPreferences();
 	}
 	
+	@Override
+	protected void onDestroy() {
+		discovery.cancel();
+		
+		super.onDestroy();
+	}
+	
 	@SuppressWarnings("deprecation")
 	private void addDynamicPreferences() {
 
@@ -55,6 +82,79 @@ public class SettingsActivity extends PreferenceActivity {
 		screen.addPreference(controllersCategory);
 		reloadControllersCategory();
 		
+		PreferenceCategory connectionCategory = new PreferenceCategory(this);
+		connectionCategory.setTitle(R.string.settings_connection);
+		
+		screen.addPreference(connectionCategory);
+		
+		CheckBoxPreference sharedLoopPref = new CheckBoxPreference(this);
+		sharedLoopPref.setTitle(R.string.settings_shared_loop);
+		sharedLoopPref.setSummary(R.string.settings_shared_loop_summary);
+		sharedLoopPref.setKey(ControllerService.PREF_SHARED_LOOP);
+		sharedLoopPref.setDefaultValue(false);
+		
+		connectionCategory.addPreference(sharedLoopPref);
+		
+		/* repeat of held keys, lifetime of queued keys and urgent keys, the list values are 
+		 * stored as strings and read by ControllerService */
+		
+		PreferenceCategory keysCategory = new PreferenceCategory(this);
+		keysCategory.setTitle(R.string.settings_keys);
+		
+		screen.addPreference(keysCategory);
+		
+		ListPreference repeatDelayPref = new ListPreference(this);
+		repeatDelayPref.setTitle(R.string.settings_repeat_delay);
+		repeatDelayPref.setSummary(R.string.settings_repeat_delay_summary);
+		repeatDelayPref.setDialogTitle(R.string.settings_repeat_delay);
+		repeatDelayPref.setEntries(R.array.settings_repeat_delay_entries);
+		repeatDelayPref.setEntryValues(new String[] { "250", "400", "600", "800" });
+		repeatDelayPref.setKey(ControllerService.PREF_REPEAT_DELAY);
+		repeatDelayPref.setDefaultValue(Integer.toString(ControllerRepeat.DEFAULT_DELAY_MILLIS));
+		
+		keysCategory.addPreference(repeatDelayPref);
+		
+		ListPreference repeatRatePref = new ListPreference(this);
+		repeatRatePref.setTitle(R.string.settings_repeat_rate);
+		repeatRatePref.setSummary(R.string.settings_repeat_rate_summary);
+		repeatRatePref.setDialogTitle(R.string.settings_repeat_rate);
+		repeatRatePref.setEntries(R.array.settings_repeat_rate_entries);
+		repeatRatePref.setEntryValues(new String[] { "4", "8", "12" });
+		repeatRatePref.setKey(ControllerService.PREF_REPEAT_RATE);
+		repeatRatePref.setDefaultValue(Integer.toString(ControllerRepeat.DEFAULT_RATE));
+		
+		keysCategory.addPreference(repeatRatePref);
+		
+		ListPreference repeatAccelerationPref = new ListPreference(this);
+		repeatAccelerationPref.setTitle(R.string.settings_repeat_acceleration);
+		repeatAccelerationPref.setSummary(R.string.settings_repeat_acceleration_summary);
+		repeatAccelerationPref.setDialogTitle(R.string.settings_repeat_acceleration);
+		repeatAccelerationPref.setEntries(R.array.settings_repeat_acceleration_entries);
+		repeatAccelerationPref.setEntryValues(new String[] { "0", "25", "50", "100" });
+		repeatAccelerationPref.setKey(ControllerService.PREF_REPEAT_ACCELERATION);
+		repeatAccelerationPref.setDefaultValue(Integer.toString(ControllerRepeat.DEFAULT_ACCELERATION));
+		
+		keysCategory.addPreference(repeatAccelerationPref);
+		
+		ListPreference eventTtlPref = new ListPreference(this);
+		eventTtlPref.setTitle(R.string.settings_event_ttl);
+		eventTtlPref.setSummary(R.string.settings_event_ttl_summary);
+		eventTtlPref.setDialogTitle(R.string.settings_event_ttl);
+		eventTtlPref.setEntries(R.array.settings_event_ttl_entries);
+		eventTtlPref.setEntryValues(new String[] { "1000", "2000", "5000", "10000" });
+		eventTtlPref.setKey(ControllerService.PREF_EVENT_TTL);
+		eventTtlPref.setDefaultValue(Integer.toString(ControllerEventPolicy.DEFAULT_TTL_MILLIS));
+		
+		keysCategory.addPreference(eventTtlPref);
+		
+		CheckBoxPreference urgentPreemptsPref = new CheckBoxPreference(this);
+		urgentPreemptsPref.setTitle(R.string.settings_urgent_preempts);
+		urgentPreemptsPref.setSummary(R.string.settings_urgent_preempts_summary);
+		urgentPreemptsPref.setKey(ControllerService.PREF_URGENT_PREEMPTS);
+		urgentPreemptsPref.setDefaultValue(true);
+		
+		keysCategory.addPreference(urgentPreemptsPref);
+		
 		PreferenceCategory detailsCategory = new PreferenceCategory(this);
 		detailsCategory.setTitle(R.string.app_name);
 		
@@ -93,6 +193,27 @@ public class SettingsActivity extends PreferenceActivity {
 			controllersCategory.addPreference(createControllerScreen(key));
 		}
 		
+		for (Map.Entry<String, String> entry : discovered.entrySet()) {
+			addDiscoveredController(entry.getKey(), entry.getValue());
+		}
+		
+		if (discoverPref == null) {
+			discoverPref = new Preference(this);
+			discoverPref.setTitle(R.string.settings_controller_discover);
+			discoverPref.setSummary(R.string.settings_controller_discover_summary);
+			discoverPref.setOrder(999);
+			discoverPref
+					.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+						@Override
+						public boolean onPreferenceClick(Preference preference) {
+							discoverControllers();
+							return true;
+						}
+					});
+		}
+		
+		controllersCategory.addPreference(discoverPref);
+		
 		Preference addControllerPref = new Preference(this);
 		addControllerPref.setTitle(R.string.settings_controller_add);
 		addControllerPref.setIcon(android.R.drawable.ic_menu_add);
@@ -101,7 +222,8 @@ public class SettingsActivity extends PreferenceActivity {
 				.setOnPreferenceClickListener(new OnPreferenceClickListener() {
 					@Override
 					public boolean onPreferenceClick(Preference preference) {
-						createControllerScreen(ControllerInfo.newKey(SettingsActivity.this));
+						saved(ControllerInfo.add(SettingsActivity.this, 
+								ControllerInfo.DEFAULT_CONTROLLER_NAME, ControllerInfo.DEFAULT_CONTROLLER_ADDRESS) != null);
 						reloadControllersCategory();
 						return true;
 					}
@@ -110,18 +232,132 @@ public class SettingsActivity extends PreferenceActivity {
 		controllersCategory.addPreference(addControllerPref);
 	}	
 	
+	/**
+	 * Scans the subnet of the Wi-Fi connection for mediaboxes, they are listed as they are 
+	 * found.
+	 */
+	private void discoverControllers() {
+		WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+		DhcpInfo dhcp = wifi != null ? wifi.getDhcpInfo() : null;
+		
+		if (dhcp == null || dhcp.ipAddress == 0) {
+			discoverPref.setSummary(R.string.settings_controller_discover_no_wifi);
+			return;
+		}
+		
+		/* DhcpInfo stores addresses in network byte order in a little endian int */
+		
+		List<InetAddress> hosts;
+		
+		try {
+			InetAddress address = InetAddress.getByAddress(new byte[] { 
+					(byte) dhcp.ipAddress, (byte) (dhcp.ipAddress >>> 8), 
+					(byte) (dhcp.ipAddress >>> 16), (byte) (dhcp.ipAddress >>> 24) });
+			
+			hosts = RfbDiscovery.subnet(address, Integer.bitCount(dhcp.netmask));
+		} catch (UnknownHostException e) {
+			return;
+		}
+		
+		discovered.clear();
+		reloadControllersCategory();
+		
+		discoverPref.setSummary(R.string.settings_controller_discover_scanning);
+		discoverPref.setEnabled(false);
+		
+		discovery.scan(hosts, new RfbDiscovery.Listener() {
+			@Override
+			public void onServerFound(final InetAddress address, final String version) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						discovered.put(address.getHostAddress(), version);
+						addDiscoveredController(address.getHostAddress(), version);
+					}
+				});
+			}
+			
+			@Override
+			public void onScanFinished(final int found) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						discoverPref.setSummary(getString(R.string.settings_controller_discover_done, found));
+						discoverPref.setEnabled(true);
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Lists a mediabox found on the network unless a controller for it exists already, 
+	 * clicking it adds the controller.
+	 */
+	private void addDiscoveredController(final String address, String version) {
+		for (ControllerInfo info : ControllerInfo.get(this)) {
+			if (info.address.equals(address) || info.address.startsWith(address + ":"))
+				return;
+		}
+		
+		Preference foundPref = new Preference(this);
+		foundPref.setTitle(address);
+		foundPref.setSummary(getString(R.string.settings_controller_discovered_summary, version));
+		foundPref.setIcon(R.drawable.ic_action_dock);
+		foundPref.setOrder(900);
+		foundPref
+				.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+					@Override
+					public boolean onPreferenceClick(Preference preference) {
+						saved(ControllerInfo.add(SettingsActivity.this, ControllerInfo.DEFAULT_CONTROLLER_NAME, address) != null);
+						reloadControllersCategory();
+						return true;
+					}
+				});
+		
+		controllersCategory.addPreference(foundPref);
+	}
+	
+	/**
+	 * Tells the user when a change of the controllers could not be stored.
+	 * 
+	 * @return saved
+	 */
+	private boolean saved(boolean saved) {
+		if(!saved)
+			Toast.makeText(this, R.string.settings_controller_not_saved, Toast.LENGTH_SHORT).show();
+		
+		return saved;
+	}
+	
+	/**
+	 * Forces the controller to reconnect, e.g. after its address has changed.
+	 */
+	private void restartController(String key) {
+		Intent intent = new Intent(this, ControllerService.class)
+				.setAction(ControllerService.ACTION_EVENT)
+				.putExtra(ControllerService.EXTRA_EVENT_ID, ControllerInfo.id(key))
+				.putExtra(ControllerService.EXTRA_EVENT_ACTION, ControllerService.EVENT_RECONNECT)
+				.putExtra(ControllerService.EXTRA_EVENT_DATA, 1);
+		
+		startService(intent);
+	}
+	
 	@SuppressWarnings("deprecation")
 	private PreferenceScreen createControllerScreen(String key) {
 
 		PreferenceManager manager = getPreferenceManager();
 
-		final String controllerName = ControllerInfo.getName(this, key);
+		/* the preferences only edit the record, it is kept by the ControllerStore */
+		
+		final ControllerInfo info 	= ControllerInfo.get(this, key);
 		final String controllerKey 	= key;
+		final int controllerId 		= info.id;
 		
 		final PreferenceScreen controllerScreen = manager
 				.createPreferenceScreen(this);
 		
-		controllerScreen.setTitle(controllerName);
+		controllerScreen.setTitle(info.name);
 		controllerScreen.setIcon(R.drawable.ic_action_dock);
 		
 		/* name */
@@ -131,7 +367,8 @@ public class SettingsActivity extends PreferenceActivity {
 		namePref.setSummary(R.string.settings_controller_name_summary);
 		namePref.setDialogTitle(R.string.settings_controller_name);
 		namePref.setKey(key + ControllerInfo.PREF_NAME);
-		namePref.setDefaultValue(ControllerInfo.DEFAULT_CONTROLLER_NAME);
+		namePref.setPersistent(false);
+		namePref.setText(info.name);
 		namePref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
 			@Override
 			public boolean onPreferenceChange(Preference preference,
@@ -139,6 +376,9 @@ public class SettingsActivity extends PreferenceActivity {
 				
 				String name = (String)newValue;
 				
+				if(!saved(ControllerInfo.setName(SettingsActivity.this, controllerId, name)))
+					return false;
+				
 				/* update screen and dialog title */
 				
 				controllerScreen.setTitle(name);
@@ -155,26 +395,50 @@ public class SettingsActivity extends PreferenceActivity {
 		addressPref.setSummary(R.string.settings_controller_address_summary);
 		addressPref.setDialogTitle(R.string.settings_controller_address);
 		addressPref.setKey(key + ControllerInfo.PREF_ADDRESS);
-		addressPref.setDefaultValue(ControllerInfo.DEFAULT_CONTROLLER_ADDRESS);
+		addressPref.setPersistent(false);
+		addressPref.setText(info.address);
 		addressPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
 			@Override
 			public boolean onPreferenceChange(Preference preference,
 					Object newValue) {
 				
-				/* force restart controller */				
-				
-				Intent intent = new Intent(SettingsActivity.this, ControllerService.class)
-						.putExtra(ControllerService.EXTRA_EVENT_ID, ControllerInfo.id(controllerKey))
-						.putExtra(ControllerService.EXTRA_EVENT_ACTION, ControllerService.EVENT_RECONNECT)
-						.putExtra(ControllerService.EXTRA_EVENT_DATA, 1);
+				if(!saved(ControllerInfo.setAddress(SettingsActivity.this, controllerId, (String)newValue)))
+					return false;
 				
-				SettingsActivity.this.startService(intent);
+				restartController(controllerKey);
 				
 				return true;
 			}
 		});
 
 		controllerScreen.addPreference(addressPref);
+		
+		/* connection implementation */
+		
+		ListPreference transportPref = new ListPreference(this);
+		transportPref.setTitle(R.string.settings_controller_transport);
+		transportPref.setSummary(R.string.settings_controller_transport_summary);
+		transportPref.setDialogTitle(R.string.settings_controller_transport);
+		transportPref.setEntries(R.array.settings_controller_transport_entries);
+		transportPref.setEntryValues(new String[] { ControllerInfo.TRANSPORT_NATIVE, ControllerInfo.TRANSPORT_JAVA });
+		transportPref.setKey(key + ControllerInfo.PREF_TRANSPORT);
+		transportPref.setPersistent(false);
+		transportPref.setValue(info.transport);
+		transportPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+			@Override
+			public boolean onPreferenceChange(Preference preference,
+					Object newValue) {
+				
+				if(!saved(ControllerInfo.setTransport(SettingsActivity.this, controllerId, (String)newValue)))
+					return false;
+				
+				restartController(controllerKey);
+				
+				return true;
+			}
+		});
+		
+		controllerScreen.addPreference(transportPref);
 
 		/* delete button */
 
@@ -187,8 +451,9 @@ public class SettingsActivity extends PreferenceActivity {
 					@Override
 					public boolean onPreferenceClick(Preference preference) {
 
-						ControllerInfo.remove(SettingsActivity.this,
-								preference.getKey());
+						if(!saved(ControllerInfo.remove(SettingsActivity.this,
+								preference.getKey())))
+							return true;
 
 						Intent intent = new Intent(SettingsActivity.this,
 								SettingsActivity.class);
@@ -202,13 +467,6 @@ public class SettingsActivity extends PreferenceActivity {
 				});
 
 		controllerScreen.addPreference(deleteControllerPref);
-		/* make sure the record has a valid id based on its key */
-		
-		manager
-			.getSharedPreferences()
-			.edit()
-			.putInt(key, ControllerInfo.id(key))
-			.commit();
 
 		return controllerScreen;
 	}	
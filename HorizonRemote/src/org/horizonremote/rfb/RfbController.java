@@ -0,0 +1,636 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote.rfb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.horizonremote.ControllerTransport;
+
+import android.util.Log;
+
+/**
+ * RfbController is a pure Java implementation of the RFB client subset used to control a
+ * mediabox: the version and security handshake ( without authentication ), ServerInit and 
+ * KeyEvents, every message sent by the server is skipped. It runs on a non-blocking 
+ * SocketChannel with reusable direct buffers and follows the semantics of the native 
+ * RemoteController, which makes it usable without libhorizonremote ( e.g. on a plain JVM ).
+ * 
+ * As its socket can not be waited for by a ControllerMultiplexer it has to be polled.
+ * 
+ * @author rogro82
+ */
+public class RfbController implements ControllerTransport {
+	
+	static final String LOG_TAG = "RfbController";
+	
+	public static final int DEFAULT_PORT = 5900;
+	
+	static final int BUFFER_SIZE = 8192;
+	
+	static final int CONNECT_TIMEOUT_MILLIS = 10000;
+	static final int CONNECT_WAIT_MILLIS = 100;
+	
+	static final int KEY_EVENT_SIZE = 8;
+	static final int FRAMEBUFFER_REQUEST_SIZE = 10;
+	
+	/* how long probes may go unanswered before the box answered one, see probeSettled */
+	static final int PROBE_SETTLE_MAX_MILLIS = 30000;
+	
+	static final int PHASE_NONE 				= 0;
+	static final int PHASE_VERSION 				= 1;
+	static final int PHASE_SECURITY 			= 2;	/* 3.3, security type chosen by the server */
+	static final int PHASE_SECURITY_TYPES		= 3;	/* 3.7+, security type chosen by the client */
+	static final int PHASE_SECURITY_RESULT		= 4;
+	static final int PHASE_SERVER_INIT 			= 5;
+	static final int PHASE_CONNECTED 			= 6;
+	static final int PHASE_FAILED 				= 7;
+	
+	static final int SECURITY_NONE = 1;
+	
+	final String host;
+	final int port;
+	
+	SocketChannel channel;
+	
+	/* both buffers are kept in fill mode in between calls */
+	final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	
+	int phase = PHASE_NONE;
+	int minor;
+	int bytesPerPixel;
+	
+	/* rectangles left in the current framebuffer update and bytes left to be skipped */
+	int rects;
+	long skip;
+	
+	/* liveness, times are in millis() */
+	long lastReceive;
+	long probeSent;
+	long probeUnansweredSince;
+	boolean probing;
+	int roundTripTime = -1;
+	
+	public RfbController(String address) {
+		final int separator = address.lastIndexOf(':');
+		
+		if(separator > 0) {
+			this.host = address.substring(0, separator);
+			this.port = Integer.parseInt(address.substring(separator + 1));
+		} else {
+			this.host = address;
+			this.port = DEFAULT_PORT;
+		}
+	}
+	
+	@Override
+	public void connect() {
+		Selector selector = null;
+		
+		try {
+			selector = Selector.open();
+			
+			final long deadline = millis() + CONNECT_TIMEOUT_MILLIS;
+			
+			while(poll() && phase != PHASE_CONNECTED) {
+				final long left = deadline - millis();
+				
+				if(left <= 0) {
+					fail("timed out");
+					break;
+				}
+				
+				final int ops = (channel.isConnectionPending() 
+						? SelectionKey.OP_CONNECT : SelectionKey.OP_READ);
+				
+				channel.register(selector, ops);
+				selector.select(Math.min(left, CONNECT_WAIT_MILLIS));
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			if(selector != null) {
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void disconnect() {
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			
+			channel = null;
+		}
+		
+		in.clear();
+		out.clear();
+		
+		phase = PHASE_NONE;
+		rects = 0;
+		skip = 0;
+		probing = false;
+	}
+	
+	@Override
+	public int getState() {
+		switch(phase) {
+		case PHASE_CONNECTED:
+			return STATE_CONNECTED;
+		case PHASE_FAILED:
+			return STATE_FAILURE;
+		default:
+			return STATE_DISCONNECTED;
+		}
+	}
+	
+	@Override
+	public int getConnectPhase() {
+		if(channel == null)
+			return CONNECT_PHASE_RESOLVE;
+		
+		if(channel.isConnectionPending())
+			return CONNECT_PHASE_TCP;
+		
+		return phase == PHASE_CONNECTED ? CONNECT_PHASE_DONE : CONNECT_PHASE_HANDSHAKE;
+	}
+	
+	@Override
+	public void sendKey(int keyCode, boolean keyDown) {
+		if(phase != PHASE_CONNECTED)
+			return;
+		
+		reserve(KEY_EVENT_SIZE);
+		putKeyEvent(keyCode, keyDown);
+		flush();
+	}
+	
+	@Override
+	public void toggleKey(int keyCode) {
+		if(phase != PHASE_CONNECTED)
+			return;
+		
+		reserve(2 * KEY_EVENT_SIZE);
+		putKeyEvent(keyCode, true);
+		putKeyEvent(keyCode, false);
+		flush();
+	}
+	
+	@Override
+	public long sendKeys(int[] keyCodes, int[] flags, int count) {
+		if(phase != PHASE_CONNECTED || count <= 0)
+			return 0;
+		
+		reserve(2 * KEY_EVENT_SIZE * count);
+		
+		for(int i = 0; i < count; ++i) {
+			if((flags[i] & KEY_FLAG_DOWN) != 0)
+				putKeyEvent(keyCodes[i], true);
+			
+			if((flags[i] & KEY_FLAG_UP) != 0)
+				putKeyEvent(keyCodes[i], false);
+		}
+		
+		flush();
+		
+		/* keys which did not fit in the socket buffer leave on a later poll */
+		return out.position() == 0 ? System.nanoTime() : 0;
+	}
+	
+	@Override
+	public boolean poll() {
+		if(phase == PHASE_FAILED)
+			return false;
+		
+		try {
+			if(channel == null) {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setKeepAlive(true);
+				channel.connect(new InetSocketAddress(host, port));
+				
+				phase = PHASE_VERSION;
+				lastReceive = millis();
+			}
+			
+			if(channel.isConnectionPending() && !channel.finishConnect())
+				return true;
+			
+			/* read and handle everything which has been received so far */
+			
+			int received;
+			
+			while((received = channel.read(in)) > 0) {
+				lastReceive = millis();
+				
+				in.flip();
+				handleInput();
+				in.compact();
+				
+				if(phase == PHASE_FAILED)
+					return false;
+			}
+			
+			if(received < 0) {
+				Log.d(LOG_TAG, "connection closed by " + host);
+				return false;
+			}
+			
+			flush();
+			
+		} catch (IOException e) {
+			fail(e);
+		}
+		
+		return phase != PHASE_FAILED;
+	}
+	
+	@Override
+	public boolean probe() {
+		if(phase != PHASE_CONNECTED)
+			return false;
+		
+		if(getProbeAge() < 0) {
+			
+			/* ask for a single pixel, unlike an incremental request this is answered right away */
+			
+			reserve(FRAMEBUFFER_REQUEST_SIZE);
+			out.put((byte)3).put((byte)0).putInt(0).putShort((short)1).putShort((short)1);
+			flush();
+			
+			final long now = millis();
+			
+			/* a probe sent while an earlier one is settled but unanswered keeps its start */
+			
+			if(!probing)
+				probeUnansweredSince = now;
+			
+			probeSent = now;
+			probing = true;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public int getProbeAge() {
+		
+		/* anything received after the probe was sent shows that the connection is alive, in 
+		 * the same millisecond as well */
+		
+		if(!probing || lastReceive >= probeSent || probeSettled())
+			return -1;
+		
+		return (int)(millis() - probeSent);
+	}
+	
+	@Override
+	public int getRoundTripTime() {
+		return roundTripTime;
+	}
+	
+	@Override
+	public int getIdleTime() {
+		
+		/* a settled probe counts as well, a box which never answers is otherwise probed over and over */
+		
+		if(probing && probeSent > lastReceive && probeSettled())
+			return (int)(millis() - probeSent);
+		
+		return (int)(millis() - lastReceive);
+	}
+	
+	/**
+	 * Boxes are not obliged to answer a request for the screen right away and we can not see 
+	 * whether the peer acknowledged the probe. Until the box answered a probe on this connection 
+	 * a probe which has been written completely is taken as answered and finding a dead 
+	 * connection is left to the socket keepalive, for at most PROBE_SETTLE_MAX_MILLIS of 
+	 * unanswered probes so that a box which never answers can still be found dead.
+	 */
+	boolean probeSettled() {
+		return roundTripTime < 0 && out.position() == 0 
+				&& millis() - probeUnansweredSince < PROBE_SETTLE_MAX_MILLIS;
+	}
+	
+	@Override
+	public long pointer() {
+		return 0;
+	}
+	
+	void fail(Exception e) {
+		Log.d(LOG_TAG, "connection to " + host + " failed: " + e.getMessage());
+		phase = PHASE_FAILED;
+	}
+	
+	void fail(String reason) {
+		Log.d(LOG_TAG, "connection to " + host + " failed: " + reason);
+		phase = PHASE_FAILED;
+	}
+	
+	/**
+	 * Handles the flipped input buffer for as long as it holds complete messages.
+	 */
+	void handleInput() {
+		for(;;) {
+			final int position = in.position();
+			final int available = in.remaining();
+			
+			if(skip > 0) {
+				if(available == 0)
+					return;
+				
+				final int skipped = (int)Math.min(skip, available);
+				in.position(position + skipped);
+				skip -= skipped;
+				continue;
+			}
+			
+			switch(phase) {
+			case PHASE_VERSION:
+				if(available < 12)
+					return;
+				
+				if(in.get(position) != 'R' || in.get(position + 1) != 'F' || in.get(position + 2) != 'B') {
+					fail("unknown remote control protocol");
+					return;
+				}
+				
+				minor = digits(position + 8);
+				
+				/* respond with the same protocol version as we got from the server */
+				
+				reserve(12);
+				for(int i = 0; i < 12; ++i)
+					out.put(in.get(position + i));
+				
+				in.position(position + 12);
+				phase = (digits(position + 4) == 3 && minor < 7) ? PHASE_SECURITY : PHASE_SECURITY_TYPES;
+				break;
+				
+			case PHASE_SECURITY:
+				if(available < 4)
+					return;
+				
+				final int type = in.getInt(position);
+				in.position(position + 4);
+				
+				if(type != SECURITY_NONE) {
+					fail("unsupported security type " + type);
+					return;
+				}
+				
+				initialize();
+				break;
+				
+			case PHASE_SECURITY_TYPES:
+				if(available < 1)
+					return;
+				
+				final int count = in.get(position) & 0xff;
+				if(count == 0) {
+					fail("server refused connection");
+					return;
+				}
+				
+				if(available < 1 + count)
+					return;
+				
+				boolean supported = false;
+				for(int i = 0; i < count; ++i) {
+					if(in.get(position + 1 + i) == SECURITY_NONE)
+						supported = true;
+				}
+				
+				in.position(position + 1 + count);
+				
+				if(!supported) {
+					fail("server requires authentication");
+					return;
+				}
+				
+				reserve(1);
+				out.put((byte)SECURITY_NONE);
+				
+				if(minor >= 8) {
+					phase = PHASE_SECURITY_RESULT;
+				} else {
+					initialize();
+				}
+				break;
+				
+			case PHASE_SECURITY_RESULT:
+				if(available < 4)
+					return;
+				
+				final int result = in.getInt(position);
+				in.position(position + 4);
+				
+				if(result != 0) {
+					fail("security handshake failed");
+					return;
+				}
+				
+				initialize();
+				break;
+				
+			case PHASE_SERVER_INIT:
+				if(available < 24)
+					return;
+				
+				bytesPerPixel = (in.get(position + 4) & 0xff) / 8;
+				skip = in.getInt(position + 20) & 0xffffffffL;	/* name */
+				in.position(position + 24);
+				
+				/* only ask for raw encoding, we never request the screen anyway */
+				
+				reserve(8);
+				out.put((byte)2).put((byte)0).putShort((short)1).putInt(0);
+				
+				phase = PHASE_CONNECTED;
+				break;
+				
+			case PHASE_CONNECTED:
+				if(!skipMessage(position, available))
+					return;
+				break;
+				
+			default:
+				in.position(position + available);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Skips ( the start of ) a single server message.
+	 * 
+	 * @return false if more input is needed
+	 */
+	boolean skipMessage(int position, int available) {
+		if(rects > 0) {
+			if(available < 12)
+				return false;
+			
+			final int x = in.getShort(position) & 0xffff;
+			final int y = in.getShort(position + 2) & 0xffff;
+			final int width = in.getShort(position + 4) & 0xffff;
+			final int height = in.getShort(position + 6) & 0xffff;
+			final int encoding = in.getInt(position + 8);
+			
+			if(encoding != 0) {
+				fail("unsupported encoding " + encoding);
+				return false;
+			}
+			
+			/* only the update with the pixel the probe asked for answers it */
+			
+			if(x == 0 && y == 0 && width > 0 && height > 0)
+				probeAnswered();
+			
+			in.position(position + 12);
+			skip = (long)width * height * bytesPerPixel;
+			rects--;
+			return true;
+		}
+		
+		if(available < 1)
+			return false;
+		
+		switch(in.get(position)) {
+		case 0: /* framebuffer update */
+			if(available < 4)
+				return false;
+			
+			rects = in.getShort(position + 2) & 0xffff;
+			in.position(position + 4);
+			return true;
+			
+		case 1: /* colormap entries */
+			if(available < 6)
+				return false;
+			
+			skip = 6L * (in.getShort(position + 4) & 0xffff);
+			in.position(position + 6);
+			return true;
+			
+		case 2: /* bell */
+			in.position(position + 1);
+			return true;
+			
+		case 3: /* clipboard */
+			if(available < 8)
+				return false;
+			
+			skip = in.getInt(position + 4) & 0xffffffffL;
+			in.position(position + 8);
+			return true;
+			
+		default:
+			fail("unsupported message " + in.get(position));
+			return false;
+		}
+	}
+	
+	void probeAnswered() {
+		if(!probing)
+			return;
+		
+		/* smoothed like the TCP round trip estimate */
+		
+		final int sample = (int)(millis() - probeSent);
+		roundTripTime = roundTripTime < 0 ? sample : (7 * roundTripTime + sample) / 8;
+		probing = false;
+	}
+	
+	static long millis() {
+		return System.nanoTime() / 1000000;
+	}
+	
+	void initialize() {
+		
+		/* ask for a shared session */
+		
+		reserve(1);
+		out.put((byte)1);
+		
+		phase = PHASE_SERVER_INIT;
+	}
+	
+	int digits(int position) {
+		int value = 0;
+		
+		for(int i = 0; i < 3; ++i)
+			value = value * 10 + (in.get(position + i) - '0');
+		
+		return value;
+	}
+	
+	void putKeyEvent(int keyCode, boolean keyDown) {
+		out.put((byte)4).put((byte)(keyDown ? 1 : 0)).putShort((short)0).putInt(keyCode & 0xffff);
+	}
+	
+	/**
+	 * Makes room for bytes in the output buffer, grows it when the connection can not 
+	 * take the pending output.
+	 */
+	void reserve(int bytes) {
+		if(out.remaining() >= bytes)
+			return;
+		
+		flush();
+		
+		if(out.remaining() < bytes) {
+			final ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(out.capacity() * 2, out.position() + bytes));
+			
+			out.flip();
+			grown.put(out);
+			out = grown;
+		}
+	}
+	
+	/**
+	 * Writes as much of the pending output as the connection takes without blocking.
+	 */
+	void flush() {
+		if(out.position() == 0 || channel == null || channel.isConnectionPending())
+			return;
+		
+		out.flip();
+		
+		try {
+			while(out.hasRemaining() && channel.write(out) > 0)
+				;
+		} catch (IOException e) {
+			fail(e);
+		}
+		
+		out.compact();
+	}
+}
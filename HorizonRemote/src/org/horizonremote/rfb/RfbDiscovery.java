@@ -0,0 +1,441 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote.rfb;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * RfbDiscovery finds RFB servers ( mediaboxes ) on the local network. A scan connects to 
+ * every host at once from a single thread, up to MAX_IN_FLIGHT non-blocking connects are 
+ * waited for by one Selector, and a host counts as found once it sent an RFB 003.xxx
+ * version banner. Found hosts are reported as they arrive.
+ * 
+ * Results are cached for a while, so scanning again only probes the hosts which are not
+ * known yet: cached servers are reported right away and hosts which did not answer are
+ * skipped until their entry expires.
+ * 
+ * @author rogro82
+ */
+public class RfbDiscovery {
+	
+	static final String LOG_TAG = "RfbDiscovery";
+	
+	public static final int MAX_IN_FLIGHT = 256;
+	
+	/* time a host gets to connect and send its banner */
+	public static final int PROBE_TIMEOUT_MILLIS = 500;
+	
+	public static final int FOUND_TTL_MILLIS 		= 300000;
+	public static final int NOT_FOUND_TTL_MILLIS 	= 60000;
+	
+	/* the largest subnet which is scanned */
+	public static final int MIN_PREFIX_LENGTH = 24;
+	
+	static final int BANNER_SIZE = 12;
+	
+	public interface Listener {
+		
+		/**
+		 * Called on the scan thread for every server found, version is its banner without 
+		 * the line feed ( e.g. RFB 003.008 ).
+		 */
+		void onServerFound(InetAddress address, String version);
+		
+		/**
+		 * Called on the scan thread when the scan finished, a cancelled scan stops calling 
+		 * its listener ( a call which was under way still completes ).
+		 */
+		void onScanFinished(int found);
+	}
+	
+	static final class Result {
+		final long time;
+		final String version;	/* null when no server was found */
+		
+		Result(long time, String version) {
+			this.time = time;
+			this.version = version;
+		}
+		
+		boolean isValid(long now) {
+			return now - time < (version != null ? FOUND_TTL_MILLIS : NOT_FOUND_TTL_MILLIS);
+		}
+	}
+	
+	static final class Probe {
+		final InetAddress address;
+		final SocketChannel channel;
+		final long deadline;
+		final ByteBuffer banner = ByteBuffer.allocate(BANNER_SIZE);
+		
+		Probe(InetAddress address, SocketChannel channel, long deadline) {
+			this.address = address;
+			this.channel = channel;
+			this.deadline = deadline;
+		}
+	}
+	
+	final int port;
+	
+	final HashMap<InetAddress, Result> cache = new HashMap<InetAddress, Result>();
+	
+	/* the scan started last, guarded by this */
+	Scan running;
+	
+	/**
+	 * A single scan of a list of hosts with a cancelled flag and selector of its own, so that
+	 * a new scan never revives a cancelled one. A cancelled scan ends on its own, nobody has 
+	 * to wait for it.
+	 */
+	final class Scan implements Runnable {
+		final List<InetAddress> hosts;
+		final Listener listener;
+		
+		volatile boolean cancelled;
+		volatile Selector selector;
+		
+		Scan(List<InetAddress> hosts, Listener listener) {
+			this.hosts = hosts;
+			this.listener = listener;
+		}
+		
+		@Override
+		public void run() {
+			int found = 0;
+			
+			try {
+				found = scanHosts();
+			} catch (IOException e) {
+				Log.d(LOG_TAG, "scan failed: " + e.getMessage());
+			}
+			
+			if(!cancelled)
+				listener.onScanFinished(found);
+		}
+		
+		/**
+		 * Stops the scan without waiting for it, a waiting scan is woken up and ends right 
+		 * away, the listener is not called any more unless a call was already under way.
+		 */
+		void cancel() {
+			cancelled = true;
+			
+			final Selector waiting = selector;
+			if(waiting != null)
+				waiting.wakeup();
+		}
+		
+		void report(InetAddress address, String version) {
+			if(!cancelled)
+				listener.onServerFound(address, version);
+		}
+		
+		/**
+		 * Scans the hosts on the calling thread.
+		 * 
+		 * @return the number of servers found
+		 */
+		int scanHosts() throws IOException {
+			final Selector selector = Selector.open();
+			this.selector = selector;
+			
+			final ArrayList<Probe> probes = new ArrayList<Probe>(Math.min(hosts.size(), MAX_IN_FLIGHT));
+			
+			int found = 0;
+			int next = 0;
+			
+			try {
+				while(!cancelled && (next < hosts.size() || !probes.isEmpty())) {
+					long now = millis();
+					
+					/* start probes for the hosts which are not cached while there is room */
+					
+					while(next < hosts.size() && probes.size() < MAX_IN_FLIGHT) {
+						final InetAddress host = hosts.get(next++);
+						final Result result;
+						
+						synchronized(cache) {
+							result = cache.get(host);
+						}
+						
+						if(result != null && result.isValid(now)) {
+							if(result.version != null) {
+								report(host, result.version);
+								found++;
+							}
+							continue;
+						}
+						
+						final Probe probe = open(host, now + PROBE_TIMEOUT_MILLIS);
+						
+						if(probe != null) {
+							probe.channel.register(selector, 
+									probe.channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, probe);
+							probes.add(probe);
+						}
+					}
+					
+					if(probes.isEmpty())
+						continue;
+					
+					/* probes are started together so the oldest one expires first */
+					
+					final long wait = probes.get(0).deadline - now;
+					
+					if(wait > 0)
+						selector.select(wait);
+					else
+						selector.selectNow();
+					
+					final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					
+					while(it.hasNext()) {
+						final SelectionKey key = it.next();
+						it.remove();
+						
+						final Probe probe = (Probe)key.attachment();
+						final String version = advance(probe, key);
+						
+						if(version == null)
+							continue;
+						
+						if(version.length() > 0) {
+							report(probe.address, version);
+							found++;
+						}
+						
+						finish(probe, version);
+						probes.remove(probe);
+					}
+					
+					/* drop the probes which ran out of time */
+					
+					now = millis();
+					
+					while(!probes.isEmpty() && probes.get(0).deadline <= now) {
+						finish(probes.remove(0), "");
+					}
+				}
+			} finally {
+				for(Probe probe : probes)
+					close(probe);
+				
+				this.selector = null;
+				selector.close();
+			}
+			
+			return found;
+		}
+	}
+	
+	public RfbDiscovery() {
+		this(RfbController.DEFAULT_PORT);
+	}
+	
+	public RfbDiscovery(int port) {
+		this.port = port;
+	}
+	
+	/**
+	 * Scans hosts on a new thread, a scan which is still running is cancelled first.
+	 */
+	public synchronized void scan(List<InetAddress> hosts, Listener listener) {
+		cancel();
+		
+		running = new Scan(hosts, listener);
+		
+		new Thread(running, "RfbDiscovery").start();
+	}
+	
+	/**
+	 * Stops a running scan without waiting for its thread, which ends shortly after. Its 
+	 * listener is not called any more unless a call was already under way, so this can be
+	 * called from the ui thread.
+	 */
+	public synchronized void cancel() {
+		if(running == null)
+			return;
+		
+		running.cancel();
+		running = null;
+	}
+	
+	/**
+	 * Forgets all cached results.
+	 */
+	public void clearCache() {
+		synchronized(cache) {
+			cache.clear();
+		}
+	}
+	
+	/**
+	 * Scans hosts on the calling thread.
+	 * 
+	 * @return the number of servers found
+	 */
+	public int scanHosts(List<InetAddress> hosts, Listener listener) throws IOException {
+		return new Scan(hosts, listener).scanHosts();
+	}
+	
+	Probe open(InetAddress host, long deadline) {
+		SocketChannel channel = null;
+		
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(host, port));
+			
+			return new Probe(host, channel, deadline);
+			
+		} catch (IOException e) {
+			
+			/* e.g. out of descriptors, the host is probed by the next scan */
+			
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ce) {
+				}
+			}
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Advances a probe whose channel is ready.
+	 * 
+	 * @return null while the probe is still running, the banner when a server was found 
+	 * or an empty string when it was not
+	 */
+	String advance(Probe probe, SelectionKey key) {
+		try {
+			if(key.isConnectable()) {
+				if(!probe.channel.finishConnect())
+					return null;
+				
+				key.interestOps(SelectionKey.OP_READ);
+				return null;
+			}
+			
+			if(key.isReadable()) {
+				if(probe.channel.read(probe.banner) < 0)
+					return "";
+				
+				if(probe.banner.hasRemaining())
+					return null;
+				
+				return version(probe.banner);
+			}
+		} catch (IOException e) {
+			
+			/* refused or unreachable */
+			
+			return "";
+		}
+		
+		return null;
+	}
+	
+	void finish(Probe probe, String version) {
+		close(probe);
+		
+		final Result result = new Result(millis(), version.length() > 0 ? version : null);
+		
+		synchronized(cache) {
+			cache.put(probe.address, result);
+		}
+	}
+	
+	static void close(Probe probe) {
+		try {
+			probe.channel.close();
+		} catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * @return the version of a valid RFB 003.xxx banner or an empty string
+	 */
+	static String version(ByteBuffer banner) {
+		final byte[] bytes = banner.array();
+		final String version = new String(bytes, 0, BANNER_SIZE - 1);
+		
+		if(!version.startsWith("RFB 003.") || bytes[BANNER_SIZE - 1] != '\n')
+			return "";
+		
+		for(int i = 8; i < BANNER_SIZE - 1; ++i) {
+			if(bytes[i] < '0' || bytes[i] > '9')
+				return "";
+		}
+		
+		return version;
+	}
+	
+	/**
+	 * Returns the hosts of the IPv4 subnet of address, except for address itself and the
+	 * network and broadcast addresses. Subnets larger than MIN_PREFIX_LENGTH are narrowed
+	 * to the part around address.
+	 */
+	public static List<InetAddress> subnet(InetAddress address, int prefixLength) {
+		final ArrayList<InetAddress> hosts = new ArrayList<InetAddress>();
+		
+		if(!(address instanceof Inet4Address))
+			return hosts;
+		
+		prefixLength = Math.max(MIN_PREFIX_LENGTH, Math.min(32, prefixLength));
+		
+		final byte[] bytes = address.getAddress();
+		final int self = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+		final int mask = prefixLength == 32 ? -1 : ~(-1 >>> prefixLength);
+		final int network = self & mask;
+		final int broadcast = network | ~mask;
+		
+		for(int host = network + 1; host < broadcast; ++host) {
+			if(host == self)
+				continue;
+			
+			try {
+				hosts.add(InetAddress.getByAddress(new byte[] { 
+						(byte)(host >>> 24), (byte)(host >>> 16), (byte)(host >>> 8), (byte)host }));
+			} catch (UnknownHostException e) {
+				/* not thrown for addresses of a valid length */
+			}
+		}
+		
+		return hosts;
+	}
+	
+	static long millis() {
+		return System.nanoTime() / 1000000;
+	}
+}
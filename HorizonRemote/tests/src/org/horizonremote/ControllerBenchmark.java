@@ -0,0 +1,379 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import org.horizonremote.rfb.MockRfbServer;
+import org.horizonremote.rfb.RfbController;
+import org.horizonremote.rfb.RfbEncoding;
+
+import android.os.SystemClock;
+
+/**
+ * ControllerBenchmark measures the stages of the key dispatch pipeline on a plain JVM and 
+ * prints the throughput and the p50 / p99 / p999 time of each, see the README:
+ * 
+ * - enqueue into a ControllerEventQueue which a consumer drains, by one and four producers.
+ * - draining a batch of events from the queue.
+ * - encoding KeyEvents ( RfbController, without a socket ).
+ * - ControllerInfo lookups by id ( ControllerRegistry snapshot ) and by key.
+ * - dispatch to socket: from queueing a key until a MockRfbServer received it, through a
+ *   ControllerLoop with the native and the Java transport. These need libhorizonremote.
+ * 
+ * Every operation is timed on its own with the overhead of System.nanoTime taken off for the
+ * percentiles, the throughput is measured over a run without timers ( including the setup of 
+ * each operation, which is kept small ). The first run of each stage warms up.
+ * 
+ * Usage: ControllerBenchmark [operations per stage]
+ *
+ * @author rogro82
+ */
+public final class ControllerBenchmark {
+	
+	static final int DEFAULT_OPERATIONS = 1000000;
+	
+	static final int BATCH_SIZE 	= 32;
+	static final int CONTROLLERS 	= 64;
+	static final int PRODUCERS 		= 4;
+	
+	/* keys sent end to end and the pause in between */
+	static final int KEYS 			= 20000;
+	static final long KEY_PAUSE_NANOS = 100000;
+	
+	static long timerOverhead;
+	
+	/**
+	 * A measured operation, setup is not timed. An operation which could not be done ( e.g. 
+	 * the queue was full ) returns false and is retried after a yield, only the attempt which 
+	 * succeeded counts.
+	 */
+	static abstract class Operation {
+		void setup(int thread, int i) {
+		}
+		
+		abstract boolean run(int thread, int i);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		final int operations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPERATIONS;
+		
+		timerOverhead = timerOverhead();
+		
+		System.out.println(String.format(Locale.US, "%-28s %14s %10s %10s %10s   (ns, timer overhead %dns)", 
+				"stage", "ops/s", "p50", "p99", "p999", timerOverhead));
+		
+		enqueue(operations, 1);
+		enqueue(operations, PRODUCERS);
+		drain(operations / BATCH_SIZE);
+		encode(operations, 1);
+		encode(operations / BATCH_SIZE, BATCH_SIZE);
+		lookup(operations);
+		
+		boolean nativeAvailable = true;
+		
+		try {
+			new ControllerMultiplexer();
+		} catch(LinkageError e) {
+			nativeAvailable = false;
+			System.out.println("dispatch to socket skipped, libhorizonremote is not available");
+		}
+		
+		if(nativeAvailable) {
+			dispatchToSocket(ControllerInfo.TRANSPORT_NATIVE);
+			dispatchToSocket(ControllerInfo.TRANSPORT_JAVA);
+		}
+		
+		/* the native reference collector does not end on its own */
+		
+		System.exit(0);
+	}
+	
+	static void enqueue(int operations, int producers) throws Exception {
+		final ControllerEventQueue queue = new ControllerEventQueue();
+		
+		/* the consumer drains like the controller loop does */
+		
+		final Thread consumer = new Thread("consumer") {
+			@Override
+			public void run() {
+				final long[] events = new long[queue.capacity];
+				final long[] times = new long[queue.capacity];
+				final long[] stamps = new long[queue.capacity];
+				
+				while(!isInterrupted()) {
+					if(queue.drain(events, times, stamps) == 0)
+						Thread.yield();
+				}
+			}
+		};
+		
+		consumer.start();
+		
+		measure("enqueue x" + producers, operations, producers, 1, new Operation() {
+			@Override
+			boolean run(int thread, int i) {
+				return queue.offer(ControllerService.EVENT_KEY_PRESS, i, 0, 0);
+			}
+		});
+		
+		consumer.interrupt();
+		consumer.join();
+	}
+	
+	static void drain(int operations) throws Exception {
+		final ControllerEventQueue queue = new ControllerEventQueue();
+		final long[] events = new long[queue.capacity];
+		final long[] times = new long[queue.capacity];
+		final long[] stamps = new long[queue.capacity];
+		
+		final int[] actions = new int[BATCH_SIZE];
+		final int[] data = new int[BATCH_SIZE];
+		
+		Arrays.fill(actions, ControllerService.EVENT_KEY_PRESS);
+		
+		measure("drain " + BATCH_SIZE, operations, 1, BATCH_SIZE, new Operation() {
+			@Override
+			void setup(int thread, int i) {
+				queue.offer(actions, data, 0, BATCH_SIZE, 0, 0);
+			}
+			
+			@Override
+			boolean run(int thread, int i) {
+				return queue.drain(events, times, stamps) == BATCH_SIZE;
+			}
+		});
+	}
+	
+	static void encode(int operations, final int keys) throws Exception {
+		final RfbEncoding encoding = new RfbEncoding();
+		final int[] keycodes = new int[keys];
+		final int[] flags = new int[keys];
+		
+		for(int i = 0; i < keys; ++i) {
+			keycodes[i] = RemoteController.KEY_OK;
+			flags[i] = ControllerTransport.KEY_FLAG_TOGGLE;
+		}
+		
+		measure("encode " + keys, operations, 1, keys, new Operation() {
+			@Override
+			boolean run(int thread, int i) {
+				return encoding.encode(keycodes, flags, keys) > 0;
+			}
+		});
+	}
+	
+	static void lookup(int operations) throws Exception {
+		final ArrayList<ControllerInfo> records = new ArrayList<ControllerInfo>();
+		final String[] keys = new String[CONTROLLERS];
+		
+		for(int id = 0; id < CONTROLLERS; ++id) {
+			keys[id] = ControllerInfo.key(id);
+			records.add(new ControllerInfo(id, keys[id], "box " + id, "192.168.0." + id, ControllerInfo.TRANSPORT_NATIVE));
+		}
+		
+		final ControllerRegistry.Snapshot snapshot = new ControllerRegistry.Snapshot(records);
+		
+		measure("lookup by id", operations, 1, 1, new Operation() {
+			@Override
+			boolean run(int thread, int i) {
+				return snapshot.get(i & (CONTROLLERS - 1)) != null;
+			}
+		});
+		
+		measure("lookup by key", operations, 1, 1, new Operation() {
+			@Override
+			boolean run(int thread, int i) {
+				return snapshot.get(ControllerInfo.id(keys[i & (CONTROLLERS - 1)])) != null;
+			}
+		});
+	}
+	
+	/**
+	 * Sends KEYS keys one by one through a loop and a transport to a MockRfbServer, and as 
+	 * many in a burst for the throughput.
+	 */
+	static void dispatchToSocket(String transport) throws Exception {
+		final MockRfbServer server = new MockRfbServer();
+		final ControllerLoop loop = new ControllerLoop("benchmark-loop", true);
+		final ForwardingSession session = new ForwardingSession(loop, 1000);
+		
+		session.controller = ControllerInfo.TRANSPORT_JAVA.equals(transport) 
+				? new RfbController(server.getAddress()) : new RemoteController(server.getAddress());
+		
+		loop.add(session);
+		loop.start();
+		
+		final long deadline = SystemClock.elapsedRealtime() + 5000;
+		
+		while(session.state != ControllerTransport.STATE_CONNECTED) {
+			if(SystemClock.elapsedRealtime() > deadline)
+				throw new IllegalStateException("no connection to " + server.getAddress());
+			
+			Thread.sleep(1);
+		}
+		
+		/* latency, one key at a time */
+		
+		final long[] queued = new long[KEYS];
+		
+		for(int i = 0; i < KEYS; ++i) {
+			queued[i] = System.nanoTime();
+			session.dispatch(i);
+			
+			LockSupport.parkNanos(KEY_PAUSE_NANOS);
+		}
+		
+		if(!server.awaitKeyEvents(2 * KEYS, 10000))
+			throw new IllegalStateException("keys did not arrive");
+		
+		final long[] samples = new long[KEYS];
+		int count = 0;
+		
+		for(MockRfbServer.KeyRecord record : server.getKeyEvents()) {
+			if(record.down)
+				samples[count++] = record.nanos - queued[record.key];
+		}
+		
+		/* throughput, all keys at once */
+		
+		server.clearKeyEvents();
+		
+		final long start = System.nanoTime();
+		
+		for(int i = 0; i < KEYS; ++i) {
+			while(!session.dispatch(i & 0xffff))
+				Thread.yield();
+		}
+		
+		if(!server.awaitKeyEvents(2 * KEYS, 10000))
+			throw new IllegalStateException("keys did not arrive");
+		
+		final ArrayList<MockRfbServer.KeyRecord> received = server.getKeyEvents();
+		final long elapsed = received.get(received.size() - 1).nanos - start;
+		
+		report("dispatch to socket " + transport, KEYS * 1000000000L / elapsed, samples);
+		
+		loop.quit();
+		loop.join();
+		server.close();
+	}
+	
+	/**
+	 * Runs operations operations on each of threads threads, each operation handles units 
+	 * ( e.g. events ) which the throughput is counted in.
+	 */
+	static void measure(String name, final int operations, int threads, int units, 
+			final Operation operation) throws Exception {
+		
+		run(operations, threads, operation, null);
+		
+		final long start = System.nanoTime();
+		run(operations, threads, operation, null);
+		final long elapsed = System.nanoTime() - start;
+		
+		final long[][] samples = new long[threads][operations];
+		
+		run(operations, threads, operation, samples);
+		
+		final long[] merged = new long[threads * operations];
+		
+		for(int thread = 0; thread < threads; ++thread)
+			System.arraycopy(samples[thread], 0, merged, thread * operations, operations);
+		
+		report(name, (long)((double)operations * units * threads * 1000000000L / elapsed), merged);
+	}
+	
+	static void run(final int operations, int threads, final Operation operation, final long[][] samples) 
+			throws InterruptedException {
+		
+		final Thread[] running = new Thread[threads];
+		
+		for(int t = 0; t < threads; ++t) {
+			final int thread = t;
+			
+			running[t] = new Thread("benchmark-" + t) {
+				@Override
+				public void run() {
+					for(int i = 0; i < operations; ++i) {
+						operation.setup(thread, i);
+						
+						if(samples == null) {
+							while(!operation.run(thread, i))
+								Thread.yield();
+							
+							continue;
+						}
+						
+						long start, elapsed;
+						
+						while(true) {
+							start = System.nanoTime();
+							final boolean done = operation.run(thread, i);
+							elapsed = System.nanoTime() - start;
+							
+							if(done)
+								break;
+							
+							Thread.yield();
+						}
+						
+						samples[thread][i] = Math.max(0, elapsed - timerOverhead);
+					}
+				}
+			};
+		}
+		
+		for(Thread thread : running)
+			thread.start();
+		
+		for(Thread thread : running)
+			thread.join();
+	}
+	
+	static void report(String name, long throughput, long[] samples) {
+		Arrays.sort(samples);
+		
+		System.out.println(String.format(Locale.US, "%-28s %14d %10d %10d %10d", name, throughput, 
+				percentile(samples, 50), percentile(samples, 99), percentile(samples, 99.9)));
+	}
+	
+	static long percentile(long[] sorted, double percentile) {
+		return sorted[(int)Math.max(0, Math.ceil(sorted.length * percentile / 100) - 1)];
+	}
+	
+	/**
+	 * @return the median time between two calls of System.nanoTime
+	 */
+	static long timerOverhead() {
+		final long[] samples = new long[100000];
+		
+		for(int i = 0; i < samples.length; ++i) {
+			final long start = System.nanoTime();
+			samples[i] = System.nanoTime() - start;
+		}
+		
+		Arrays.sort(samples);
+		return samples[samples.length / 2];
+	}
+	
+	private ControllerBenchmark() {
+	}
+}
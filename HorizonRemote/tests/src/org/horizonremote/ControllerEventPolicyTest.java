@@ -0,0 +1,402 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.horizonremote.rfb.MockRfbServer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import android.os.SystemClock;
+
+/**
+ * Tests of ControllerEventPolicy, and of the urgent lane with a ForwardingSession in a 
+ * ControllerLoop sending to a MockRfbServer. The tests with a loop are skipped when 
+ * libhorizonremote can not be loaded.
+ *
+ * @author rogro82
+ */
+public class ControllerEventPolicyTest {
+	
+	static final int KEY 			= RemoteController.KEY_OK;
+	static final int HELD_KEY 		= RemoteController.KEY_DPAD_UP;
+	static final int URGENT_KEY 	= RemoteController.KEY_STOP;
+	
+	static final int URGENT_KEYS 	= 200;
+	static final long URGENT_PAUSE_NANOS = 2000000;
+	
+	/* the background load fills the lane to the brim in bursts, at a rate the server keeps 
+	 * up with: past that keys wait in the socket whatever lane they come from */
+	static final long BURST_PAUSE_NANOS = 20000000;
+	
+	/* an urgent key may wait for the step in progress, not for the saturated lane, with 
+	 * room for a busy machine */
+	static final long URGENT_P99_MILLIS = 100;
+	
+	static final long AWAIT_MILLIS 	= 5000;
+	
+	final ControllerEventPolicy policy = new ControllerEventPolicy();
+	
+	MockRfbServer server;
+	ControllerLoop loop;
+	
+	@After
+	public void tearDown() throws Exception {
+		if(loop != null) {
+			loop.quit();
+			loop.join(5000);
+			
+			assertTrue("loop did not quit", !loop.isAlive());
+		}
+		
+		if(server != null)
+			server.close();
+	}
+	
+	/**
+	 * Every key event of power and stop goes in the urgent lane so that their ups stay 
+	 * behind their downs, nothing else does.
+	 */
+	@Test
+	public void onlyPowerAndStopAreUrgent() {
+		final int[] actions = {
+				ControllerService.EVENT_KEY_PRESS,
+				ControllerService.EVENT_KEY_DOWN,
+				ControllerService.EVENT_KEY_UP,
+				ControllerService.EVENT_KEY_HOLD,
+				ControllerService.EVENT_KEY_RELEASE,
+		};
+		
+		for(int action : actions) {
+			assertTrue(ControllerEventPolicy.isUrgent(action, RemoteController.KEY_POWER));
+			assertTrue(ControllerEventPolicy.isUrgent(action, RemoteController.KEY_UNKNOWN_1));
+			assertTrue(ControllerEventPolicy.isUrgent(action, URGENT_KEY));
+			assertFalse(ControllerEventPolicy.isUrgent(action, KEY));
+		}
+		
+		/* markers are never urgent, whatever their data */
+		
+		assertFalse(ControllerEventPolicy.isUrgent(ControllerService.EVENT_TUNED, URGENT_KEY));
+		assertFalse(ControllerEventPolicy.isUrgent(ControllerService.EVENT_RECONNECT, URGENT_KEY));
+	}
+	
+	@Test
+	public void preemptedEventsAreCounted() {
+		assertTrue(policy.preempts);
+		
+		policy.configure(ControllerEventPolicy.DEFAULT_TTL_MILLIS, false);
+		assertFalse(policy.preempts);
+		
+		policy.preempted.addAndGet(3);
+		assertEquals(3, policy.counters()[ControllerService.COUNTER_PREEMPTED]);
+	}
+	
+	@Test
+	public void preemptDropsOnlyKeysWhichWentNotDown() {
+		final long[] events = {
+				event(ControllerService.EVENT_KEY_PRESS, KEY),
+				event(ControllerService.EVENT_KEY_DOWN, HELD_KEY),
+				event(ControllerService.EVENT_KEY_UP, HELD_KEY),
+				event(ControllerService.EVENT_KEY_HOLD, KEY),
+				event(ControllerService.EVENT_KEY_RELEASE, KEY),
+				event(ControllerService.EVENT_TUNED, 7),
+				event(ControllerService.EVENT_KEY_UP, KEY),
+		};
+		final long[] times = { 1, 2, 3, 4, 5, 6, 7 };
+		
+		final int kept = policy.preempt(events, times, events.length);
+		
+		assertEquals(4, kept);
+		assertArrayEquals(new long[] {
+				event(ControllerService.EVENT_KEY_UP, HELD_KEY),
+				event(ControllerService.EVENT_KEY_RELEASE, KEY),
+				event(ControllerService.EVENT_TUNED, 7),
+				event(ControllerService.EVENT_KEY_UP, KEY),
+		}, Arrays.copyOf(events, kept));
+		assertArrayEquals(new long[] { 3, 5, 6, 7 }, Arrays.copyOf(times, kept));
+		
+		assertEquals(3, policy.preempted.get());
+	}
+	
+	@Test
+	public void filterKeepsTheUpOfAnExpiredDown() {
+		final long now = 10000;
+		final long[] events = {
+				event(ControllerService.EVENT_KEY_DOWN, HELD_KEY),
+				event(ControllerService.EVENT_KEY_UP, HELD_KEY),
+				event(ControllerService.EVENT_KEY_PRESS, KEY),
+		};
+		final long[] times = { now - policy.ttl, now - policy.ttl, now };
+		
+		assertEquals(2, policy.filter(events, times, events.length, now));
+		assertEquals(event(ControllerService.EVENT_KEY_UP, HELD_KEY), events[0]);
+		assertEquals(event(ControllerService.EVENT_KEY_PRESS, KEY), events[1]);
+		assertEquals(1, policy.expired.get());
+	}
+	
+	@Test
+	public void onlyPressesOfUrgentKeysPreempt() {
+		final long[] events = {
+			ControllerEventQueue.pack(ControllerService.EVENT_KEY_UP, URGENT_KEY),
+			ControllerEventQueue.pack(ControllerService.EVENT_KEY_RELEASE, URGENT_KEY),
+			ControllerEventQueue.pack(ControllerService.EVENT_KEY_HOLD, URGENT_KEY),
+		};
+		
+		assertFalse(ControllerEventPolicy.isPreempting(events, 2));
+		assertTrue(ControllerEventPolicy.isPreempting(events, 3));
+		
+		for(int action : new int[] { ControllerService.EVENT_KEY_PRESS, ControllerService.EVENT_KEY_DOWN }) {
+			events[0] = ControllerEventQueue.pack(action, URGENT_KEY);
+			assertTrue(ControllerEventPolicy.isPreempting(events, 1));
+		}
+	}
+	
+	/**
+	 * Letting go of an urgent key leaves the queued key presses alone.
+	 */
+	@Test
+	public void urgentKeyUpDoesNotPreempt() throws Exception {
+		final ForwardingSession session = connect();
+		
+		session.dispatch(ControllerService.EVENT_KEY_DOWN, URGENT_KEY);
+		assertTrue(server.awaitKeyEvents(1, AWAIT_MILLIS));
+		
+		synchronized(session) {
+			for(int i = 0; i < 3; ++i)
+				offer(session.events, ControllerService.EVENT_KEY_PRESS, KEY);
+			
+			offer(session.urgent, ControllerService.EVENT_KEY_UP, URGENT_KEY);
+			offer(session.urgent, ControllerService.EVENT_KEY_RELEASE, URGENT_KEY);
+			loop.wakeup();
+		}
+		
+		assertTrue(server.awaitKeyEvents(8, AWAIT_MILLIS));
+		
+		final ArrayList<MockRfbServer.KeyRecord> keys = server.getKeyEvents();
+		
+		assertEquals(8, keys.size());
+		assertRecord(keys.get(0), URGENT_KEY, true);
+		assertRecord(keys.get(1), URGENT_KEY, false);
+		
+		for(int i = 2; i < 8; i += 2) {
+			assertRecord(keys.get(i), KEY, true);
+			assertRecord(keys.get(i + 1), KEY, false);
+		}
+		
+		assertEquals(0, session.policy.preempted.get());
+	}
+	
+	/**
+	 * An urgent key queued behind a full lane goes out before the keys in that lane.
+	 */
+	@Test
+	public void urgentKeyGoesAheadOfTheQueuedKeys() throws Exception {
+		final ForwardingSession session = connect();
+		session.policy.configure(ControllerEventPolicy.DEFAULT_TTL_MILLIS, false);
+		
+		/* queue while holding the session so that it all lands in one step */
+		
+		synchronized(session) {
+			while(offer(session.events, ControllerService.EVENT_KEY_PRESS, KEY))
+				;
+			
+			offer(session.urgent, ControllerService.EVENT_KEY_PRESS, URGENT_KEY);
+			loop.wakeup();
+		}
+		
+		final int queued = session.events.capacity;
+		
+		assertTrue(server.awaitKeyEvents(2 * (queued + 1), AWAIT_MILLIS));
+		
+		final ArrayList<MockRfbServer.KeyRecord> keys = server.getKeyEvents();
+		
+		assertEquals(URGENT_KEY, keys.get(0).key);
+		assertEquals(URGENT_KEY, keys.get(1).key);
+		assertEquals(2 * (queued + 1), keys.size());
+		assertEquals(0, session.policy.preempted.get());
+	}
+	
+	/**
+	 * A preempting urgent key drops the queued presses but sends the queued up of a key 
+	 * which is down, ahead of itself.
+	 */
+	@Test
+	public void preemptLeavesNoKeyDown() throws Exception {
+		final ForwardingSession session = connect();
+		
+		session.dispatch(ControllerService.EVENT_KEY_DOWN, HELD_KEY);
+		assertTrue(server.awaitKeyEvents(1, AWAIT_MILLIS));
+		
+		synchronized(session) {
+			for(int i = 0; i < 10; ++i)
+				offer(session.events, ControllerService.EVENT_KEY_PRESS, KEY);
+			
+			offer(session.events, ControllerService.EVENT_KEY_UP, HELD_KEY);
+			offer(session.events, ControllerService.EVENT_KEY_PRESS, KEY);
+			offer(session.urgent, ControllerService.EVENT_KEY_PRESS, URGENT_KEY);
+			loop.wakeup();
+		}
+		
+		assertTrue(server.awaitKeyEvents(4, AWAIT_MILLIS));
+		
+		/* give dropped keys the chance to show up */
+		
+		session.dispatch(ControllerService.EVENT_KEY_PRESS, HELD_KEY);
+		assertTrue(server.awaitKeyEvents(6, AWAIT_MILLIS));
+		
+		final ArrayList<MockRfbServer.KeyRecord> keys = server.getKeyEvents();
+		
+		assertEquals(6, keys.size());
+		assertRecord(keys.get(0), HELD_KEY, true);
+		assertRecord(keys.get(1), HELD_KEY, false);
+		assertRecord(keys.get(2), URGENT_KEY, true);
+		assertRecord(keys.get(3), URGENT_KEY, false);
+		assertEquals(11, session.policy.preempted.get());
+	}
+	
+	/**
+	 * Urgent keys do not wait for a lane which is kept full, and do not starve it.
+	 */
+	@Test
+	public void urgentKeyLatencyUnderSaturatedQueue() throws Exception {
+		final ForwardingSession session = connect();
+		session.policy.configure(ControllerEventPolicy.DEFAULT_TTL_MILLIS, false);
+		
+		final Thread producer = new Thread("producer") {
+			@Override
+			public void run() {
+				while(!isInterrupted()) {
+					while(session.dispatch(KEY))
+						;
+					
+					LockSupport.parkNanos(BURST_PAUSE_NANOS);
+				}
+			}
+		};
+		
+		producer.start();
+		
+		final long[] queued = new long[URGENT_KEYS];
+		
+		try {
+			for(int i = 0; i < URGENT_KEYS; ++i) {
+				queued[i] = System.nanoTime();
+				assertTrue(session.dispatch(ControllerService.EVENT_KEY_PRESS, URGENT_KEY));
+				
+				LockSupport.parkNanos(URGENT_PAUSE_NANOS);
+			}
+			
+			awaitUrgentKeys(URGENT_KEYS);
+		} finally {
+			producer.interrupt();
+			producer.join();
+		}
+		
+		final long[] latencies = new long[URGENT_KEYS];
+		int urgentkeys = 0;
+		int keys = 0;
+		
+		for(MockRfbServer.KeyRecord record : server.getKeyEvents()) {
+			if(!record.down)
+				continue;
+			
+			if(record.key == URGENT_KEY) {
+				latencies[urgentkeys] = record.nanos - queued[urgentkeys];
+				urgentkeys++;
+			} else {
+				keys++;
+			}
+		}
+		
+		Arrays.sort(latencies);
+		
+		final long p50 = latencies[URGENT_KEYS / 2] / 1000;
+		final long p99 = latencies[URGENT_KEYS * 99 / 100] / 1000;
+		
+		System.out.println("urgent key latency with a saturated queue: p50 " + p50 + "us p99 " + p99 
+				+ "us, " + keys + " other keys sent");
+		
+		assertTrue("p99 " + p99 + "us", p99 < URGENT_P99_MILLIS * 1000);
+		assertTrue("saturated lane was starved", keys > URGENT_KEYS);
+	}
+	
+	ForwardingSession connect() throws Exception {
+		try {
+			new ControllerMultiplexer();
+		} catch(LinkageError e) {
+			Assume.assumeNoException("libhorizonremote is not available", e);
+		}
+		
+		server = new MockRfbServer();
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 0);
+		session.connect(server.getAddress());
+		loop.add(session);
+		loop.start();
+		
+		final long deadline = SystemClock.elapsedRealtime() + AWAIT_MILLIS;
+		
+		while(session.state != ControllerTransport.STATE_CONNECTED) {
+			assertTrue("not connected", SystemClock.elapsedRealtime() < deadline);
+			Thread.sleep(1);
+		}
+		
+		return session;
+	}
+	
+	void awaitUrgentKeys(int count) throws InterruptedException {
+		final long deadline = SystemClock.elapsedRealtime() + AWAIT_MILLIS;
+		
+		while(true) {
+			int received = 0;
+			
+			for(MockRfbServer.KeyRecord record : server.getKeyEvents()) {
+				if(record.down && record.key == URGENT_KEY)
+					received++;
+			}
+			
+			if(received == count)
+				return;
+			
+			assertTrue("urgent keys did not arrive", SystemClock.elapsedRealtime() < deadline);
+			Thread.sleep(1);
+		}
+	}
+	
+	static boolean offer(ControllerEventQueue lane, int action, int key) {
+		return lane.offer(action, key, SystemClock.elapsedRealtime(), System.nanoTime());
+	}
+	
+	static long event(int action, int data) {
+		return ControllerEventQueue.pack(action, data);
+	}
+	
+	static void assertRecord(MockRfbServer.KeyRecord record, int key, boolean down) {
+		assertEquals(key, record.key);
+		assertEquals(down, record.down);
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests of ControllerEventQueue, ordering and the full ring single threaded and with 
+ * several producers offering against a draining consumer.
+ *
+ * @author rogro82
+ */
+public class ControllerEventQueueTest {
+	
+	static final int PRODUCERS 		= 4;
+	static final int PER_PRODUCER 	= 200000;
+	
+	@Test
+	public void packKeepsActionAndData() {
+		final int[] actions = { 0, 1, 6, 7, 1000 };
+		final int[] data = { 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0xe00f };
+		
+		for(int action : actions) {
+			for(int value : data) {
+				final long event = ControllerEventQueue.pack(action, value);
+				
+				assertTrue(event != ControllerEventQueue.EMPTY);
+				assertEquals(action, ControllerEventQueue.action(event));
+				assertEquals(value, ControllerEventQueue.data(event));
+			}
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityShouldBePowerOfTwo() {
+		new ControllerEventQueue(12);
+	}
+	
+	@Test
+	public void drainsInOrderWithTimesAndStamps() {
+		final ControllerEventQueue queue = new ControllerEventQueue(8);
+		final Drain drain = new Drain(8);
+		
+		assertTrue(queue.isEmpty());
+		
+		for(int i = 0; i < 5; ++i)
+			assertTrue(queue.offer(i, 100 + i, 1000 + i, 2000 + i));
+		
+		assertFalse(queue.isEmpty());
+		assertEquals(5, drain.from(queue));
+		assertTrue(queue.isEmpty());
+		
+		for(int i = 0; i < 5; ++i) {
+			assertEquals(i, ControllerEventQueue.action(drain.events[i]));
+			assertEquals(100 + i, ControllerEventQueue.data(drain.events[i]));
+			assertEquals(1000 + i, drain.times[i]);
+			assertEquals(2000 + i, drain.stamps[i]);
+		}
+		
+		assertEquals(0, drain.from(queue));
+	}
+	
+	@Test
+	public void drainStopsAtTheEndOfTheArray() {
+		final ControllerEventQueue queue = new ControllerEventQueue(8);
+		final Drain drain = new Drain(3);
+		
+		for(int i = 0; i < 7; ++i)
+			queue.offer(0, i, 0, 0);
+		
+		assertEquals(3, drain.from(queue));
+		assertEquals(2, ControllerEventQueue.data(drain.events[2]));
+		assertEquals(3, drain.from(queue));
+		assertEquals(5, ControllerEventQueue.data(drain.events[2]));
+		assertEquals(1, drain.from(queue));
+		assertEquals(6, ControllerEventQueue.data(drain.events[0]));
+	}
+	
+	@Test
+	public void fullRingRejectsEvents() {
+		final ControllerEventQueue queue = new ControllerEventQueue(4);
+		final Drain drain = new Drain(4);
+		
+		for(int i = 0; i < 4; ++i)
+			assertTrue(queue.offer(0, i, 0, 0));
+		
+		assertFalse(queue.offer(0, 4, 0, 0));
+		
+		/* a drain frees the slots and the ring wraps around */
+		
+		assertEquals(4, drain.from(queue));
+		
+		for(int i = 5; i < 9; ++i)
+			assertTrue(queue.offer(0, i, 0, 0));
+		
+		assertFalse(queue.offer(0, 9, 0, 0));
+		assertEquals(4, drain.from(queue));
+		
+		for(int i = 0; i < 4; ++i)
+			assertEquals(5 + i, ControllerEventQueue.data(drain.events[i]));
+	}
+	
+	@Test
+	public void bulkOfferIsAllOrNothing() {
+		final ControllerEventQueue queue = new ControllerEventQueue(8);
+		final Drain drain = new Drain(8);
+		final int[] actions = new int[8];
+		final int[] data = { 0, 1, 2, 3, 4, 5, 6, 7 };
+		
+		assertTrue(queue.offer(1, -1, 0, 0));
+		assertTrue(queue.offer(1, -2, 0, 0));
+		
+		/* seven do not fit behind the two, none of them may be enqueued */
+		
+		assertFalse(queue.offer(actions, data, 0, 7, 0, 0));
+		assertTrue(queue.offer(actions, data, 1, 6, 0, 0));
+		assertFalse(queue.offer(1, -3, 0, 0));
+		
+		assertEquals(8, drain.from(queue));
+		assertEquals(-1, ControllerEventQueue.data(drain.events[0]));
+		assertEquals(-2, ControllerEventQueue.data(drain.events[1]));
+		
+		for(int i = 2; i < 8; ++i)
+			assertEquals(i - 1, ControllerEventQueue.data(drain.events[i]));
+		
+		/* empty bulk offers always succeed, even on a full ring */
+		
+		queue.offer(actions, data, 0, 8, 0, 0);
+		assertTrue(queue.offer(actions, data, 0, 0, 0, 0));
+	}
+	
+	@Test
+	public void bulkOfferLargerThanTheRingIsRejected() {
+		final ControllerEventQueue queue = new ControllerEventQueue(4);
+		final int[] actions = new int[5];
+		final int[] data = new int[5];
+		
+		assertFalse(queue.offer(actions, data, 0, 5, 0, 0));
+		assertTrue(queue.isEmpty());
+		assertTrue(queue.offer(actions, data, 0, 4, 0, 0));
+	}
+	
+	@Test
+	public void clearDiscardsPublishedEvents() {
+		final ControllerEventQueue queue = new ControllerEventQueue(8);
+		final Drain drain = new Drain(8);
+		
+		for(int i = 0; i < 6; ++i)
+			queue.offer(0, i, 0, 0);
+		
+		assertEquals(6, queue.clear());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, drain.from(queue));
+		
+		/* the ring is usable at full capacity afterwards */
+		
+		for(int i = 0; i < 8; ++i)
+			assertTrue(queue.offer(0, i, 0, 0));
+	}
+	
+	/**
+	 * Producers offer numbered events as fast as they can and retry when the ring is full, 
+	 * every event should be drained exactly once and in the order of its producer.
+	 */
+	@Test(timeout = 30000)
+	public void concurrentProducers() throws Exception {
+		final ControllerEventQueue queue = new ControllerEventQueue(256);
+		final Producers producers = new Producers(queue) {
+			@Override
+			void produce(int producer) {
+				for(int i = 0; i < PER_PRODUCER; ++i) {
+					while(!queue.offer(producer, i, 0, 0))
+						Thread.yield();
+				}
+			}
+		};
+		
+		final int[] next = producers.consume(PRODUCERS * PER_PRODUCER);
+		
+		for(int producer = 0; producer < PRODUCERS; ++producer)
+			assertEquals(PER_PRODUCER, next[producer]);
+		
+		assertTrue(queue.isEmpty());
+	}
+	
+	/**
+	 * Like concurrentProducers with bulk offers of varying sizes, the events of a single 
+	 * offer should be drained back to back.
+	 */
+	@Test(timeout = 30000)
+	public void concurrentBulkProducers() throws Exception {
+		final ControllerEventQueue queue = new ControllerEventQueue(256);
+		final Producers producers = new Producers(queue) {
+			@Override
+			void produce(int producer) {
+				final int[] actions = new int[16];
+				final int[] data = new int[16];
+				
+				for(int i = 0, size = 1; i < PER_PRODUCER; i += size, size = size % 16 + 1) {
+					final int count = Math.min(size, PER_PRODUCER - i);
+					
+					for(int j = 0; j < count; ++j) {
+						actions[j] = producer;
+						data[j] = i + j;
+					}
+					
+					while(!queue.offer(actions, data, 0, count, 0, 0))
+						Thread.yield();
+				}
+			}
+			
+			@Override
+			void check(long[] events, int count) {
+				/* the start of every bulk offer follows the end of the previous one of the 
+				 * same producer, so within a batch a producer may only be interrupted by 
+				 * another producer where one of its offers ends */
+				
+				for(int i = 1; i < count; ++i) {
+					final int producer = ControllerEventQueue.action(events[i - 1]);
+					final int value = ControllerEventQueue.data(events[i - 1]);
+					
+					if(ControllerEventQueue.action(events[i]) != producer)
+						assertTrue("offer of " + producer + " split at " + value, ENDS[value]);
+				}
+			}
+		};
+		
+		final int[] next = producers.consume(PRODUCERS * PER_PRODUCER);
+		
+		for(int producer = 0; producer < PRODUCERS; ++producer)
+			assertEquals(PER_PRODUCER, next[producer]);
+	}
+	
+	/* values which are the last of an offer of concurrentBulkProducers */
+	static final boolean[] ENDS = new boolean[PER_PRODUCER];
+	
+	static {
+		for(int i = 0, size = 1; i < PER_PRODUCER; i += size, size = size % 16 + 1)
+			ENDS[Math.min(i + size, PER_PRODUCER) - 1] = true;
+	}
+	
+	/**
+	 * Once warmed up neither offering nor draining should allocate.
+	 */
+	@Test
+	public void offerAndDrainDoNotAllocate() {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		
+		final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)threads;
+		
+		Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+		bean.setThreadAllocatedMemoryEnabled(true);
+		
+		final ControllerEventQueue queue = new ControllerEventQueue(256);
+		final Drain drain = new Drain(256);
+		final int[] actions = new int[32];
+		final int[] data = new int[32];
+		final long id = Thread.currentThread().getId();
+		
+		/* warm up first, then measure the same loop */
+		
+		cycle(queue, drain, actions, data, 20000);
+		
+		final long before = bean.getThreadAllocatedBytes(id);
+		cycle(queue, drain, actions, data, 20000);
+		final long allocated = bean.getThreadAllocatedBytes(id) - before;
+		
+		/* allow for the bookkeeping of the measurement itself */
+		assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+	}
+	
+	static void cycle(ControllerEventQueue queue, Drain drain, int[] actions, int[] data, int rounds) {
+		for(int round = 0; round < rounds; ++round) {
+			for(int i = 0; i < 32; ++i)
+				queue.offer(i, round, round, round);
+			
+			queue.offer(actions, data, 0, 32, round, round);
+			drain.from(queue);
+		}
+	}
+	
+	/**
+	 * Arrays to drain into.
+	 */
+	static final class Drain {
+		final long[] events;
+		final long[] times;
+		final long[] stamps;
+		
+		Drain(int size) {
+			events = new long[size];
+			times = new long[size];
+			stamps = new long[size];
+		}
+		
+		int from(ControllerEventQueue queue) {
+			return queue.drain(events, times, stamps);
+		}
+	}
+	
+	/**
+	 * Runs PRODUCERS threads against a consumer on the calling thread, events carry their 
+	 * producer as action and a sequence number as data.
+	 */
+	static abstract class Producers {
+		final ControllerEventQueue queue;
+		
+		Producers(ControllerEventQueue queue) {
+			this.queue = queue;
+		}
+		
+		abstract void produce(int producer);
+		
+		void check(long[] events, int count) {
+		}
+		
+		/**
+		 * @return the next sequence number expected of every producer once total events 
+		 * have been consumed
+		 */
+		int[] consume(int total) throws Exception {
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			final Thread[] threads = new Thread[PRODUCERS];
+			
+			for(int i = 0; i < PRODUCERS; ++i) {
+				final int producer = i;
+				
+				threads[i] = new Thread("producer-" + i) {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							produce(producer);
+						} catch(Throwable e) {
+							failure.set(e);
+						}
+					}
+				};
+				threads[i].start();
+			}
+			
+			final Drain drain = new Drain(queue.capacity);
+			final int[] next = new int[PRODUCERS];
+			int consumed = 0;
+			
+			start.countDown();
+			
+			while(consumed < total && failure.get() == null) {
+				final int count = drain.from(queue);
+				
+				check(drain.events, count);
+				
+				for(int i = 0; i < count; ++i) {
+					final int producer = ControllerEventQueue.action(drain.events[i]);
+					final int value = ControllerEventQueue.data(drain.events[i]);
+					
+					assertEquals("order of producer " + producer, next[producer], value);
+					next[producer]++;
+				}
+				
+				consumed += count;
+				
+				if(count == 0)
+					Thread.yield();
+			}
+			
+			for(Thread thread : threads)
+				thread.join();
+			
+			if(failure.get() != null)
+				throw new AssertionError(failure.get());
+			
+			assertEquals(total, consumed);
+			return next;
+		}
+	}
+}
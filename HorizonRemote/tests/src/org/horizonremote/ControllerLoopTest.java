@@ -0,0 +1,418 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.horizonremote.rfb.MockRfbServer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.SystemClock;
+
+/**
+ * Tests of ControllerLoop with sessions which forward queued keys to a RemoteController 
+ * connected to a MockRfbServer. The loop waits in the native ControllerMultiplexer, these 
+ * tests are skipped when libhorizonremote can not be loaded.
+ *
+ * @author rogro82
+ */
+public class ControllerLoopTest {
+	
+	/* cpu time the loop thread may use while it has nothing to do, a loop which polls 
+	 * uses all of the measured time */
+	static final long IDLE_CPU_MILLIS 	= 50;
+	static final int MEASURE_MILLIS 	= 1000;
+	
+	static final int WAKEUPS 			= 20000;
+	static final int KEYS_PER_BOX 		= 20;
+	
+	static final long AWAIT_NANOS 		= 20000;
+	
+	final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	final ArrayList<MockRfbServer> servers = new ArrayList<MockRfbServer>();
+	
+	ControllerLoop loop;
+	
+	@Before
+	public void setUp() throws Exception {
+		try {
+			new ControllerMultiplexer();
+		} catch(LinkageError e) {
+			Assume.assumeNoException("libhorizonremote is not available", e);
+		}
+		
+		Assume.assumeTrue(threads.isThreadCpuTimeSupported());
+		threads.setThreadCpuTimeEnabled(true);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if(loop != null) {
+			loop.quit();
+			loop.join(5000);
+			
+			assertTrue("loop did not quit", !loop.isAlive());
+		}
+		
+		for(MockRfbServer server : servers)
+			server.close();
+	}
+	
+	/**
+	 * A session without a controller and without a deadline should not be stepped again 
+	 * until it gets an event.
+	 */
+	@Test
+	public void idleLoopDoesNotSpin() throws Exception {
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 0);
+		loop.add(session);
+		loop.start();
+		
+		awaitSteps(session, 1);
+		
+		final long cpu = measureCpu();
+		
+		assertTrue("idle loop used " + cpu + "ms of cpu", cpu < IDLE_CPU_MILLIS);
+		assertEquals(1, session.steps.get());
+		
+		/* an event wakes it up right away */
+		
+		session.dispatch(1);
+		awaitDrained(session, 1);
+	}
+	
+	/**
+	 * A connected session sleeps until its heartbeat deadline or socket activity, and keys 
+	 * still go out as soon as they are queued.
+	 */
+	@Test
+	public void connectedLoopDoesNotSpin() throws Exception {
+		final MockRfbServer server = server();
+		
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 200);
+		session.connect(server.getAddress());
+		loop.add(session);
+		loop.start();
+		
+		awaitConnected(session);
+		
+		final int steps = session.steps.get();
+		final long cpu = measureCpu();
+		
+		assertTrue("connected loop used " + cpu + "ms of cpu", cpu < IDLE_CPU_MILLIS);
+		
+		/* about one step per deadline */
+		assertTrue("stepped " + (session.steps.get() - steps) + " times", 
+				session.steps.get() - steps <= 2 * MEASURE_MILLIS / 200);
+		
+		for(int i = 0; i < 10; ++i)
+			session.dispatch(0x100 + i);
+		
+		assertTrue(server.awaitKeyEvents(20, 5000));
+		assertEquals(0x100, server.getKeyEvents().get(0).key);
+	}
+	
+	/**
+	 * A session with a deadline is stepped about once per deadline and the loop sleeps in 
+	 * between.
+	 */
+	@Test
+	public void loopSleepsUntilTheDeadline() throws Exception {
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 200);
+		loop.add(session);
+		loop.start();
+		
+		awaitSteps(session, 1);
+		
+		final int steps = session.steps.get();
+		final long cpu = measureCpu();
+		final int stepped = session.steps.get() - steps;
+		
+		assertTrue("loop used " + cpu + "ms of cpu", cpu < IDLE_CPU_MILLIS);
+		assertTrue("stepped " + stepped + " times", 
+				stepped >= MEASURE_MILLIS / 200 / 2 && stepped <= 2 * MEASURE_MILLIS / 200);
+	}
+	
+	/**
+	 * Events are queued one by one, each as soon as the previous one has been drained, so 
+	 * that many of them arrive while the loop is on its way to sleep. The session has no 
+	 * deadline, a lost wakeup leaves its event in the queue for good.
+	 */
+	@Test(timeout = 60000)
+	public void wakeupIsNeverLost() throws Exception {
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 0);
+		loop.add(session);
+		loop.start();
+		
+		final Random random = new Random(0);
+		
+		for(int i = 0; i < WAKEUPS; ++i) {
+			session.dispatch(i);
+			
+			/* vary the moment of the next event a little */
+			
+			if(random.nextBoolean())
+				LockSupport.parkNanos(random.nextInt(20000));
+			
+			awaitDrained(session, i + 1);
+		}
+		
+		assertEquals(WAKEUPS, session.drained.get());
+	}
+	
+	/**
+	 * Like wakeupIsNeverLost with several producers queueing at once.
+	 */
+	@Test(timeout = 60000)
+	public void wakeupIsNeverLostWithProducers() throws Exception {
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 0);
+		loop.add(session);
+		loop.start();
+		
+		final Thread[] producers = new Thread[4];
+		
+		for(int i = 0; i < producers.length; ++i) {
+			final Random random = new Random(i);
+			
+			producers[i] = new Thread("producer-" + i) {
+				@Override
+				public void run() {
+					for(int j = 0; j < WAKEUPS / 4; ++j) {
+						while(!session.dispatch(j))
+							Thread.yield();
+						
+						LockSupport.parkNanos(random.nextInt(50000));
+					}
+				}
+			};
+			producers[i].start();
+		}
+		
+		for(Thread producer : producers)
+			producer.join();
+		
+		awaitDrained(session, WAKEUPS);
+	}
+	
+	/**
+	 * A dedicated loop stops once its session closed, and frees its multiplexer.
+	 */
+	@Test
+	public void dedicatedLoopStopsWithItsSession() throws Exception {
+		loop = new ControllerLoop("test-loop", false);
+		
+		final ForwardingSession session = new ForwardingSession(loop, 0);
+		loop.add(session);
+		loop.start();
+		
+		awaitSleeping();
+		
+		session.cancel();
+		loop.join(5000);
+		
+		assertTrue("loop did not stop", !loop.isAlive());
+		assertEquals(2, session.steps.get());
+		assertTrue(loop.multiplexer.isClosed());
+		
+		/* a late wakeup does not reach the freed multiplexer */
+		loop.multiplexer.wakeup();
+	}
+	
+	/**
+	 * A session beyond the sockets the multiplexer can wait for is closed instead of never
+	 * being waited for.
+	 */
+	@Test
+	public void sessionBeyondTheMaximumIsClosed() throws Exception {
+		loop = new ControllerLoop("test-loop", true);
+		
+		final ArrayList<ForwardingSession> sessions = new ArrayList<ForwardingSession>();
+		
+		for(int i = 0; i <= ControllerMultiplexer.MAX_CONTROLLERS; ++i) {
+			final ForwardingSession session = new ForwardingSession(loop, 0);
+			loop.add(session);
+			sessions.add(session);
+		}
+		
+		loop.start();
+		
+		for(ForwardingSession session : sessions)
+			awaitSteps(session, 1);
+		
+		final ForwardingSession refused = sessions.get(ControllerMultiplexer.MAX_CONTROLLERS);
+		
+		assertTrue(refused.cancelled);
+		assertEquals(1, refused.steps.get());
+		
+		/* the others keep running */
+		
+		final ForwardingSession last = sessions.get(ControllerMultiplexer.MAX_CONTROLLERS - 1);
+		
+		last.dispatch(RemoteController.KEY_OK);
+		awaitDrained(last, 1);
+		
+		assertFalse(last.cancelled);
+	}
+	
+	/**
+	 * Drives a growing number of controllers from a single shared loop and reports the 
+	 * threads used and the time from queueing a key until the server received it.
+	 */
+	@Test(timeout = 120000)
+	public void sharedLoopScales() throws Exception {
+		final MockRfbServer server = server();
+		
+		loop = new ControllerLoop("test-loop", true);
+		loop.start();
+		
+		final ArrayList<ForwardingSession> sessions = new ArrayList<ForwardingSession>();
+		
+		for(int boxes : new int[] { 1, 8, 32, 64 }) {
+			while(sessions.size() < boxes) {
+				final ForwardingSession session = new ForwardingSession(loop, 1000);
+				session.connect(server.getAddress());
+				loop.add(session);
+				sessions.add(session);
+			}
+			
+			for(ForwardingSession session : sessions)
+				awaitConnected(session);
+			
+			server.clearKeyEvents();
+			
+			/* keys identify their session and number, the time they were queued is kept */
+			
+			final long[] queued = new long[boxes * KEYS_PER_BOX];
+			
+			for(int key = 0; key < KEYS_PER_BOX; ++key) {
+				for(int box = 0; box < boxes; ++box) {
+					queued[box * KEYS_PER_BOX + key] = System.nanoTime();
+					sessions.get(box).dispatch(box * KEYS_PER_BOX + key);
+				}
+				
+				Thread.sleep(2);
+			}
+			
+			assertTrue(server.awaitKeyEvents(2 * queued.length, 10000));
+			
+			final long[] latencies = new long[queued.length];
+			int count = 0;
+			
+			for(MockRfbServer.KeyRecord record : server.getKeyEvents()) {
+				if(record.down)
+					latencies[count++] = record.nanos - queued[record.key];
+			}
+			
+			assertEquals(queued.length, count);
+			Arrays.sort(latencies);
+			
+			/* every session was stepped by the loop thread only */
+			
+			for(ForwardingSession session : sessions)
+				assertEquals(loop, session.stepper);
+			
+			System.out.println("ControllerLoopTest: " + boxes + " boxes on 1 loop thread, queue to socket p50 " 
+					+ micros(latencies, 50) + "us p99 " + micros(latencies, 99) + "us max " 
+					+ micros(latencies, 100) + "us");
+			
+			/* keys do not wait for the heartbeat deadline of their session */
+			assertTrue(micros(latencies, 100) < 500000);
+		}
+	}
+	
+	static long micros(long[] sorted, int percentile) {
+		return sorted[Math.max(0, (sorted.length * percentile + 99) / 100 - 1)] / 1000;
+	}
+	
+	/**
+	 * @return the cpu time in millis the loop thread used during MEASURE_MILLIS
+	 */
+	long measureCpu() throws InterruptedException {
+		final long start = threads.getThreadCpuTime(loop.getId());
+		Thread.sleep(MEASURE_MILLIS);
+		return (threads.getThreadCpuTime(loop.getId()) - start) / 1000000;
+	}
+	
+	MockRfbServer server() throws Exception {
+		final MockRfbServer server = new MockRfbServer();
+		servers.add(server);
+		return server;
+	}
+	
+	static void awaitSteps(ForwardingSession session, int steps) throws InterruptedException {
+		final long deadline = SystemClock.elapsedRealtime() + 5000;
+		
+		while(session.steps.get() < steps) {
+			assertTrue("session was not stepped", SystemClock.elapsedRealtime() < deadline);
+			LockSupport.parkNanos(AWAIT_NANOS);
+		}
+	}
+	
+	/**
+	 * Waits until the loop goes to sleep, which it only does once every session has been 
+	 * stepped.
+	 */
+	void awaitSleeping() throws InterruptedException {
+		final long deadline = SystemClock.elapsedRealtime() + 5000;
+		
+		while(!loop.sleeping.get()) {
+			assertTrue("loop does not sleep", SystemClock.elapsedRealtime() < deadline);
+			LockSupport.parkNanos(AWAIT_NANOS);
+		}
+	}
+	
+	static void awaitDrained(ForwardingSession session, int count) throws InterruptedException {
+		final long deadline = SystemClock.elapsedRealtime() + 5000;
+		
+		while(session.drained.get() < count) {
+			assertTrue("events were not drained", SystemClock.elapsedRealtime() < deadline);
+			LockSupport.parkNanos(AWAIT_NANOS);
+		}
+	}
+	
+	static void awaitConnected(ForwardingSession session) throws InterruptedException {
+		final long deadline = SystemClock.elapsedRealtime() + 5000;
+		
+		while(session.state != ControllerTransport.STATE_CONNECTED) {
+			assertTrue("session did not connect", SystemClock.elapsedRealtime() < deadline);
+			LockSupport.parkNanos(AWAIT_NANOS);
+		}
+	}
+}
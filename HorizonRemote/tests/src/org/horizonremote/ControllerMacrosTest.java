@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of ControllerMacros, the macros are stored in a temporary directory.
+ *
+ * @author rogro82
+ */
+public class ControllerMacrosTest {
+	
+	File directory;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("macros", "");
+		assertTrue(directory.delete() && directory.mkdir());
+	}
+	
+	@After
+	public void tearDown() {
+		ControllerStoreTest.delete(directory);
+	}
+	
+	/**
+	 * The loop is never woken up before a step is due, which would make it spin.
+	 */
+	@Test
+	public void deadlineIsNotBeforeTheStep() {
+		assertEquals(1000, ControllerMacros.deadline(1000, 0));
+		assertEquals(1000, ControllerMacros.deadline(1000, -5000000));
+		assertEquals(1001, ControllerMacros.deadline(1000, 1));
+		assertEquals(1001, ControllerMacros.deadline(1000, 1000000));
+		assertEquals(1002, ControllerMacros.deadline(1000, 1000001));
+		assertEquals(1250, ControllerMacros.deadline(1000, 250000000));
+	}
+	
+	@Test
+	public void definedMacrosAreLoaded() {
+		final ControllerMacros macros = new ControllerMacros(directory);
+		
+		assertTrue(macros.define("menu\tpath", new int[] { RemoteController.KEY_MENU, RemoteController.KEY_OK }, 
+				new int[] { 0, 250 }));
+		assertFalse(macros.define("empty", new int[0], new int[0]));
+		assertFalse(macros.define("slow", new int[] { RemoteController.KEY_OK }, 
+				new int[] { ControllerMacros.DELAY_MAX_MILLIS + 1 }));
+		
+		final ControllerMacros loaded = new ControllerMacros(directory);
+		final ControllerMacros.Macro macro = loaded.get("menu\tpath");
+		
+		assertArrayEquals(new String[] { "menu\tpath" }, loaded.names());
+		assertArrayEquals(new int[] { RemoteController.KEY_MENU, RemoteController.KEY_OK }, macro.keys);
+		assertArrayEquals(new int[] { 0, 250 }, macro.delays);
+		assertNull(loaded.get("empty"));
+	}
+}
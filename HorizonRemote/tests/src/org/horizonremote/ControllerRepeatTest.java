@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of ControllerRepeat with two keys held at once, as split touch allows.
+ *
+ * @author rogro82
+ */
+public class ControllerRepeatTest {
+	
+	static final int FIRST_KEY 		= RemoteController.KEY_DPAD_UP;
+	static final int SECOND_KEY 	= RemoteController.KEY_DPAD_DOWN;
+	
+	final ControllerRepeat repeat = new ControllerRepeat();
+	
+	@Test
+	public void releaseOfAReplacedKeyKeepsTheOtherRepeating() {
+		repeat.hold(FIRST_KEY, 0);
+		repeat.hold(SECOND_KEY, 100);
+		
+		repeat.release(FIRST_KEY);
+		
+		assertTrue(repeat.isHeld());
+		assertEquals(SECOND_KEY, repeat.poll(100 + ControllerRepeat.DEFAULT_DELAY_MILLIS));
+		
+		repeat.release(SECOND_KEY);
+		
+		assertFalse(repeat.isHeld());
+		assertEquals(-1, repeat.poll(100 + 2 * ControllerRepeat.DEFAULT_DELAY_MILLIS));
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of ControllerStore and of the ControllerRegistry on top of it, in a temporary 
+ * directory.
+ *
+ * @author rogro82
+ */
+public class ControllerStoreTest {
+	
+	static final String HEADER = ControllerStore.HEADER + " " + ControllerStore.VERSION;
+	
+	File directory;
+	ControllerStore store;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("controllers", "");
+		assertTrue(directory.delete() && directory.mkdir());
+		
+		store = new ControllerStore(directory);
+	}
+	
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+	
+	@Test
+	public void writtenRecordsAreLoaded() {
+		final ArrayList<ControllerInfo> records = new ArrayList<ControllerInfo>();
+		records.add(info(1, "Living\troom\nTV \\ 1", "192.168.0.10"));
+		records.add(info(4, "Bedroom", "192.168.0.11"));
+		
+		assertTrue(store.write(records, 7));
+		
+		store.load(null);
+		
+		assertEquals(2, store.records.size());
+		assertInfo(records.get(0), store.records.get(0));
+		assertInfo(records.get(1), store.records.get(1));
+		assertEquals(7, store.nextId);
+		assertFalse(store.readOnly);
+	}
+	
+	/**
+	 * A malformed line is skipped without losing the lines after it, and a write keeps it.
+	 */
+	@Test
+	public void malformedLinesAreSkippedAndKept() throws IOException {
+		write(HEADER,
+				"next 3",
+				"1\tLiving room\t192.168.0.10\tnative",
+				"x\tBroken\t192.168.0.12\tnative",
+				"next many",
+				"2\tBedroom\t192.168.0.11\tjava");
+		
+		store.load(null);
+		
+		assertEquals(2, store.records.size());
+		assertEquals(1, store.records.get(0).id);
+		assertEquals(2, store.records.get(1).id);
+		assertEquals(3, store.nextId);
+		assertFalse(store.readOnly);
+		
+		assertTrue(store.write(store.records.subList(0, 1), 3));
+		
+		store.load(null);
+		
+		assertEquals(1, store.records.size());
+		assertEquals(Arrays.asList("x\tBroken\t192.168.0.12\tnative", "next many"), store.malformed);
+	}
+	
+	@Test
+	public void newerVersionIsLeftAlone() throws IOException {
+		write(ControllerStore.HEADER + " " + (ControllerStore.VERSION + 1),
+				"1\tLiving room\t192.168.0.10\tnative");
+		
+		final String contents = read();
+		
+		store.load(null);
+		
+		assertTrue(store.readOnly);
+		assertTrue(store.records.isEmpty());
+		assertFalse(store.write(new ArrayList<ControllerInfo>(), 1));
+		assertEquals(contents, read());
+	}
+	
+	/**
+	 * A change which could not be written is not published and reported.
+	 */
+	@Test
+	public void registryPublishesOnlyStoredChanges() throws IOException {
+		write(HEADER,
+				"next 2",
+				"1\tLiving room\t192.168.0.10\tnative");
+		
+		final ControllerRegistry registry = new ControllerRegistry(store, null);
+		final ControllerInfo living = registry.get(1);
+		
+		assertEquals("Living room", living.name);
+		
+		/* the temporary file can not be created while a directory is in its place */
+		
+		final File blocker = new File(directory, ControllerStore.FILE_NAME + ".tmp");
+		assertTrue(blocker.mkdir());
+		
+		assertNull(registry.add("Bedroom", "192.168.0.11", ControllerInfo.TRANSPORT_NATIVE));
+		assertFalse(registry.update(info(1, "Kitchen", "192.168.0.10")));
+		assertFalse(registry.remove(1));
+		
+		assertEquals(1, registry.list().size());
+		assertTrue(living == registry.get(1));
+		
+		assertTrue(blocker.delete());
+		
+		/* the id of the failed add is not used up */
+		
+		final ControllerInfo bedroom = registry.add("Bedroom", "192.168.0.11", ControllerInfo.TRANSPORT_NATIVE);
+		
+		assertEquals(2, bedroom.id);
+		assertTrue(registry.update(info(1, "Kitchen", "192.168.0.10")));
+		assertEquals("Kitchen", registry.get(1).name);
+		
+		store.load(null);
+		
+		assertEquals(2, store.records.size());
+		assertEquals("Kitchen", store.records.get(0).name);
+		assertEquals(3, store.nextId);
+	}
+	
+	/**
+	 * A large id, e.g. from a migrated controller-N preference, costs no more than any other.
+	 */
+	@Test
+	public void registryHandlesLargeIds() throws IOException {
+		final int large = 1 << 30;
+		
+		write(HEADER,
+				large + "\tLiving room\t192.168.0.10\tnative",
+				"3\tBedroom\t192.168.0.11\tnative");
+		
+		final ControllerRegistry registry = new ControllerRegistry(store, null);
+		
+		assertEquals("Living room", registry.get(large).name);
+		assertEquals("Bedroom", registry.get(3).name);
+		assertNull(registry.get(4));
+		assertEquals(3, registry.list().get(0).id);
+		assertEquals(large, registry.list().get(1).id);
+		
+		final ControllerInfo kitchen = registry.add("Kitchen", "192.168.0.12", ControllerInfo.TRANSPORT_NATIVE);
+		
+		assertEquals(large + 1, kitchen.id);
+		assertTrue(registry.remove(large));
+		assertNull(registry.get(large));
+		assertTrue(kitchen == registry.get(large + 1));
+		assertEquals(2, registry.list().size());
+	}
+	
+	static ControllerInfo info(int id, String name, String address) {
+		return new ControllerInfo(id, ControllerInfo.key(id), name, address, ControllerInfo.TRANSPORT_NATIVE);
+	}
+	
+	static void assertInfo(ControllerInfo expected, ControllerInfo actual) {
+		assertEquals(expected.id, actual.id);
+		assertEquals(expected.key, actual.key);
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.address, actual.address);
+		assertEquals(expected.transport, actual.transport);
+	}
+	
+	void write(String... lines) throws IOException {
+		final StringBuilder contents = new StringBuilder();
+		
+		for(String line : lines)
+			contents.append(line).append('\n');
+		
+		assertTrue(ControllerStore.replace(store.file, contents));
+	}
+	
+	String read() throws IOException {
+		return new String(Files.readAllBytes(store.file.toPath()), "UTF-8");
+	}
+	
+	static void delete(File file) {
+		final File[] children = file.listFiles();
+		
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+		
+		file.delete();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.horizonremote.rfb.MockRfbServer;
+import org.horizonremote.rfb.RfbController;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests both transports against a MockRfbServer, in particular how fast they work through 
+ * server messages of several megabytes which they have to skip. The native transport is 
+ * skipped when libhorizonremote can not be loaded.
+ *
+ * @author rogro82
+ */
+public class ControllerTransportTest {
+	
+	static final int MEGABYTE = 1024 * 1024;
+	
+	/* a raw 1024 x 1024 update at 32 bits per pixel followed by a large clipboard */
+	static final int UPDATE_SIZE = 1024;
+	static final int CLIPBOARD_SIZE = 8 * MEGABYTE;
+	
+	/* a transport which copies what it skips takes seconds for the messages */
+	static final long MESSAGES_MILLIS = 5000;
+	
+	MockRfbServer server;
+	ControllerTransport transport;
+	
+	@After
+	public void tearDown() {
+		if(transport != null)
+			transport.disconnect();
+		
+		if(server != null)
+			server.close();
+	}
+	
+	@Test(timeout = 30000)
+	public void javaTransportSkipsLargeMessages() throws Exception {
+		connect(new Factory() {
+			@Override
+			public ControllerTransport create(String address) {
+				return new RfbController(address);
+			}
+		});
+		
+		receiveLargeMessages("java");
+	}
+	
+	@Test(timeout = 30000)
+	public void nativeTransportSkipsLargeMessages() throws Exception {
+		connect(NATIVE);
+		
+		receiveLargeMessages("native");
+	}
+	
+	@Test
+	public void nativeTransportSendsKeysWithTheirFlags() throws Exception {
+		connect(NATIVE);
+		
+		final int[] keys = { 0xe001, 0xe002, 0xe003 };
+		final int[] flags = { ControllerTransport.KEY_FLAG_TOGGLE, ControllerTransport.KEY_FLAG_DOWN, ControllerTransport.KEY_FLAG_UP };
+		
+		transport.sendKeys(keys, flags, 3);
+		
+		while(!server.awaitKeyEvents(4, 10))
+			assertTrue(transport.poll());
+		
+		final List<MockRfbServer.KeyRecord> received = server.getKeyEvents();
+		
+		assertEquals(4, received.size());
+		assertEquals(0xe001, received.get(0).key);
+		assertTrue(received.get(0).down);
+		assertEquals(0xe001, received.get(1).key);
+		assertTrue(!received.get(1).down);
+		assertEquals(0xe002, received.get(2).key);
+		assertTrue(received.get(2).down);
+		assertEquals(0xe003, received.get(3).key);
+		assertTrue(!received.get(3).down);
+	}
+	
+	/**
+	 * Has the server send the messages while the transport is polled, then waits for the 
+	 * answer to a probe sent after them which can only be parsed once they were skipped.
+	 */
+	void receiveLargeMessages(String name) throws Exception {
+		final byte[] messages = largeMessages();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		
+		final Thread sender = new Thread("sender") {
+			@Override
+			public void run() {
+				try {
+					server.send(messages);
+				} catch(Exception e) {
+					failure.set(e);
+				}
+			}
+		};
+		
+		final long start = System.nanoTime();
+		sender.start();
+		
+		while(sender.isAlive()) {
+			assertTrue(transport.poll());
+			LockSupport.parkNanos(100000);
+		}
+		
+		if(failure.get() != null)
+			throw failure.get();
+		
+		transport.probe();
+		
+		while(transport.getRoundTripTime() < 0) {
+			assertTrue(transport.poll());
+			LockSupport.parkNanos(100000);
+		}
+		
+		final long millis = (System.nanoTime() - start) / 1000000;
+		
+		System.out.println("ControllerTransportTest: " + name + " transport skipped " + messages.length / MEGABYTE 
+				+ "MB of server messages in " + millis + "ms");
+		
+		assertEquals(ControllerTransport.STATE_CONNECTED, transport.getState());
+		assertTrue(name + " transport took " + millis + "ms", millis < MESSAGES_MILLIS);
+		
+		/* keys still get through afterwards */
+		
+		transport.sendKeys(new int[] { 0xe00f }, new int[] { ControllerTransport.KEY_FLAG_TOGGLE }, 1);
+		
+		while(!server.awaitKeyEvents(2, 10))
+			assertTrue(transport.poll());
+	}
+	
+	static byte[] largeMessages() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream messages = new DataOutputStream(bytes);
+		
+		messages.write(new byte[] { 0, 0, 0, 1 });
+		messages.writeInt(0);
+		messages.writeShort(UPDATE_SIZE);
+		messages.writeShort(UPDATE_SIZE);
+		messages.writeInt(0);
+		messages.write(new byte[UPDATE_SIZE * UPDATE_SIZE * 4]);
+		
+		messages.write(new byte[] { 3, 0, 0, 0 });
+		messages.writeInt(CLIPBOARD_SIZE);
+		messages.write(new byte[CLIPBOARD_SIZE]);
+		
+		return bytes.toByteArray();
+	}
+	
+	interface Factory {
+		ControllerTransport create(String address) throws Exception;
+	}
+	
+	static final Factory NATIVE = new Factory() {
+		@Override
+		public ControllerTransport create(String address) throws Exception {
+			try {
+				return new RemoteController(address);
+			} catch(LinkageError e) {
+				Assume.assumeNoException("libhorizonremote is not available", e);
+				return null;
+			}
+		}
+	};
+	
+	void connect(Factory factory) throws Exception {
+		server = new MockRfbServer();
+		transport = factory.create(server.getAddress());
+		transport.connect();
+		
+		assertEquals(ControllerTransport.STATE_CONNECTED, transport.getState());
+	}
+}
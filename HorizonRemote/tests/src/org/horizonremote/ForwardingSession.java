@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+/**
+ * ControllerLoop.Session for the tests and ControllerBenchmark which sends the queued key
+ * events, data is the key. Urgent keys have a lane of their own which is handled first, a
+ * press of one preempts the other lane through the policy, like ControllerService does. A session 
+ * without an interval has no deadline of its own. The lanes are drained while holding the 
+ * session, events queued while holding it are handled in a single step.
+ *
+ * @author rogro82
+ */
+class ForwardingSession implements ControllerLoop.Session {
+	
+	final ControllerLoop loop;
+	final int interval;
+	
+	final ControllerEventQueue events = new ControllerEventQueue();
+	final ControllerEventQueue urgent = new ControllerEventQueue(ControllerService.URGENT_CAPACITY);
+	final ControllerEventPolicy policy = new ControllerEventPolicy();
+	
+	final long[] batch = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+	final long[] times = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+	final long[] stamps = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+	
+	/* the other lane drained by a preempt while the batch holds the urgent keys */
+	final long[] preempted = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+	final long[] preemptedtimes = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+	final long[] preemptedstamps = new long[ControllerEventQueue.DEFAULT_CAPACITY];
+	
+	final int[] keycodes = new int[ControllerEventQueue.DEFAULT_CAPACITY];
+	final int[] keyflags = new int[ControllerEventQueue.DEFAULT_CAPACITY];
+	
+	final AtomicInteger steps = new AtomicInteger();
+	final AtomicInteger drained = new AtomicInteger();
+	
+	/* longest time in nanos an event was queued before it was drained */
+	volatile long maxQueued;
+	volatile int state = ControllerTransport.STATE_DISCONNECTED;
+	volatile boolean cancelled;
+	volatile Thread stepper;
+	
+	ControllerTransport controller;
+	
+	ForwardingSession(ControllerLoop loop, int interval) {
+		this.loop = loop;
+		this.interval = interval;
+	}
+	
+	/**
+	 * Connects to address without blocking, the connection is advanced by poll.
+	 */
+	void connect(String address) throws Exception {
+		controller = new RemoteController(address);
+	}
+	
+	/**
+	 * Queues a key press in the normal lane, whatever the key, and wakes up the loop.
+	 */
+	boolean dispatch(int key) {
+		return dispatch(events, ControllerService.EVENT_KEY_PRESS, key);
+	}
+	
+	/**
+	 * Queues a key event in its lane and wakes up the loop like ControllerService does.
+	 */
+	boolean dispatch(int action, int key) {
+		return dispatch(ControllerEventPolicy.isUrgent(action, key) ? urgent : events, action, key);
+	}
+	
+	boolean dispatch(ControllerEventQueue lane, int action, int key) {
+		if(!lane.offer(action, key, SystemClock.elapsedRealtime(), System.nanoTime()))
+			return false;
+		
+		loop.wakeup();
+		return true;
+	}
+	
+	@Override
+	public long step(long now, int ready) {
+		steps.incrementAndGet();
+		stepper = Thread.currentThread();
+		
+		if(cancelled) {
+			if(controller != null)
+				controller.disconnect();
+			
+			return ControllerLoop.SESSION_CLOSED;
+		}
+		
+		if(controller != null) {
+			controller.poll();
+			state = controller.getState();
+		}
+		
+		synchronized(this) {
+			if(!urgent.isEmpty()) {
+				final int urgentsize = urgent.drain(batch, times, stamps);
+				
+				if(policy.preempts && ControllerEventPolicy.isPreempting(batch, urgentsize)) {
+					int count;
+					
+					while((count = events.drain(preempted, preemptedtimes, preemptedstamps)) > 0)
+						send(preempted, preemptedstamps, policy.preempt(preempted, preemptedtimes, count));
+				}
+				
+				send(urgentsize);
+			}
+			
+			send(events.drain(batch, times, stamps));
+		}
+		
+		return interval > 0 ? now + interval : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Sends the first count events of the batch, key releases are left out.
+	 */
+	void send(int count) {
+		send(batch, stamps, count);
+	}
+	
+	void send(long[] batch, long[] stamps, int count) {
+		final long drainstamp = System.nanoTime();
+		int keys = 0;
+		
+		for(int i = 0; i < count; ++i) {
+			maxQueued = Math.max(maxQueued, drainstamp - stamps[i]);
+			
+			switch(ControllerEventQueue.action(batch[i])) {
+			case ControllerService.EVENT_KEY_PRESS:
+				keyflags[keys] = ControllerTransport.KEY_FLAG_TOGGLE;
+				break;
+			case ControllerService.EVENT_KEY_DOWN:
+				keyflags[keys] = ControllerTransport.KEY_FLAG_DOWN;
+				break;
+			case ControllerService.EVENT_KEY_UP:
+				keyflags[keys] = ControllerTransport.KEY_FLAG_UP;
+				break;
+			default:
+				continue;
+			}
+			
+			keycodes[keys++] = ControllerEventQueue.data(batch[i]);
+		}
+		
+		if(keys > 0 && controller != null)
+			controller.sendKeys(keycodes, keyflags, keys);
+		
+		drained.addAndGet(count);
+	}
+	
+	@Override
+	public ControllerTransport getController() {
+		return controller;
+	}
+	
+	@Override
+	public boolean hasPendingWork() {
+		return cancelled || !urgent.isEmpty() || !events.isEmpty();
+	}
+	
+	@Override
+	public void cancel() {
+		cancelled = true;
+		loop.wakeup();
+	}
+}
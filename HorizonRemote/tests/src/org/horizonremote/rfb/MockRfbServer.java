@@ -0,0 +1,361 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote.rfb;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+/**
+ * MockRfbServer is an in-process stand-in for a mediabox for the tests, it speaks the part of 
+ * RFB 3.8 the controllers use ( no authentication, ServerInit, KeyEvents, raw answers to
+ * framebuffer update requests ). It listens on an ephemeral 
+ * loopback port and records every KeyEvent with a System.nanoTime() timestamp, which makes 
+ * the path from dispatch to socket measurable on any machine.
+ * 
+ * The handshake delay, the probability of dropping a connection before the handshake and a
+ * disconnect after a number of KeyEvents can be configured, drops are decided by a seeded
+ * random so that runs are reproducible.
+ * 
+ * @author rogro82
+ */
+public class MockRfbServer implements Runnable {
+	
+	static final String LOG_TAG = "MockRfbServer";
+	
+	static final byte[] VERSION = { 'R', 'F', 'B', ' ', '0', '0', '3', '.', '0', '0', '8', '\n' };
+	
+	/**
+	 * A KeyEvent as received by the server.
+	 */
+	public static final class KeyRecord {
+		public final long nanos;
+		public final int connection;
+		public final int key;
+		public final boolean down;
+		
+		KeyRecord(long nanos, int connection, int key, boolean down) {
+			this.nanos = nanos;
+			this.connection = connection;
+			this.key = key;
+			this.down = down;
+		}
+	}
+	
+	final ServerSocket serverSocket;
+	final Thread acceptThread;
+	
+	final ArrayList<KeyRecord> keys = new ArrayList<KeyRecord>();
+	final ArrayList<Socket> connections = new ArrayList<Socket>();
+	
+	/* connections which server messages can be sent to, guarded by the socket itself */
+	final Set<Socket> handshaken = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	
+	volatile int handshakeDelayMillis;
+	volatile double dropProbability;
+	volatile int disconnectAfterKeys;
+	
+	final Random random = new Random(0);
+	
+	int connectionCount;
+	
+	public MockRfbServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		
+		acceptThread = new Thread(this, "MockRfbServer-" + serverSocket.getLocalPort());
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+	
+	/**
+	 * @return the address ( host:port ) a transport should connect to
+	 */
+	public String getAddress() {
+		return "127.0.0.1:" + serverSocket.getLocalPort();
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	public void setHandshakeDelay(int millis) {
+		handshakeDelayMillis = millis;
+	}
+	
+	public void setDropProbability(double probability) {
+		dropProbability = probability;
+	}
+	
+	/**
+	 * Closes every connection after it received count KeyEvents, 0 disables.
+	 */
+	public void setDisconnectAfterKeys(int count) {
+		disconnectAfterKeys = count;
+	}
+	
+	public void setSeed(long seed) {
+		synchronized(random) {
+			random.setSeed(seed);
+		}
+	}
+	
+	/**
+	 * @return a copy of the KeyEvents received so far
+	 */
+	public ArrayList<KeyRecord> getKeyEvents() {
+		synchronized(keys) {
+			return new ArrayList<KeyRecord>(keys);
+		}
+	}
+	
+	public void clearKeyEvents() {
+		synchronized(keys) {
+			keys.clear();
+		}
+	}
+	
+	/**
+	 * Waits until at least count KeyEvents have been received.
+	 * 
+	 * @return false if the timeout expired first
+	 */
+	public boolean awaitKeyEvents(int count, long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		
+		synchronized(keys) {
+			while(keys.size() < count) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+					return false;
+				
+				keys.wait(remaining);
+			}
+			
+			return true;
+		}
+	}
+	
+	public int getConnectionCount() {
+		synchronized(connections) {
+			return connectionCount;
+		}
+	}
+	
+	/**
+	 * Sends a server message to every connection which completed the handshake, e.g. to 
+	 * see how clients handle large messages. Blocks until the message has been written.
+	 */
+	public void send(byte[] message) throws IOException {
+		final ArrayList<Socket> sockets;
+		
+		synchronized(connections) {
+			sockets = new ArrayList<Socket>(connections);
+		}
+		
+		for(Socket socket : sockets) {
+			synchronized(socket) {
+				if(handshaken.contains(socket))
+					socket.getOutputStream().write(message);
+			}
+		}
+	}
+	
+	/**
+	 * Closes every open connection as if the mediabox went away.
+	 */
+	public void disconnectAll() {
+		synchronized(connections) {
+			for(Socket socket : connections)
+				closeQuietly(socket);
+			
+			connections.clear();
+		}
+	}
+	
+	public void close() {
+		closeQuietly(serverSocket);
+		disconnectAll();
+	}
+	
+	@Override
+	public void run() {
+		while(!serverSocket.isClosed()) {
+			final Socket socket;
+			
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				break;
+			}
+			
+			final int connection;
+			
+			synchronized(connections) {
+				connection = connectionCount++;
+				connections.add(socket);
+			}
+			
+			final Thread thread = new Thread("MockRfbConnection-" + connection) {
+				@Override
+				public void run() {
+					serve(socket, connection);
+				}
+			};
+			
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	void serve(Socket socket, int connection) {
+		try {
+			final boolean drop;
+			
+			synchronized(random) {
+				drop = random.nextDouble() < dropProbability;
+			}
+			
+			if(drop) {
+				Log.d(LOG_TAG, "dropping connection " + connection);
+				return;
+			}
+			
+			if(handshakeDelayMillis > 0)
+				Thread.sleep(handshakeDelayMillis);
+			
+			socket.setTcpNoDelay(true);
+			
+			final DataInputStream in = new DataInputStream(socket.getInputStream());
+			final OutputStream out = socket.getOutputStream();
+			
+			/* version, security ( none ) and ServerInit */
+			
+			out.write(VERSION);
+			in.readFully(new byte[12]);
+			
+			out.write(new byte[] { 1, 1 });
+			in.readUnsignedByte();
+			
+			out.write(new byte[] { 0, 0, 0, 0 });
+			in.readUnsignedByte();
+			
+			out.write(new byte[] { 
+					0x05, 0x00, 0x02, (byte)0xd0,		/* 1280 x 720 */
+					32, 24, 0, 1, 0, (byte)255, 0, (byte)255, 0, (byte)255, 16, 8, 0, 0, 0, 0,
+					0, 0, 0, 4, 'm', 'o', 'c', 'k' });
+			
+			handshaken.add(socket);
+			
+			int received = 0;
+			int bytesPerPixel = 4;
+			
+			for(;;) {
+				final int type = in.readUnsignedByte();
+				
+				switch(type) {
+				case 0: /* set pixel format */
+					in.skipBytes(3);
+					bytesPerPixel = in.readUnsignedByte() / 8;
+					in.skipBytes(15);
+					break;
+				case 2: /* set encodings */
+					in.skipBytes(1);
+					in.skipBytes(4 * in.readUnsignedShort());
+					break;
+				case 3: /* framebuffer update request, answer with the requested area in raw */
+					in.skipBytes(1);
+					
+					final byte[] request = new byte[8];
+					in.readFully(request);
+					
+					final int width = ((request[4] & 0xff) << 8) | (request[5] & 0xff);
+					final int height = ((request[6] & 0xff) << 8) | (request[7] & 0xff);
+					
+					final byte[] update = new byte[16 + width * height * bytesPerPixel];
+					update[3] = 1;
+					System.arraycopy(request, 0, update, 4, 8);
+					
+					synchronized(socket) {
+						out.write(update);
+					}
+					break;
+				case 4: /* key event */
+					final boolean down = in.readUnsignedByte() != 0;
+					in.skipBytes(2);
+					final int key = in.readInt();
+					
+					synchronized(keys) {
+						keys.add(new KeyRecord(System.nanoTime(), connection, key, down));
+						keys.notifyAll();
+					}
+					
+					if(++received == disconnectAfterKeys && disconnectAfterKeys > 0) {
+						Log.d(LOG_TAG, "disconnecting connection " + connection + " after " + received + " keys");
+						return;
+					}
+					break;
+				case 5: /* pointer event */
+					in.skipBytes(5);
+					break;
+				case 6: /* client cut text */
+					in.skipBytes(3);
+					in.skipBytes(in.readInt());
+					break;
+				default:
+					Log.d(LOG_TAG, "unknown message " + type + " on connection " + connection);
+					return;
+				}
+			}
+			
+		} catch (IOException e) {
+			/* connection closed */
+		} catch (InterruptedException e) {
+		} finally {
+			synchronized(connections) {
+				connections.remove(socket);
+			}
+			
+			handshaken.remove(socket);
+			
+			closeQuietly(socket);
+		}
+	}
+	
+	static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+	
+	static void closeQuietly(ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
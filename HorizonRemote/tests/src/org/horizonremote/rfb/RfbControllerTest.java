@@ -0,0 +1,424 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote.rfb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.horizonremote.ControllerTransport;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the handshake and the message parser of RfbController, fed directly with input 
+ * split at every possible point, and of its write path against a MockRfbServer.
+ *
+ * @author rogro82
+ */
+public class RfbControllerTest {
+	
+	static final byte[] SECURITY_NONE = { 1, 1 };
+	static final byte[] SHARED = { 1 };
+	static final byte[] RAW_ENCODING = { 2, 0, 0, 1, 0, 0, 0, 0 };
+	
+	MockRfbServer server;
+	RfbController controller;
+	
+	@After
+	public void tearDown() {
+		if(controller != null)
+			controller.disconnect();
+		
+		if(server != null)
+			server.close();
+	}
+	
+	@Test
+	public void handshake38() throws IOException {
+		final RfbController parser = parser();
+		
+		feed(parser, version(3, 8), 1);
+		assertArrayEquals(version(3, 8), output(parser));
+		
+		feed(parser, SECURITY_NONE, 1);
+		assertArrayEquals(new byte[] { 1 }, output(parser));
+		
+		feed(parser, new byte[] { 0, 0, 0, 0 }, 1);
+		assertArrayEquals(SHARED, output(parser));
+		assertEquals(ControllerTransport.STATE_DISCONNECTED, parser.getState());
+		
+		feed(parser, serverInit(32, "mediabox"), 1);
+		assertArrayEquals(RAW_ENCODING, output(parser));
+		assertEquals(ControllerTransport.STATE_CONNECTED, parser.getState());
+		assertEquals(4, parser.bytesPerPixel);
+	}
+	
+	@Test
+	public void handshake37() throws IOException {
+		final RfbController parser = parser();
+		
+		feed(parser, version(3, 7), 5);
+		output(parser);
+		
+		/* no security result, the client init follows right away */
+		
+		feed(parser, new byte[] { 2, 2, 1 }, 5);
+		assertArrayEquals(new byte[] { 1, 1 }, output(parser));
+		
+		feed(parser, serverInit(16, ""), 5);
+		assertEquals(ControllerTransport.STATE_CONNECTED, parser.getState());
+		assertEquals(2, parser.bytesPerPixel);
+	}
+	
+	@Test
+	public void handshake33() throws IOException {
+		final RfbController parser = parser();
+		
+		feed(parser, version(3, 3), 12);
+		assertArrayEquals(version(3, 3), output(parser));
+		
+		/* the server chooses the security type */
+		
+		feed(parser, new byte[] { 0, 0, 0, 1 }, 4);
+		assertArrayEquals(SHARED, output(parser));
+		
+		feed(parser, serverInit(32, "box"), 100);
+		assertEquals(ControllerTransport.STATE_CONNECTED, parser.getState());
+	}
+	
+	@Test
+	public void failsWhenAuthenticationIsRequired() {
+		final RfbController parser = parser();
+		
+		feed(parser, version(3, 8), 12);
+		feed(parser, new byte[] { 1, 2 }, 2);
+		
+		assertEquals(ControllerTransport.STATE_FAILURE, parser.getState());
+	}
+	
+	@Test
+	public void failsWhenRefused() {
+		final RfbController parser = parser();
+		
+		feed(parser, version(3, 8), 12);
+		feed(parser, new byte[] { 0, 0, 0, 0, 6, 'r', 'e', 'a', 's', 'o', 'n' }, 11);
+		
+		assertEquals(ControllerTransport.STATE_FAILURE, parser.getState());
+	}
+	
+	@Test
+	public void failsOnUnknownProtocol() {
+		final RfbController parser = parser();
+		
+		feed(parser, "HTTP/1.1 400".getBytes(), 12);
+		
+		assertEquals(ControllerTransport.STATE_FAILURE, parser.getState());
+	}
+	
+	/**
+	 * Every kind of server message, fed in chunks of every size from a single byte to all 
+	 * at once. Everything should be consumed and the update with rectangles answers the probe.
+	 */
+	@Test
+	public void skipsServerMessagesSplitAnywhere() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream messages = new DataOutputStream(bytes);
+		
+		messages.write(2);												/* bell */
+		messages.write(new byte[] { 1, 0, 0, 5, 0, 2 });				/* colormap, 2 entries */
+		messages.write(new byte[12]);
+		messages.write(framebufferUpdate(4, 3, 2, 1, 1));				/* 2 raw rectangles */
+		messages.write(clipboard(300));
+		messages.write(2);
+		messages.write(framebufferUpdate(4));							/* no rectangles */
+		
+		final byte[] input = bytes.toByteArray();
+		
+		for(int chunk = 1; chunk <= input.length; ++chunk) {
+			final RfbController parser = connectedParser(32);
+			
+			parser.probeSent = RfbController.millis();
+			parser.probing = true;
+			
+			feed(parser, input, chunk);
+			
+			assertEquals("chunk " + chunk, ControllerTransport.STATE_CONNECTED, parser.getState());
+			assertEquals("chunk " + chunk, 0, parser.in.position());
+			assertEquals(0, parser.rects);
+			assertEquals(0, parser.skip);
+			assertTrue(parser.getRoundTripTime() >= 0);
+			assertEquals(0, output(parser).length);
+		}
+	}
+	
+	/**
+	 * An update without the probed pixel, e.g. one for an earlier request, does not answer 
+	 * the probe.
+	 */
+	@Test
+	public void onlyTheProbedPixelAnswersTheProbe() throws IOException {
+		final RfbController parser = connectedParser(32);
+		
+		parser.probeSent = RfbController.millis();
+		parser.probing = true;
+		
+		final byte[] empty = framebufferUpdate(4);
+		feed(parser, empty, empty.length);
+		
+		assertTrue(parser.probing);
+		
+		final byte[] update = framebufferUpdate(4, 1, 1);
+		feed(parser, update, update.length);
+		
+		assertFalse(parser.probing);
+		assertTrue(parser.getRoundTripTime() >= 0);
+	}
+	
+	@Test
+	public void dataInTheMillisecondOfTheProbeAnswersIt() {
+		final RfbController parser = connectedParser(32);
+		
+		parser.roundTripTime = 10;
+		parser.probing = true;
+		parser.probeSent = RfbController.millis();
+		parser.lastReceive = parser.probeSent;
+		
+		assertEquals(-1, parser.getProbeAge());
+		
+		parser.lastReceive = parser.probeSent - 1;
+		
+		assertTrue(parser.getProbeAge() >= 0);
+	}
+	
+	/**
+	 * A box which never answered a probe is not declared dead for unanswered probes, but not 
+	 * forever.
+	 */
+	@Test
+	public void unansweredProbesSettleForALimitedTime() {
+		final RfbController parser = connectedParser(32);
+		
+		parser.probing = true;
+		parser.probeSent = RfbController.millis();
+		parser.lastReceive = parser.probeSent - 1;
+		parser.probeUnansweredSince = parser.probeSent;
+		
+		assertEquals(-1, parser.getProbeAge());
+		
+		parser.probeUnansweredSince = parser.probeSent - RfbController.PROBE_SETTLE_MAX_MILLIS;
+		
+		assertTrue(parser.getProbeAge() >= 0);
+	}
+	
+	@Test
+	public void failsOnUnsupportedEncoding() throws IOException {
+		final RfbController parser = connectedParser(32);
+		final byte[] update = framebufferUpdate(4, 1, 1);
+		
+		/* hextile instead of raw */
+		update[15] = 5;
+		
+		feed(parser, update, update.length);
+		
+		assertEquals(ControllerTransport.STATE_FAILURE, parser.getState());
+	}
+	
+	@Test
+	public void failsOnUnsupportedMessage() {
+		final RfbController parser = connectedParser(32);
+		
+		feed(parser, new byte[] { 9, 0, 0, 0 }, 4);
+		
+		assertEquals(ControllerTransport.STATE_FAILURE, parser.getState());
+	}
+	
+	@Test
+	public void sendsKeysWithTheirFlags() throws Exception {
+		connect();
+		
+		final int[] keys = { 0xe001, 0xe002, 0xe003 };
+		final int[] flags = { ControllerTransport.KEY_FLAG_TOGGLE, ControllerTransport.KEY_FLAG_DOWN, ControllerTransport.KEY_FLAG_UP };
+		
+		assertTrue(controller.sendKeys(keys, flags, 3) != 0);
+		assertTrue(server.awaitKeyEvents(4, 5000));
+		
+		final List<MockRfbServer.KeyRecord> received = server.getKeyEvents();
+		
+		assertKey(received.get(0), 0xe001, true);
+		assertKey(received.get(1), 0xe001, false);
+		assertKey(received.get(2), 0xe002, true);
+		assertKey(received.get(3), 0xe003, false);
+		
+		assertEquals(0, controller.sendKeys(keys, flags, 0));
+	}
+	
+	/**
+	 * A batch larger than the output buffer grows it and leaves in order, what the socket 
+	 * does not take right away is written by later polls.
+	 */
+	@Test
+	public void sendsBatchesLargerThanTheBuffer() throws Exception {
+		connect();
+		
+		final int count = 50000;
+		final int[] keys = new int[count];
+		final int[] flags = new int[count];
+		
+		for(int i = 0; i < count; ++i) {
+			keys[i] = i & 0xffff;
+			flags[i] = ControllerTransport.KEY_FLAG_TOGGLE;
+		}
+		
+		controller.sendKeys(keys, flags, count);
+		
+		final long deadline = System.currentTimeMillis() + 10000;
+		
+		while(controller.out.position() > 0) {
+			assertTrue(controller.poll());
+			assertTrue("output was not written", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		
+		assertTrue(server.awaitKeyEvents(2 * count, 10000));
+		
+		final List<MockRfbServer.KeyRecord> received = server.getKeyEvents();
+		
+		for(int i = 0; i < count; ++i) {
+			assertKey(received.get(2 * i), keys[i], true);
+			assertKey(received.get(2 * i + 1), keys[i], false);
+		}
+	}
+	
+	void connect() throws IOException {
+		server = new MockRfbServer();
+		controller = new RfbController(server.getAddress());
+		controller.connect();
+		
+		assertEquals(ControllerTransport.STATE_CONNECTED, controller.getState());
+	}
+	
+	static void assertKey(MockRfbServer.KeyRecord record, int key, boolean down) {
+		assertEquals(key, record.key);
+		assertEquals(down, record.down);
+	}
+	
+	/**
+	 * @return a controller which expects the server version without a connection
+	 */
+	static RfbController parser() {
+		final RfbController parser = new RfbController("127.0.0.1");
+		parser.phase = RfbController.PHASE_VERSION;
+		return parser;
+	}
+	
+	static RfbController connectedParser(int bitsPerPixel) {
+		final RfbController parser = parser();
+		
+		try {
+			feed(parser, version(3, 8), 12);
+			feed(parser, SECURITY_NONE, 2);
+			feed(parser, new byte[4], 4);
+			feed(parser, serverInit(bitsPerPixel, "box"), 100);
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+		
+		output(parser);
+		return parser;
+	}
+	
+	/**
+	 * Hands input to the parser chunk bytes at a time like poll does.
+	 */
+	static void feed(RfbController parser, byte[] input, int chunk) {
+		for(int offset = 0; offset < input.length; offset += chunk) {
+			parser.in.put(input, offset, Math.min(chunk, input.length - offset));
+			parser.in.flip();
+			parser.handleInput();
+			parser.in.compact();
+		}
+	}
+	
+	/**
+	 * @return the output of the parser so far, which is consumed
+	 */
+	static byte[] output(RfbController parser) {
+		parser.out.flip();
+		
+		final byte[] output = new byte[parser.out.remaining()];
+		parser.out.get(output);
+		parser.out.clear();
+		
+		return output;
+	}
+	
+	static byte[] version(int major, int minor) {
+		return String.format("RFB %03d.%03d\n", major, minor).getBytes();
+	}
+	
+	static byte[] serverInit(int bitsPerPixel, String name) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream init = new DataOutputStream(bytes);
+		
+		init.writeShort(1280);
+		init.writeShort(720);
+		init.write(new byte[] { (byte)bitsPerPixel, 24, 0, 1, 0, (byte)255, 0, (byte)255, 0, (byte)255, 16, 8, 0, 0, 0, 0 });
+		init.writeInt(name.length());
+		init.write(name.getBytes());
+		
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * @return a framebuffer update with raw rectangles of the given width and height pairs
+	 */
+	static byte[] framebufferUpdate(int bytesPerPixel, int... sizes) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream update = new DataOutputStream(bytes);
+		
+		update.write(new byte[] { 0, 0 });
+		update.writeShort(sizes.length / 2);
+		
+		for(int i = 0; i < sizes.length; i += 2) {
+			update.writeInt(0);
+			update.writeShort(sizes[i]);
+			update.writeShort(sizes[i + 1]);
+			update.writeInt(0);
+			update.write(new byte[sizes[i] * sizes[i + 1] * bytesPerPixel]);
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	static byte[] clipboard(int length) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream text = new DataOutputStream(bytes);
+		
+		text.write(new byte[] { 3, 0, 0, 0 });
+		text.writeInt(length);
+		text.write(new byte[length]);
+		
+		return bytes.toByteArray();
+	}
+}
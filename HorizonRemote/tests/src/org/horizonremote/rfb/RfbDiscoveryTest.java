@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote.rfb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of RfbDiscovery on the loopback network: a MockRfbServer on 127.0.0.1, a host 
+ * which accepts connections but never sends a banner on 127.0.0.2 and nothing on 127.0.0.3.
+ *
+ * @author rogro82
+ */
+public class RfbDiscoveryTest {
+	
+	static final long CANCEL_MILLIS = 100;
+	
+	MockRfbServer server;
+	ServerSocket silent;
+	RfbDiscovery discovery;
+	
+	final InetAddress found = address("127.0.0.1");
+	final InetAddress mute = address("127.0.0.2");
+	final InetAddress absent = address("127.0.0.3");
+	
+	/**
+	 * Records the calls of a scan, onServerFound blocks while blocked is set.
+	 */
+	static class Recorder implements RfbDiscovery.Listener {
+		final ArrayList<String> servers = new ArrayList<String>();
+		final CountDownLatch reported = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		
+		volatile boolean blocked;
+		volatile int total = -1;
+		
+		@Override
+		public void onServerFound(InetAddress address, String version) {
+			synchronized(servers) {
+				servers.add(address.getHostAddress() + " " + version);
+			}
+			
+			reported.countDown();
+			
+			if(blocked) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		
+		@Override
+		public void onScanFinished(int found) {
+			total = found;
+			finished.countDown();
+		}
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new MockRfbServer();
+		silent = new ServerSocket(server.getPort(), 50, mute);
+		discovery = new RfbDiscovery(server.getPort());
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		discovery.cancel();
+		silent.close();
+		server.close();
+	}
+	
+	@Test
+	public void scanFindsOnlyServers() throws Exception {
+		final Recorder recorder = new Recorder();
+		
+		assertEquals(1, discovery.scanHosts(Arrays.asList(found, mute, absent), recorder));
+		assertEquals(Arrays.asList("127.0.0.1 RFB 003.008"), recorder.servers);
+	}
+	
+	@Test
+	public void cachedServersAreReportedAgain() throws Exception {
+		final List<InetAddress> hosts = Arrays.asList(found, absent);
+		
+		assertEquals(1, discovery.scanHosts(hosts, new Recorder()));
+		
+		server.close();
+		
+		final Recorder recorder = new Recorder();
+		
+		assertEquals(1, discovery.scanHosts(hosts, recorder));
+		assertEquals(Arrays.asList("127.0.0.1 RFB 003.008"), recorder.servers);
+	}
+	
+	/**
+	 * A scan which waits for a host is woken up by cancel, and does not report any more.
+	 */
+	@Test
+	public void cancelEndsAWaitingScan() throws Exception {
+		final Recorder recorder = new Recorder();
+		
+		discovery.scan(Arrays.asList(mute), recorder);
+		
+		final Thread scanner = scanner();
+		Thread.sleep(50);
+		
+		discovery.cancel();
+		
+		scanner.join(CANCEL_MILLIS);
+		
+		assertFalse("scan did not end", scanner.isAlive());
+		assertFalse(recorder.finished.await(0, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * cancel ( e.g. from onDestroy on the ui thread ) does not wait for a scan which is busy
+	 * in its listener.
+	 */
+	@Test
+	public void cancelDoesNotWaitForTheScan() throws Exception {
+		final Recorder recorder = new Recorder();
+		recorder.blocked = true;
+		
+		discovery.scan(Arrays.asList(found, mute), recorder);
+		
+		assertTrue(recorder.reported.await(5, TimeUnit.SECONDS));
+		
+		final Thread scanner = scanner();
+		final long start = System.nanoTime();
+		
+		discovery.cancel();
+		
+		assertTrue("cancel waited for the scan", System.nanoTime() - start < CANCEL_MILLIS * 1000000);
+		assertTrue(scanner.isAlive());
+		
+		recorder.release.countDown();
+		scanner.join(5000);
+		
+		assertFalse("scan did not end", scanner.isAlive());
+		assertEquals(-1, recorder.total);
+	}
+	
+	/**
+	 * A new scan is not revived by the scan it replaces, nor the other way around.
+	 */
+	@Test
+	public void rescanCancelsThePreviousScan() throws Exception {
+		final Recorder first = new Recorder();
+		final Recorder second = new Recorder();
+		
+		discovery.scan(Arrays.asList(mute), first);
+		discovery.scan(Arrays.asList(found), second);
+		
+		assertTrue(second.finished.await(5, TimeUnit.SECONDS));
+		assertEquals(1, second.total);
+		assertEquals(-1, first.total);
+	}
+	
+	static Thread scanner() {
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().equals("RfbDiscovery") && thread.isAlive())
+				return thread;
+		}
+		
+		throw new AssertionError("no scan is running");
+	}
+	
+	static InetAddress address(String host) {
+		try {
+			return InetAddress.getByName(host);
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizonremote.rfb;
+
+/**
+ * Gives ControllerBenchmark access to the KeyEvent encoding of RfbController without a 
+ * connection: the controller is put in the connected phase without a channel, so sendKeys 
+ * only fills the output buffer.
+ *
+ * @author rogro82
+ */
+public final class RfbEncoding {
+	
+	final RfbController controller = new RfbController("127.0.0.1");
+	
+	public RfbEncoding() {
+		controller.phase = RfbController.PHASE_CONNECTED;
+	}
+	
+	/**
+	 * Encodes count keys like sendKeys does and discards the result.
+	 * 
+	 * @return the number of bytes encoded
+	 */
+	public int encode(int[] keyCodes, int[] flags, int count) {
+		controller.sendKeys(keyCodes, flags, count);
+		
+		final int bytes = controller.out.position();
+		controller.out.clear();
+		
+		return bytes;
+	}
+}
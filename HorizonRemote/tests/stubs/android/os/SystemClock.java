@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Stand-in for the SystemClock of the platform when the tests run on a plain JVM, 
+ * elapsedRealtime is taken from System.nanoTime so that it is monotonic as well.
+ *
+ * @author rogro82
+ */
+public final class SystemClock {
+	
+	private SystemClock() {
+	}
+	
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000;
+	}
+	
+	public static long uptimeMillis() {
+		return elapsedRealtime();
+	}
+	
+	public static void sleep(long ms) {
+		final long until = elapsedRealtime() + ms;
+		
+		for(long left = ms; left > 0; left = until - elapsedRealtime()) {
+			try {
+				Thread.sleep(left);
+			} catch (InterruptedException e) {
+				/* like the platform the sleep is not cut short */
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Rob Groenendijk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * Stand-in for the Log of the platform when the tests run on a plain JVM, the stubs of 
+ * android.jar throw on every call. Messages are written to System.err.
+ *
+ * @author rogro82
+ */
+public final class Log {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG 	= 3;
+	public static final int INFO 	= 4;
+	public static final int WARN 	= 5;
+	public static final int ERROR 	= 6;
+	
+	private Log() {
+	}
+	
+	public static int v(String tag, String msg) {
+		return println(VERBOSE, tag, msg, null);
+	}
+	
+	public static int v(String tag, String msg, Throwable tr) {
+		return println(VERBOSE, tag, msg, tr);
+	}
+	
+	public static int d(String tag, String msg) {
+		return println(DEBUG, tag, msg, null);
+	}
+	
+	public static int d(String tag, String msg, Throwable tr) {
+		return println(DEBUG, tag, msg, tr);
+	}
+	
+	public static int i(String tag, String msg) {
+		return println(INFO, tag, msg, null);
+	}
+	
+	public static int i(String tag, String msg, Throwable tr) {
+		return println(INFO, tag, msg, tr);
+	}
+	
+	public static int w(String tag, String msg) {
+		return println(WARN, tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg, tr);
+	}
+	
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg, null);
+	}
+	
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg, tr);
+	}
+	
+	static int println(int priority, String tag, String msg, Throwable tr) {
+		final String line = "VDIWE".charAt(priority - VERBOSE) + "/" + tag + ": " + msg 
+				+ (tr != null ? " " + tr : "");
+		
+		System.err.println(line);
+		return line.length();
+	}
+}